@@ -0,0 +1,113 @@
+package com.extra.invisalign.control;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.extra.invisalign.model.ComplianceForecaster;
+import com.extra.invisalign.model.SessionLengthSketch;
+import com.extra.invisalign.model.TimeBackup;
+import com.extra.invisalign.model.TimeStatus;
+import com.extra.invisalign.view.NotificationView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Taps the notification's play/pause button by sending its PendingIntent, and times each tap
+ * until the service has applied the toggle. Taps are spaced past the duplicate window, so none is dropped.
+ * Tracking on the device goes on as before the test : history, status and learnt habits are backed up
+ * first and put back after.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ToggleLatencyTest {
+
+    private static final int TAPS = 40;
+
+    private static final long TIMEOUT = 5000;
+
+    private Context mContext;
+    private PendingIntent mToggle;
+
+    private File mBackup;
+    private ComplianceForecaster mForecaster;
+    private SessionLengthSketch mSketch;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mBackup = new File(mContext.getCacheDir(), "toggle_latency_test.bak");
+        TimeBackup.backup(mContext, mBackup);
+        mForecaster = ComplianceForecaster.load(mContext);
+        mSketch = SessionLengthSketch.load(mContext);
+
+        mToggle = NotificationView.createChangeStatePendingIntent(mContext, TrackerCommand.SOURCE_NOTIFICATION);
+        // first pair also creates the service, it is not what a tap usually costs
+        tap();
+        tap();
+        TrackerMetrics.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // service keeps habits in memory, it is stopped before they are put back
+        mContext.stopService(new Intent(mContext, TimeTrackerService.class));
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        TimeBackup.restore(mContext, mBackup);
+        TimeStatus.getInstance().getSnapshot().save(mContext);
+        if (mForecaster != null) {
+            mForecaster.save(mContext);
+        }
+        if (mSketch != null) {
+            mSketch.save(mContext);
+        }
+        mBackup.delete();
+        mContext.startService(new Intent(mContext, TimeTrackerService.class));
+    }
+
+    /**
+     * @return ms from sending the intent until the service recorded the toggle as applied
+     */
+    private long tap() throws Exception {
+        // a tap within the window of the previous one is a double tap, and dropped
+        SystemClock.sleep(TrackerCommand.DUPLICATE_WINDOW + 100);
+        final long applied = TrackerMetrics.getCount(TrackerMetrics.OP_COMMAND_TOGGLE);
+        final long begin = SystemClock.elapsedRealtime();
+        mToggle.send();
+        while (TrackerMetrics.getCount(TrackerMetrics.OP_COMMAND_TOGGLE) == applied) {
+            assertTrue("toggle not applied", SystemClock.elapsedRealtime() - begin < TIMEOUT);
+            SystemClock.sleep(1);
+        }
+        return SystemClock.elapsedRealtime() - begin;
+    }
+
+    @Test
+    public void tapToUpdateWithinBudget() throws Exception {
+        final long[] millis = new long[TAPS];
+        for (int i = 0; i < TAPS; i++) {
+            millis[i] = tap();
+        }
+        Arrays.sort(millis);
+
+        assertEquals(0, TrackerMetrics.get(TrackerMetrics.COUNTER_COMMAND_DROPPED));
+        assertEquals(TAPS, TrackerMetrics.getCount(TrackerMetrics.OP_COMMAND_TOGGLE));
+        final long budget = TrackerMetrics.getBudgetMicros(TrackerMetrics.OP_COMMAND_TOGGLE);
+        final long recorded = TrackerMetrics.getPercentileMicros(TrackerMetrics.OP_COMMAND_TOGGLE, 0.99);
+        assertTrue("service side p99 " + recorded + "us", recorded <= budget);
+        // sending the intent and starting the command is on top of what the service records
+        final long endToEnd = millis[(TAPS * 99 + 99) / 100 - 1];
+        assertTrue("tap to update p99 " + endToEnd + "ms", endToEnd * 1000 <= budget);
+    }
+}
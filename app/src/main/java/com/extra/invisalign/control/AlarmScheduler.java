@@ -0,0 +1,50 @@
+package com.extra.invisalign.control;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Build;
+
+import com.extra.invisalign.model.Clock;
+
+/**
+ * Scheduler on AlarmManager, for events that wake the device and outlive the process.
+ * Event codes are TrackerCommand types, each one reaches TimeTrackerService as a command.
+ */
+public class AlarmScheduler implements Scheduler {
+
+    private final Context mContext;
+    private final Clock mClock;
+
+    public AlarmScheduler(Context ctx, Clock clock) {
+        mContext = ctx.getApplicationContext();
+        mClock = clock;
+    }
+
+    @Override
+    public void schedule(int what, long delay) {
+        AlarmManager alarmMgr = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        final long time = mClock.currentTimeMillis() + Math.max(0, delay);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmMgr.setExact(AlarmManager.RTC_WAKEUP, time, pendingIntentOf(what));
+        } else {
+            alarmMgr.set(AlarmManager.RTC_WAKEUP, time, pendingIntentOf(what));
+        }
+    }
+
+    @Override
+    public void cancel(int what) {
+        AlarmManager alarmMgr = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        alarmMgr.cancel(pendingIntentOf(what));
+    }
+
+    /**
+     * command action tells types apart, so one request code serves all
+     */
+    private PendingIntent pendingIntentOf(int what) {
+        return PendingIntent.getService(mContext,
+                TrackerCommand.SOURCE_ALARM,
+                new TrackerCommand(what, TrackerCommand.SOURCE_ALARM).pending().toIntent(mContext),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
@@ -0,0 +1,66 @@
+package com.extra.invisalign.control;
+
+import com.extra.invisalign.model.StateSnapshot;
+
+/**
+ * Computes when thresholds will be crossed from a snapshot taken at transition.
+ * Since time only grows linearly while running, each threshold is a single
+ * delay from now, so nothing has to be polled.
+ */
+public class CapPredictor {
+
+    /**
+     * Initial alarm repeats every 5 mins since start
+     */
+    public static final long INITIAL_ALARM_PERIOD = 1000 * 60 * 5;
+
+    /**
+     * Final alarm repeats every 1 min once total is over time cap
+     */
+    public static final long FINAL_ALARM_PERIOD = 1000 * 60;
+
+    public static final long NOT_SCHEDULED = -1;
+
+    private CapPredictor() {
+    }
+
+    public static boolean isOverCap(StateSnapshot snapshot, long timeCap, long now) {
+        return snapshot.getDayTotal(now) > timeCap;
+    }
+
+    /**
+     * @return delay until day total crosses time cap, NOT_SCHEDULED if not running or already crossed
+     */
+    public static long delayUntilCap(StateSnapshot snapshot, long timeCap, long now) {
+        if (!snapshot.isRunning()) {
+            return NOT_SCHEDULED;
+        }
+        final long total = snapshot.getDayTotal(now);
+        return total > timeCap ? NOT_SCHEDULED : timeCap - total + 1;
+    }
+
+    /**
+     * @return delay until session time reaches next multiple of INITIAL_ALARM_PERIOD
+     */
+    public static long delayUntilInitialAlarm(StateSnapshot snapshot, long now) {
+        if (!snapshot.isRunning()) {
+            return NOT_SCHEDULED;
+        }
+        final long session = snapshot.getSessionTime(now);
+        return INITIAL_ALARM_PERIOD - (session % INITIAL_ALARM_PERIOD);
+    }
+
+    /**
+     * @return delay until time cap is crossed, then until each FINAL_ALARM_PERIOD over it
+     */
+    public static long delayUntilFinalAlarm(StateSnapshot snapshot, long timeCap, long now) {
+        if (!snapshot.isRunning()) {
+            return NOT_SCHEDULED;
+        }
+        final long total = snapshot.getDayTotal(now);
+        if (total <= timeCap) {
+            return timeCap - total + 1;
+        }
+        return FINAL_ALARM_PERIOD - ((total - timeCap) % FINAL_ALARM_PERIOD);
+    }
+}
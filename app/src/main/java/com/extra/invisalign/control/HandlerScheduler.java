@@ -0,0 +1,29 @@
+package com.extra.invisalign.control;
+
+import android.os.Handler;
+
+/**
+ * Scheduler posting empty messages to a Handler.
+ */
+public class HandlerScheduler implements Scheduler {
+
+    private final Handler mHandler;
+
+    public HandlerScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void schedule(int what, long delay) {
+        if (delay <= 0) {
+            mHandler.sendEmptyMessage(what);
+        } else {
+            mHandler.sendEmptyMessageDelayed(what, delay);
+        }
+    }
+
+    @Override
+    public void cancel(int what) {
+        mHandler.removeMessages(what);
+    }
+}
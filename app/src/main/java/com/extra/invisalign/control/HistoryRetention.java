@@ -0,0 +1,126 @@
+package com.extra.invisalign.control;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.extra.invisalign.model.StateSnapshot;
+import com.extra.invisalign.model.TimeStorage;
+import com.extra.invisalign.view.SettingFragment;
+
+/**
+ * Keeps history from growing without bound. Sessions older than the retention horizon are
+ * compacted into per day and reason aggregates, then free pages are handed back to the file system.
+ * Work is split into steps of bounded size, run by maintenance, see step().
+ */
+public class HistoryRetention {
+
+    private static final String TAG = "Invisalign::HistoryRetention";
+
+    /**
+     * days compacted per transaction, a few sessions each
+     */
+    private static final int COMPACT_DAYS = 30;
+
+    /**
+     * pages reclaimed per step
+     */
+    private static final int VACUUM_PAGES = 64;
+
+    private static final int PHASE_START = 0;
+    private static final int PHASE_COMPACT = 1;
+    private static final int PHASE_ENABLE_VACUUM = 2;
+    private static final int PHASE_VACUUM = 3;
+    private static final int PHASE_DONE = 4;
+
+    public static class Report {
+
+        public long sizeBefore;
+        public long sizeAfter;
+        public long compactedSessions;
+        public long steps;
+
+        @Override
+        public String toString() {
+            return "Retention : size " + (sizeBefore / 1024) + "KB -> " + (sizeAfter / 1024) + "KB"
+                    + ", compacted " + compactedSessions + " sessions in " + steps + " steps";
+        }
+    }
+
+    private final Context mContext;
+    private final TimeStorage mStorage;
+
+    /**
+     * sessions of days before this are compacted, 0 keeps every session
+     */
+    private final long mHorizonDay;
+
+    private final Report mReport = new Report();
+    private int mPhase = PHASE_START;
+
+    public HistoryRetention(Context ctx, TimeStorage storage, long today, int retentionDays) {
+        mContext = ctx;
+        mStorage = storage;
+        mHorizonDay = retentionDays > 0 ? today - retentionDays : 0;
+    }
+
+    /**
+     * @return retention horizon in days chosen in settings, 0 to keep all
+     */
+    public static int getRetentionDays(Context ctx) {
+        final String value = ctx.getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME,
+                Context.MODE_PRIVATE).getString(SettingFragment.KEY_HISTORY_RETENTION,
+                SettingFragment.DEFAULT_HISTORY_RETENTION);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(SettingFragment.DEFAULT_HISTORY_RETENTION);
+        }
+    }
+
+    /**
+     * Run one bounded piece of work
+     * @return true if more steps remain
+     */
+    public boolean step() {
+        mReport.steps++;
+        switch (mPhase) {
+            case PHASE_START:
+                mReport.sizeBefore = mStorage.getDatabaseSize();
+                mPhase = mHorizonDay > 0 ? PHASE_COMPACT : PHASE_ENABLE_VACUUM;
+                break;
+            case PHASE_COMPACT:
+                final int compacted = mStorage.compactSessions(mHorizonDay, COMPACT_DAYS);
+                mReport.compactedSessions += compacted;
+                if (compacted == 0) {
+                    mPhase = PHASE_ENABLE_VACUUM;
+                }
+                break;
+            case PHASE_ENABLE_VACUUM:
+                // once per install, databases created before are rebuilt in one go
+                if (!mStorage.isIncrementalVacuum()) {
+                    if (StateSnapshot.read(mContext).isRunning()) {
+                        // closing the session would wait on the rebuild, try again on next run
+                        Log.i(TAG, "full vacuum postponed, session running");
+                        mReport.sizeAfter = mStorage.getDatabaseSize();
+                        mPhase = PHASE_DONE;
+                        break;
+                    }
+                    mStorage.enableIncrementalVacuum();
+                }
+                mPhase = PHASE_VACUUM;
+                break;
+            case PHASE_VACUUM:
+                if (mStorage.incrementalVacuum(VACUUM_PAGES) == 0) {
+                    mReport.sizeAfter = mStorage.getDatabaseSize();
+                    mPhase = PHASE_DONE;
+                    Log.i(TAG, mReport.toString());
+                }
+                break;
+        }
+        return mPhase != PHASE_DONE;
+    }
+
+    public Report getReport() {
+        return mReport;
+    }
+}
@@ -0,0 +1,56 @@
+package com.extra.invisalign.control;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs MaintenanceTasks chunk by chunk on its own thread, while JobScheduler keeps
+ * the device idle and charging. When the system stops the job, the current chunk finishes,
+ * is checkpointed, and the job is rescheduled to continue from there.
+ */
+public class MaintenanceService extends JobService {
+
+    private static final String TAG = "Invisalign::MaintenanceService";
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private volatile boolean mStopped = false;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Log.v(TAG, "onStartJob");
+        mStopped = false;
+        sExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                MaintenanceTasks tasks = new MaintenanceTasks(getApplicationContext());
+                if (tasks.isDoneToday()) {
+                    jobFinished(params, false);
+                    return;
+                }
+                boolean more = true;
+                while (more && !mStopped) {
+                    more = tasks.runChunk();
+                }
+                if (!mStopped) {
+                    Log.v(TAG, "maintenance finished");
+                    jobFinished(params, false);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.v(TAG, "onStopJob");
+        mStopped = true;
+        // continue from checkpoint once constraints are met again
+        return true;
+    }
+}
@@ -0,0 +1,343 @@
+package com.extra.invisalign.control;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.extra.invisalign.model.SettingsSnapshot;
+import com.extra.invisalign.model.TimeBackup;
+import com.extra.invisalign.model.TimeStatus;
+import com.extra.invisalign.model.TimeStorage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Background upkeep of history, run by MaintenanceService in chunks of bounded work :
+ * repair of daily totals and heatmap, retention, a compliance report and a backup export, in this order.
+ * Progress is checkpointed after every chunk, so a job stopped by the system resumes
+ * at the chunk it stopped at. Nothing here touches TimeStatus, and each DB write is
+ * one short transaction, so the tracker never waits long on a job. The only exception is
+ * the one-time full vacuum of retention, which is postponed while a session is running.
+ */
+public class MaintenanceTasks {
+
+    private static final String TAG = "Invisalign::MaintenanceTasks";
+
+    private static final int TASK_REPAIR = 0;
+    private static final int TASK_HEATMAP = 1;
+    private static final int TASK_COMPACT = 2;
+    private static final int TASK_REPORT = 3;
+    private static final int TASK_EXPORT = 4;
+    private static final int TASK_COUNT = 5;
+
+    private static final String[] TASK_NAMES = { "repair", "heatmap", "compact", "report", "export" };
+
+    /**
+     * days handled by one repair or report chunk
+     */
+    private static final int CHUNK_DAYS = 30;
+
+    /**
+     * days covered by compliance report
+     */
+    private static final int REPORT_DAYS = 365;
+
+    /**
+     * nightly exports are named after their day, so one night never overwrites another
+     */
+    private static final String EXPORT_PREFIX = "invisalign-";
+    public static final String EXPORT_SUFFIX = ".itbk";
+
+    /**
+     * nightly exports kept, older ones are deleted after a new one is written
+     */
+    private static final int EXPORT_KEEP = 7;
+
+    private static final String PREFS_FILE = "maintenance";
+    private static final String KEY_RUN_DAY = "run_day";
+    private static final String KEY_DONE_DAY = "done_day";
+    private static final String KEY_TASK = "task";
+    private static final String KEY_CURSOR = "cursor";
+    private static final String KEY_REPORT_DAYS = "report_days";
+    private static final String KEY_REPORT_TOTAL = "report_total";
+    private static final String KEY_REPORT_OVER = "report_over";
+    private static final String KEY_REPORT = "report";
+    private static final String KEY_RETENTION = "retention";
+    private static final String KEY_REPAIRED = "repaired";
+
+    private final Context mContext;
+    private final TimeStorage mStorage;
+    private final SharedPreferences mPrefs;
+    private final long mToday;
+
+    /**
+     * day the current run was started, its ranges end before it even if it resumes on a later day
+     */
+    private long mRunDay;
+    private int mTask;
+
+    /**
+     * where current task continues, meaning depends on task
+     */
+    private long mCursor;
+
+    private long mReportDays;
+    private long mReportTotal;
+    private long mReportOver;
+    private long mRepaired;
+
+    private HistoryRetention mRetention;
+
+    public MaintenanceTasks(Context ctx) {
+        mContext = ctx;
+        mStorage = TimeStorage.getInstance(ctx);
+        mPrefs = prefs(ctx);
+        mToday = TimeStorage.todayEpochDay();
+        loadCheckpoint();
+    }
+
+    /**
+     * @return true if a full run already finished today
+     */
+    public boolean isDoneToday() {
+        return mPrefs.getLong(KEY_DONE_DAY, 0) == mToday;
+    }
+
+    /**
+     * Run one chunk of current task and checkpoint
+     * @return true if more chunks remain
+     */
+    public boolean runChunk() {
+        final long begin = TrackerMetrics.begin();
+        boolean taskDone = true;
+        switch (mTask) {
+            case TASK_REPAIR:
+                taskDone = repairChunk();
+                break;
+            case TASK_HEATMAP:
+                if (!mStorage.verifyHeatmap()) {
+                    mStorage.rebuildHeatmap();
+                    mRepaired++;
+                }
+                break;
+            case TASK_COMPACT:
+                taskDone = compactChunk();
+                break;
+            case TASK_REPORT:
+                taskDone = reportChunk();
+                break;
+            case TASK_EXPORT:
+                export();
+                break;
+        }
+        TrackerMetrics.end(TrackerMetrics.OP_MAINTENANCE_CHUNK, begin);
+        Log.v(TAG, "chunk of " + TASK_NAMES[mTask] + " done, task finished " + taskDone);
+        if (taskDone) {
+            mTask++;
+            mCursor = 0;
+        }
+        if (mTask == TASK_COUNT) {
+            mPrefs.edit()
+                    .putLong(KEY_DONE_DAY, mToday)
+                    .putInt(KEY_TASK, TASK_REPAIR)
+                    .putLong(KEY_RUN_DAY, 0)
+                    .commit();
+            return false;
+        }
+        saveCheckpoint();
+        return true;
+    }
+
+    /**
+     * Daily totals of past days, from the day after the last checked one
+     */
+    private boolean repairChunk() {
+        final long lastDay = mRunDay - 1;
+        final long from = mCursor == 0 ? mStorage.getFirstEpochDay() : mCursor;
+        if (from > lastDay) {
+            return true;
+        }
+        final long to = Math.min(from + CHUNK_DAYS - 1, lastDay);
+        mRepaired += mStorage.repairDailyTotals(from, to);
+        mCursor = to + 1;
+        return mCursor > lastDay;
+    }
+
+    /**
+     * Retention picks up from what is still stored, so only its report is lost if interrupted
+     */
+    private boolean compactChunk() {
+        if (mRetention == null) {
+            mRetention = new HistoryRetention(mContext, mStorage, mRunDay,
+                    HistoryRetention.getRetentionDays(mContext));
+        }
+        if (mRetention.step()) {
+            return false;
+        }
+        mPrefs.edit().putString(KEY_RETENTION, mRetention.getReport().toString()).apply();
+        mRetention = null;
+        return true;
+    }
+
+    /**
+     * Totals of the last REPORT_DAYS days against current time cap
+     */
+    private boolean reportChunk() {
+        final long firstDay = mRunDay - REPORT_DAYS;
+        final long from = mCursor == 0 ? firstDay : mCursor;
+        final long[] spent = new long[(int) Math.min(CHUNK_DAYS, mRunDay - from)];
+        if (spent.length > 0) {
+            final long timeCap = SettingsSnapshot.load(mContext).timeCap;
+            mStorage.loadDays(from, spent, null);
+            for (long time : spent) {
+                if (time == 0) {
+                    // not tracked
+                    continue;
+                }
+                mReportDays++;
+                mReportTotal += time;
+                if (time > timeCap) {
+                    mReportOver++;
+                }
+            }
+        }
+        mCursor = from + spent.length;
+        if (mCursor < mRunDay) {
+            return false;
+        }
+        final String report = "Last " + REPORT_DAYS + " days : " + mReportDays + " tracked"
+                + ", average " + TimeStatus.msToHourMin(mReportDays == 0 ? 0 : mReportTotal / mReportDays)
+                + ", over cap " + mReportOver;
+        Log.i(TAG, report);
+        mPrefs.edit().putString(KEY_REPORT, report).apply();
+        mReportDays = mReportTotal = mReportOver = 0;
+        return true;
+    }
+
+    /**
+     * Written to a temporary file and renamed to the file of the run day, so a stopped job never leaves
+     * half a file. Earlier nights are kept, a broken state exported tonight does not replace them.
+     */
+    private void export() {
+        final File dir = getExportDir(mContext);
+        final File target = new File(dir, EXPORT_PREFIX + TimeStorage.epochDayToDate(mRunDay) + EXPORT_SUFFIX);
+        final File temp = new File(dir, target.getName() + ".tmp");
+        try {
+            TimeBackup.backup(mContext, temp);
+            if (!temp.renameTo(target)) {
+                Log.e(TAG, "unable to replace " + target);
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "export failed", e);
+            temp.delete();
+            return;
+        }
+
+        // dated names sort by day, oldest first
+        final File[] nightly = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(EXPORT_PREFIX) && file.getName().endsWith(EXPORT_SUFFIX);
+            }
+        });
+        if (nightly == null || nightly.length <= EXPORT_KEEP) {
+            return;
+        }
+        Arrays.sort(nightly);
+        for (int i = 0; i < nightly.length - EXPORT_KEEP; i++) {
+            if (!nightly[i].delete()) {
+                Log.w(TAG, "unable to delete " + nightly[i]);
+            }
+        }
+    }
+
+    private void loadCheckpoint() {
+        mRunDay = mPrefs.getLong(KEY_RUN_DAY, 0);
+        if (mRunDay == 0) {
+            mRunDay = mToday;
+        }
+        mTask = Math.min(mPrefs.getInt(KEY_TASK, TASK_REPAIR), TASK_COUNT - 1);
+        mCursor = mPrefs.getLong(KEY_CURSOR, 0);
+        mReportDays = mPrefs.getLong(KEY_REPORT_DAYS, 0);
+        mReportTotal = mPrefs.getLong(KEY_REPORT_TOTAL, 0);
+        mReportOver = mPrefs.getLong(KEY_REPORT_OVER, 0);
+        mRepaired = mPrefs.getLong(KEY_REPAIRED, 0);
+    }
+
+    /**
+     * Written synchronously, the job may be stopped right after a chunk
+     */
+    private void saveCheckpoint() {
+        mPrefs.edit()
+                .putLong(KEY_RUN_DAY, mRunDay)
+                .putInt(KEY_TASK, mTask)
+                .putLong(KEY_CURSOR, mCursor)
+                .putLong(KEY_REPORT_DAYS, mReportDays)
+                .putLong(KEY_REPORT_TOTAL, mReportTotal)
+                .putLong(KEY_REPORT_OVER, mReportOver)
+                .putLong(KEY_REPAIRED, mRepaired)
+                .commit();
+    }
+
+    /**
+     * @return where nightly exports are written, and backups copied from another device are looked up
+     */
+    public static File getExportDir(Context ctx) {
+        File dir = ctx.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = ctx.getFilesDir();
+        }
+        return dir;
+    }
+
+    /**
+     * @return nightly exports and copied backups that settings can restore from, newest first
+     */
+    public static File[] getExportFiles(Context ctx) {
+        final File[] files = getExportDir(ctx).listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(EXPORT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l > r ? -1 : (l == r ? lhs.getName().compareTo(rhs.getName()) : 1);
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return progress and latest results, for dumpsys and debug screen
+     */
+    public static String getStatus(Context ctx) {
+        SharedPreferences sp = prefs(ctx);
+        final int task = sp.getInt(KEY_TASK, TASK_REPAIR);
+        return "Maintenance : last done day " + sp.getLong(KEY_DONE_DAY, 0)
+                + (sp.getLong(KEY_RUN_DAY, 0) != 0
+                        ? ", resumes at " + TASK_NAMES[Math.min(task, TASK_COUNT - 1)] + " " + sp.getLong(KEY_CURSOR, 0)
+                        : "")
+                + ", repairs " + sp.getLong(KEY_REPAIRED, 0)
+                + "\n  " + sp.getString(KEY_RETENTION, "no retention yet")
+                + "\n  " + sp.getString(KEY_REPORT, "no report yet");
+    }
+
+    private static SharedPreferences prefs(Context ctx) {
+        return ctx.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+    }
+}
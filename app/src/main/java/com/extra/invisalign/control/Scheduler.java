@@ -0,0 +1,15 @@
+package com.extra.invisalign.control;
+
+/**
+ * Delayed events of the tracker, keyed by message code as in a Handler.
+ * Real tracker posts to its Handler, simulation runs on VirtualScheduler.
+ */
+public interface Scheduler {
+
+    void schedule(int what, long delay);
+
+    /**
+     * cancel every pending event of given code
+     */
+    void cancel(int what);
+}
@@ -0,0 +1,105 @@
+package com.extra.invisalign.control;
+
+import com.extra.invisalign.model.Clock;
+import com.extra.invisalign.model.WearSignal;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rate-limited, batched stream of WearSignal between signal sources and WearDetector.
+ * Repeats of a type within its minimum interval are dropped, the rest are handed over
+ * as one batch a while after the first of them, so the detector wakes up rarely.
+ * Recent signals are kept in a ring to be dumped as a replayable trace.
+ */
+public class SignalStream {
+
+    /**
+     * batch is delivered this long after its first signal
+     */
+    public static final long BATCH_DELAY = 1000 * 10;
+
+    /**
+     * minimum interval between two signals of the same type, indexed by type
+     */
+    private static final long[] MIN_INTERVALS = {
+            1000 * 60,      // UNLOCK
+            1000 * 60 * 5,  // MOTION
+            0,              // TILE
+    };
+
+    private static final int TRACE_SIZE = 256;
+
+    private final Scheduler mScheduler;
+    private final int mWhat;
+    private final Clock mClock;
+
+    private final long[] mLastOffered = new long[WearSignal.TYPE_COUNT];
+    private List<WearSignal> mPending = new ArrayList<WearSignal>();
+
+    private final WearSignal[] mTrace = new WearSignal[TRACE_SIZE];
+    private int mTraceCount = 0;
+
+    private long mAccepted = 0;
+    private long mDropped = 0;
+    private long mBatches = 0;
+
+    /**
+     * @param what event scheduled when a batch is ready, its handler must call {@link #drain()}
+     */
+    public SignalStream(Scheduler scheduler, int what, Clock clock) {
+        mScheduler = scheduler;
+        mWhat = what;
+        mClock = clock;
+    }
+
+    /**
+     * Called by signal sources on tracker thread
+     */
+    public void offer(int type) {
+        final long now = mClock.currentTimeMillis();
+        if (mLastOffered[type] != 0 && now - mLastOffered[type] < MIN_INTERVALS[type]) {
+            mDropped++;
+            return;
+        }
+        mLastOffered[type] = now;
+        mAccepted++;
+
+        final WearSignal signal = new WearSignal(type, now);
+        mTrace[mTraceCount++ % TRACE_SIZE] = signal;
+        if (mPending.isEmpty()) {
+            mScheduler.schedule(mWhat, BATCH_DELAY);
+        }
+        mPending.add(signal);
+    }
+
+    /**
+     * @return signals of the ready batch in time order
+     */
+    public List<WearSignal> drain() {
+        final List<WearSignal> batch = mPending;
+        mPending = new ArrayList<WearSignal>();
+        mBatches++;
+        return batch;
+    }
+
+    public void clear() {
+        mScheduler.cancel(mWhat);
+        mPending.clear();
+    }
+
+    public String getStats() {
+        return "accepted=" + mAccepted + ", dropped=" + mDropped + ", batches=" + mBatches;
+    }
+
+    /**
+     * Print recent signals oldest first, in WearSignal trace format
+     */
+    public void dumpTrace(PrintWriter pw) {
+        final int first = Math.max(0, mTraceCount - TRACE_SIZE);
+        for (int i = first; i < mTraceCount; i++) {
+            pw.println(mTrace[i % TRACE_SIZE]);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.extra.invisalign.control;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.extra.invisalign.model.AlarmTimer;
+import com.extra.invisalign.model.StateSnapshot;
+import com.extra.invisalign.model.TimeStorage;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Rebuild schedules after reboot, clock or timezone change.
+ * No UI is started. Day reset alarm is re-armed on a background thread, and the tracker
+ * service is started only if persisted state has to be moved across a day boundary.
+ */
+public class SystemEventReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "Invisalign::SystemEventReceiver";
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    @Override
+    public void onReceive(Context context, final Intent intent) {
+        Log.v(TAG, "onReceive : " + intent.getAction());
+        // exported for system broadcasts, any app may still send an explicit intent here
+        if (!isSystemEvent(intent.getAction())) {
+            Log.w(TAG, "ignored : " + intent);
+            return;
+        }
+        final Context ctx = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        sExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    // alarm is wiped on reboot and computed in old timezone otherwise
+                    AlarmTimer.setDayResetAlarmIfNeeded(ctx);
+
+                    StateSnapshot anchor = StateSnapshot.read(ctx);
+                    if (anchor.isRunning() || anchor.day != TimeStorage.todayEpochDay()) {
+                        // service restores anchor and splits it at crossed boundaries
+                        ctx.startService(new TrackerCommand(TrackerCommand.TYPE_DAY_RESET,
+                                TrackerCommand.SOURCE_SYSTEM).toIntent(ctx));
+                    }
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    private static boolean isSystemEvent(String action) {
+        return Intent.ACTION_BOOT_COMPLETED.equals(action)
+                || Intent.ACTION_TIME_CHANGED.equals(action)
+                || Intent.ACTION_TIMEZONE_CHANGED.equals(action);
+    }
+}
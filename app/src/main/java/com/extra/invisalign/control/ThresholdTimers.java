@@ -0,0 +1,171 @@
+package com.extra.invisalign.control;
+
+import android.util.Log;
+
+import com.extra.invisalign.model.HourBuckets;
+import com.extra.invisalign.model.SessionLengthSketch;
+import com.extra.invisalign.model.SettingsSnapshot;
+import com.extra.invisalign.model.StateSnapshot;
+
+/**
+ * Timers of the running session : time cap warning, initial and final alarms and forgotten check.
+ * Each is one delayed event computed from the snapshot at transition, so nothing is polled.
+ * TimeTrackerService runs them on its Scheduler, a Handler on device and VirtualScheduler in tests.
+ */
+public class ThresholdTimers {
+
+    private static final String TAG = "Invisalign::Thresholds";
+
+    /**
+     * Day total crosses time cap
+     */
+    public static final int MSG_WARN_ALARM = 2;
+
+    /**
+     * Timer to warn user every x mins since start
+     */
+    public static final int MSG_INIT_ALARM = 5;
+
+    /**
+     * Timer to warn user every x mins once over time cap
+     */
+    public static final int MSG_FINAL_ALARM = 6;
+
+    /**
+     * Running session reached the length at which it is likely forgotten
+     */
+    public static final int MSG_FORGOTTEN_CHECK = 10;
+
+    /**
+     * running session is flagged once longer than this quantile of sessions alike,
+     * and trim ends it at the median
+     */
+    private static final double FORGOTTEN_QUANTILE = 0.95;
+    private static final double TRIM_QUANTILE = 0.5;
+
+    /**
+     * never flagged before this, whatever the habits
+     */
+    public static final long MIN_FORGOTTEN = 1000 * 60 * 30;
+
+    private final Scheduler mScheduler;
+
+    private SettingsSnapshot mSettings = SettingsSnapshot.DEFAULT;
+
+    private SessionLengthSketch mSketch = new SessionLengthSketch();
+
+    /**
+     * where the running session flagged as forgotten started, 0 if none
+     */
+    private long mFlaggedStart = 0;
+    private long mTrimLength = 0;
+
+    public ThresholdTimers(Scheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Settings in effect from the next arm, timers already scheduled are left as they are
+     */
+    public void setSettings(SettingsSnapshot settings) {
+        mSettings = settings;
+    }
+
+    public void setSketch(SessionLengthSketch sketch) {
+        mSketch = sketch;
+    }
+
+    /**
+     * Schedule every threshold of given snapshot, cancelling those of the previous one
+     * @param reason tagged to running session
+     */
+    public void armAll(StateSnapshot snapshot, long now, int reason) {
+        armWarnAlarm(snapshot, now);
+        armInitialAlarm(snapshot, now);
+        armFinalAlarm(snapshot, now);
+        armForgottenCheck(snapshot, now, reason);
+    }
+
+    public void armWarnAlarm(StateSnapshot snapshot, long now) {
+        mScheduler.cancel(MSG_WARN_ALARM);
+        final long capDelay = CapPredictor.delayUntilCap(snapshot, mSettings.timeCap, now);
+        if (capDelay != CapPredictor.NOT_SCHEDULED) {
+            mScheduler.schedule(MSG_WARN_ALARM, capDelay);
+        }
+        Log.v(TAG, "armWarnAlarm : cap in " + capDelay);
+    }
+
+    public void armInitialAlarm(StateSnapshot snapshot, long now) {
+        mScheduler.cancel(MSG_INIT_ALARM);
+        if (mSettings.initialAlarm && snapshot.isRunning()) {
+            mScheduler.schedule(MSG_INIT_ALARM, CapPredictor.delayUntilInitialAlarm(snapshot, now));
+        }
+    }
+
+    public void armFinalAlarm(StateSnapshot snapshot, long now) {
+        mScheduler.cancel(MSG_FINAL_ALARM);
+        if (mSettings.finalAlarm && snapshot.isRunning()) {
+            mScheduler.schedule(MSG_FINAL_ALARM, CapPredictor.delayUntilFinalAlarm(snapshot, mSettings.timeCap, now));
+        }
+    }
+
+    /**
+     * Schedule one check at the length running session is unusual for its reason and hour
+     */
+    public void armForgottenCheck(StateSnapshot snapshot, long now, int reason) {
+        mScheduler.cancel(MSG_FORGOTTEN_CHECK);
+        if (!snapshot.isRunning() || snapshot.getWholeSessionStart() == mFlaggedStart) {
+            return;
+        }
+        final long threshold = mSketch.quantile(reason, HourBuckets.hourOf(snapshot.getWholeSessionStart()),
+                FORGOTTEN_QUANTILE);
+        if (threshold == SessionLengthSketch.UNKNOWN) {
+            return;
+        }
+        final long delay = Math.max(0, Math.max(threshold, MIN_FORGOTTEN) - snapshot.getWholeSessionTime(now));
+        Log.v(TAG, "armForgottenCheck : in " + delay);
+        mScheduler.schedule(MSG_FORGOTTEN_CHECK, delay);
+    }
+
+    /**
+     * Repeat initial alarm that just went off
+     */
+    public void onInitialAlarm() {
+        mScheduler.schedule(MSG_INIT_ALARM, CapPredictor.INITIAL_ALARM_PERIOD);
+    }
+
+    /**
+     * Repeat final alarm that just went off
+     */
+    public void onFinalAlarm() {
+        mScheduler.schedule(MSG_FINAL_ALARM, CapPredictor.FINAL_ALARM_PERIOD);
+    }
+
+    /**
+     * Flag running session as forgotten, its check is not armed again
+     * @return usual length of a session alike, trim ends it there
+     */
+    public long flagForgotten(StateSnapshot snapshot, int reason) {
+        mFlaggedStart = snapshot.getWholeSessionStart();
+        mTrimLength = mSketch.quantile(reason, HourBuckets.hourOf(mFlaggedStart), TRIM_QUANTILE);
+        return mTrimLength;
+    }
+
+    /**
+     * Flagged session is over
+     */
+    public void clearForgotten() {
+        mFlaggedStart = 0;
+    }
+
+    /**
+     * Part before the last midnight is already stored, so it is never trimmed further back.
+     * @return end of running session at its usual length, 0 if it is not the flagged one
+     */
+    public long trimEnd(StateSnapshot snapshot) {
+        if (!snapshot.isRunning() || snapshot.getWholeSessionStart() != mFlaggedStart) {
+            return 0;
+        }
+        return Math.max(mFlaggedStart + mTrimLength, snapshot.startTime);
+    }
+}
@@ -0,0 +1,150 @@
+package com.extra.invisalign.control;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.extra.invisalign.model.StateSnapshot;
+import com.extra.invisalign.model.TimeStatus;
+
+/**
+ * Schedules notification ticks while tracker is running.
+ * Ticks are aligned to the displayed second, or to the displayed minute once
+ * session is over COARSE_AFTER, and suspended while the screen is off.
+ * Turning the screen on renders immediately and resumes ticking.
+ */
+public class TickScheduler {
+
+    private static final String TAG = "Invisalign::TickScheduler";
+
+    /**
+     * Session time after which notification shows minutes only
+     */
+    public static final long COARSE_AFTER = 1000 * 60 * 60;
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 1000 * 60;
+
+    private final Context mContext;
+    private final Scheduler mScheduler;
+    private final int mWhat;
+
+    private boolean mRunning = false;
+    private boolean mScreenOn = true;
+
+    /**
+     * when ticks were suspended, to count skipped ticks
+     */
+    private long mSuspendedAt = 0;
+    private long mTickCount = 0;
+    private long mSavedWakeups = 0;
+
+    private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+        }
+    };
+
+    /**
+     * @param what event scheduled on each tick, its handler must render and call {@link #onTicked()}
+     */
+    public TickScheduler(Context ctx, Scheduler scheduler, int what) {
+        mContext = ctx;
+        mScheduler = scheduler;
+        mWhat = what;
+    }
+
+    public void register() {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(mScreenReceiver, filter);
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mScreenOn = pm.isInteractive();
+    }
+
+    public void unregister() {
+        mContext.unregisterReceiver(mScreenReceiver);
+        stop();
+    }
+
+    /**
+     * Start ticking, e.g. on transition to running
+     */
+    public void start() {
+        mRunning = true;
+        scheduleNext();
+    }
+
+    public void stop() {
+        mRunning = false;
+        mScheduler.cancel(mWhat);
+    }
+
+    /**
+     * Called by handler after rendering a tick
+     */
+    public void onTicked() {
+        mTickCount++;
+        scheduleNext();
+    }
+
+    private void setScreenOn(boolean screenOn) {
+        if (mScreenOn == screenOn) {
+            return;
+        }
+        mScreenOn = screenOn;
+        final long now = TimeStatus.getInstance().now();
+        if (!screenOn) {
+            mSuspendedAt = now;
+            mScheduler.cancel(mWhat);
+        } else {
+            if (mSuspendedAt != 0) {
+                mSavedWakeups += (now - mSuspendedAt) / SECOND;
+                mSuspendedAt = 0;
+            }
+            if (mRunning) {
+                // catch up right away, handler schedules following ticks
+                mScheduler.cancel(mWhat);
+                mScheduler.schedule(mWhat, 0);
+            }
+        }
+        Log.d(TAG, "screen " + (screenOn ? "on" : "off") + ", " + getStats());
+    }
+
+    private void scheduleNext() {
+        mScheduler.cancel(mWhat);
+        if (!mRunning || !mScreenOn) {
+            return;
+        }
+        final long delay = nextDelay(TimeStatus.getInstance().getSnapshot(), TimeStatus.getInstance().now());
+        if (delay > SECOND) {
+            mSavedWakeups += delay / SECOND - 1;
+        }
+        mScheduler.schedule(mWhat, delay);
+    }
+
+    /**
+     * @return delay until displayed session time changes
+     */
+    static long nextDelay(StateSnapshot snapshot, long now) {
+        final long session = snapshot.getSessionTime(now);
+        final long unit = isCoarse(session) ? MINUTE : SECOND;
+        return unit - (session % unit);
+    }
+
+    /**
+     * @return true if given session time is displayed without seconds
+     */
+    public static boolean isCoarse(long sessionTime) {
+        return sessionTime >= COARSE_AFTER;
+    }
+
+    public String getStats() {
+        return "ticks=" + mTickCount + ", wakeupsSaved=" + mSavedWakeups;
+    }
+}
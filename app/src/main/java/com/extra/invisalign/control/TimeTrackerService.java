@@ -6,22 +6,40 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.extra.invisalign.model.AlarmTimer;
+import com.extra.invisalign.model.ComplianceForecaster;
+import com.extra.invisalign.model.DayRollover;
+import com.extra.invisalign.model.HourBuckets;
+import com.extra.invisalign.model.MaintenanceTimer;
+import com.extra.invisalign.model.SessionLengthSketch;
+import com.extra.invisalign.model.SettingsSnapshot;
+import com.extra.invisalign.model.StateSnapshot;
 import com.extra.invisalign.model.TimeStatus;
 import com.extra.invisalign.model.TimeStorage;
+import com.extra.invisalign.model.WearDetector;
+import com.extra.invisalign.model.WearSignal;
 import com.extra.invisalign.view.NotificationView;
 import com.extra.invisalign.view.SettingFragment;
-import com.extra.invisalign.view.TimeLimitPreference;
+import com.extra.invisalign.view.TrackerTileService;
+import com.extra.invisalign.view.TrackerWidgetProvider;
 
 import java.beans.PropertyChangeEvent;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.beans.PropertyChangeListener;
 
+import gil.extra.invisaligntracker.BuildConfig;
 import gil.extra.invisaligntracker.R;
 
 public class TimeTrackerService extends Service implements PropertyChangeListener {
@@ -32,7 +50,6 @@ public class TimeTrackerService extends Service implements PropertyChangeListene
      * Timer to update notification when time starts
      */
     private static final int MSG_NOTI_UPDATE = 0;
-    private static final long DELAY_NOTI_UPDATE = 1000;
 
     /**
      * Timer to backup current total time spent
@@ -40,147 +57,586 @@ public class TimeTrackerService extends Service implements PropertyChangeListene
     private static final int MSG_BACKUP_TIME = 1;
     private static final long DELAY_BACKUP_TIME = 1000 * 60;
 
+    // 2, 5, 6 and 10 are timers of ThresholdTimers
+
+    /**
+     * TrackerCommand received through onStartCommand, applied in order
+     */
+    private static final int MSG_COMMAND = 3;
+
     /**
-     * Timer to warn user every x mins since start
+     * Batch of wear signals is ready for WearDetector
      */
-    private static final int MSG_WARN_ALARM = 2;
+    private static final int MSG_SIGNAL_BATCH = 7;
 
-    public static final int MSG_NOTI_VIEW_STATE_CHANGE = 3;
-    public static final int MSG_ALARM_DAY_RESET = 4;
+    /**
+     * Tick of screens subscribed through TrackerBinder
+     */
+    private static final int MSG_UI_TICK = 8;
+
+    /**
+     * Settings changed, applied once a burst of changes settles
+     */
+    private static final int MSG_SETTINGS_CHANGED = 9;
+    private static final long SETTINGS_DEBOUNCE = 300;
+
+    /**
+     * Forecaster rebuilt from history is handed over from the rebuild thread
+     */
+    private static final int MSG_FORECASTER_REBUILT = 11;
+
+    /**
+     * Session length sketch rebuilt from history is handed over from the rebuild thread
+     */
+    private static final int MSG_SKETCH_REBUILT = 12;
+
+    /**
+     * one-time rebuilds of statistics read the whole history, so they never run on main thread
+     */
+    private static final Executor sRebuildExecutor = Executors.newSingleThreadExecutor();
 
     private Handler mHanlder = new Handler() {
 
         public void handleMessage(Message msg) {
-            Log.d(TAG, "Message Received : " + msg.what);
-            switch (msg.what) {
-                case MSG_NOTI_UPDATE:
-                    mHanlder.sendEmptyMessageDelayed(MSG_NOTI_UPDATE, DELAY_NOTI_UPDATE);
-                    mNotiControler.updateNotification();
-                    break;
-                case MSG_BACKUP_TIME:
-                    mHanlder.sendEmptyMessageDelayed(MSG_BACKUP_TIME, DELAY_BACKUP_TIME);
-                    TimeStorage.setLongToPreference(
-                            getApplicationContext(),
-                            TimeStorage.TIME_SPENT_FOR_SINGLE_DAY,
-                            TimeStatus.getInstance().getTotalTimeInAday());
-                    break;
-                case MSG_WARN_ALARM:
-                    break;
-                case MSG_NOTI_VIEW_STATE_CHANGE:
-                    Log.v(TAG, "STATE_CHANGED");
-                    if (TimeStatus.getInstance().getCurrentState() == TimeStatus.STATE_RUNNING) {
-                        // delegate view change action to TimeStatus
-                        TimeStatus.getInstance().stop();
-                        // Store current total time spent in DB
-                        TimeStorage.getInstance(TimeTrackerService.this)
-                                .addOrUpdateTime(TimeStatus.getInstance().getTotalTimeInAday());
-                    } else {
-                        // delegate view change action to TimeStatus
-                        TimeStatus.getInstance().start();
-                    }
-                    break;
-                case MSG_ALARM_DAY_RESET:
-                    Log.v(TAG, "ALARM_DAY_RESET");
-                    // Set next day alarm.
-                    // NOTE : it will handle daylight saving or timezone change
-                    AlarmTimer.setDayResetAlarmIfNeeded(getApplicationContext());
-
-                    // Store final total time spent in DB
-                    // and reset total time and keep continuing if in progress at this
-                    // moment
-                    final long totalTime = TimeStatus.getInstance().dayReset();
-                    TimeStorage.getInstance(TimeTrackerService.this).addOrUpdateTime(totalTime);
-
-                    // Update view as total time is reset.
-                    mNotiControler.updateNotification();
-                    break;
-            }
+            onMessage(msg.what, msg.obj);
         }
     };
 
+    /**
+     * Handle a message of the tracker thread, also delivered straight from VirtualScheduler in tests
+     */
+    void onMessage(int what, Object obj) {
+        Log.d(TAG, "Message Received : " + what);
+        final long begin = TrackerMetrics.begin();
+        TrackerMetrics.message(what);
+        switch (what) {
+            case MSG_COMMAND:
+                applyCommand((TrackerCommand) obj);
+                break;
+            case MSG_FORECASTER_REBUILT:
+                onForecasterRebuilt((ComplianceForecaster) obj);
+                break;
+            case MSG_SKETCH_REBUILT:
+                onSketchRebuilt((SessionLengthSketch) obj);
+                break;
+            case MSG_NOTI_UPDATE:
+                mNotiControler.updateNotification();
+                mTickScheduler.onTicked();
+                break;
+            case MSG_BACKUP_TIME:
+                mScheduler.schedule(MSG_BACKUP_TIME, DELAY_BACKUP_TIME);
+                TimeStorage.setLongToPreference(
+                        getApplicationContext(),
+                        TimeStorage.TIME_SPENT_FOR_SINGLE_DAY,
+                        TimeStatus.getInstance().getTotalTimeInAday());
+                break;
+            case ThresholdTimers.MSG_WARN_ALARM:
+                TrackerMetrics.increment(TrackerMetrics.COUNTER_ALARM_WAKEUP);
+                if (mNotiControler.setOverCap(true)) {
+                    mNotiControler.updateNotification();
+                }
+                break;
+            case ThresholdTimers.MSG_INIT_ALARM:
+                TrackerMetrics.increment(TrackerMetrics.COUNTER_ALARM_WAKEUP);
+                mNotiControler.alarmNotification(NotificationView.ID_NOTI_INIT,
+                        R.string.noti_message_init_title, R.string.noti_message_init_text);
+                mThresholds.onInitialAlarm();
+                break;
+            case MSG_SETTINGS_CHANGED:
+                applySettings(SettingsSnapshot.load(this));
+                break;
+            case ThresholdTimers.MSG_FORGOTTEN_CHECK:
+                onForgottenCheck();
+                break;
+            case MSG_UI_TICK:
+                mBinder.onTick();
+                break;
+            case MSG_SIGNAL_BATCH:
+                onSignalBatch(mSignalStream.drain());
+                break;
+            case ThresholdTimers.MSG_FINAL_ALARM:
+                TrackerMetrics.increment(TrackerMetrics.COUNTER_ALARM_WAKEUP);
+                mNotiControler.alarmNotification(NotificationView.ID_NOTI_FINAL,
+                        R.string.noti_message_final_title, R.string.noti_message_final_text);
+                mThresholds.onFinalAlarm();
+                break;
+        }
+        TrackerMetrics.end(TrackerMetrics.OP_HANDLE_MESSAGE, begin);
+    }
+
     private NotificationView mNotiControler;
 
+    private TickScheduler mTickScheduler;
+
+    private SignalStream mSignalStream;
+    private WearSignalSource mWearSource;
+    private final WearDetector mWearDetector = new WearDetector();
+
+    /**
+     * settings tracker is configured with
+     */
+    private SettingsSnapshot mSettings = SettingsSnapshot.DEFAULT;
+
     private Object mLockNotiUpdate = new Object();
 
+    /**
+     * last applied command per type, to drop duplicates in a burst
+     */
+    private final TrackerCommand[] mLastCommands = new TrackerCommand[TrackerCommand.TYPE_COUNT];
+
+    /**
+     * time of the last transition applied, no later command may move before it
+     */
+    private long mLastTransition = 0;
+
+    /**
+     * reason tagged to running session, written when it closes
+     */
+    private int mPendingReason = TimeStorage.Session.REASON_NONE;
+
+    /**
+     * null while rebuilt from history, projection is off until then
+     */
+    private ComplianceForecaster mForecaster;
+
+    /**
+     * sessions stored since start, a rebuild that began before the last of them may have missed it
+     */
+    private int mStoredSessions = 0;
+    private int mForecasterRebuildFrom;
+
+    /**
+     * null while rebuilt from history, no session is flagged as forgotten until then
+     */
+    private SessionLengthSketch mSketch;
+    private int mSketchRebuildFrom;
+
+    /**
+     * a rebuild may be handed over after onDestroy, it must not arm timers then
+     */
+    private boolean mDestroyed = false;
+
+    /**
+     * projection of today is over time cap, to warn only when it crosses
+     */
+    private boolean mProjectedOver = false;
+
+
     /**
      * Listen to Preference Changes.
+     * Bursts, e.g. a dialog writing several keys or a restore, are applied once
+     * after SETTINGS_DEBOUNCE.
      */
     private SharedPreferences.OnSharedPreferenceChangeListener mPreferenceChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
 
         @Override
         public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
             Log.v(TAG, "onSharedPreferenceChanged action : " + key);
-            switch (key) {
-                case SettingFragment.KEY_TIMECAP:
-                    long period = sp.getLong(SettingFragment.KEY_CHANGE_UPDATE,
-                            TimeLimitPreference.DEFAULT_TIME_CAP_VALUE);
-                    mNotiControler.setTimeCap(period);
-                    mNotiControler.updateNotification();
-                    break;
-                case SettingFragment.KEY_INITIAL_ALARM:
-                    if (TimeStatus.getInstance().getCurrentState() == TimeStatus.STATE_RUNNING) {
-                        boolean enable = sp.getBoolean(SettingFragment.KEY_CHANGE_UPDATE, true);
-                        mHanlder.removeMessages(MSG_INIT_ALARM);
-                        if (enable) {
-                            mHanlder.sendEmptyMessageDelayed(MSG_INIT_ALARM, DELAY_INIT_ALARM);
-                        }
-                    }
-                    break;
-                case SettingFragment.KEY_FINAL_ALARM:
-                    if (TimeStatus.getInstance().getCurrentState() == TimeStatus.STATE_RUNNING) {
-                        boolean enable = sp.getBoolean(SettingFragment.KEY_CHANGE_UPDATE, true);
-                        mHanlder.removeMessages(MSG_FINAL_ALARM);
-                        if (enable) {
-                            mHanlder.sendEmptyMessageDelayed(MSG_FINAL_ALARM, DELAY_FINAL_ALARM);
-                        }
-                    }
-                    break;
-                case SettingFragment.KEY_CLOCK_NOTIFICATION:
-                    boolean enable = sp.getBoolean(SettingFragment.KEY_CHANGE_UPDATE, true);
-                    mNotiControler.setEnable(enable);
-                    if (!enable) {
-                        TimeStatus.getInstance().stop();
-                    }
-                    break;
-                default:
-                    break;
-            }
+            mScheduler.cancel(MSG_SETTINGS_CHANGED);
+            mScheduler.schedule(MSG_SETTINGS_CHANGED, SETTINGS_DEBOUNCE);
         }
     };
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        Log.v(TAG, "onStartCommand");
+        TrackerCommand command = TrackerCommand.fromIntent(intent);
+        if (command != null) {
+            mHanlder.obtainMessage(MSG_COMMAND, command).sendToTarget();
+        }
+        // restart with null intent if killed, state is rebuilt from persisted snapshot in onCreate
+        return START_STICKY;
+    }
+
     /**
-     * @param flag MSG flag used in handler
-     * @return
+     * Apply a command on tracker thread, dropping duplicates of a burst
      */
-    public static Intent createServiceIntent(Context ctx, int flag) {
-        return new Intent(ctx, TimeTrackerService.class).setFlags(flag);
+    private void applyCommand(TrackerCommand command) {
+        if (command.isDuplicateOf(mLastCommands[command.type])) {
+            Log.d(TAG, "drop duplicate " + command);
+            TrackerMetrics.increment(TrackerMetrics.COUNTER_COMMAND_DROPPED);
+            return;
+        }
+        mLastCommands[command.type] = command;
+        if (command.source == TrackerCommand.SOURCE_ALARM) {
+            TrackerMetrics.increment(TrackerMetrics.COUNTER_ALARM_WAKEUP);
+        } else if (command.source == TrackerCommand.SOURCE_TILE && mSettings.isWearDetectionEnabled()) {
+            // explicit tap, detector stays quiet for a while
+            mSignalStream.offer(WearSignal.TYPE_TILE);
+        }
+
+        switch (command.type) {
+            case TrackerCommand.TYPE_TOGGLE:
+                // transition happens when it was asked for, not when the queue got to it
+                toggleStateAt(Math.min(command.timestamp, TimeStatus.getInstance().now()));
+                break;
+            case TrackerCommand.TYPE_DAY_RESET:
+                resyncDay();
+                break;
+            case TrackerCommand.TYPE_TAG:
+                tagSession(command.reason);
+                break;
+            case TrackerCommand.TYPE_TRIM:
+                trimSession();
+                break;
+        }
+
+        final long latency = SystemClock.elapsedRealtime() - command.receivedAt;
+        TrackerMetrics.record(TrackerMetrics.commandOp(command.type), latency * 1000);
+        Log.d(TAG, command + " applied in " + latency + "ms");
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.v(TAG, "onStartCommand");
-        mHanlder.sendEmptyMessage(intent.getFlags());
-        return super.onStartCommand(intent, flags, startId);
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("State: " + TimeStatus.getInstance().getSnapshot());
+        pw.println("Ticks: " + mTickScheduler.getStats());
+        pw.println("Subscribers: " + mBinder.getListenerCount());
+        pw.println("Settings: " + mSettings);
+        pw.println(MaintenanceTasks.getStatus(this));
+        pw.println("Session lengths: " + (mSketch != null ? mSketch : "rebuilding"));
+        pw.println("Forecast: " + (mForecaster != null ? mForecaster : "rebuilding")
+                + (mProjectedOver ? ", over cap" : ""));
+        pw.println("Wear detection: " + mSignalStream.getStats());
+        mSignalStream.dumpTrace(pw);
+        TrackerMetrics.dump(pw);
+    }
+
+    private void toggleState() {
+        toggleStateAt(TimeStatus.getInstance().now());
+    }
+
+    /**
+     * @param now time of transition, earlier than current time when trimming or applying a queued command.
+     * It never goes back past the previous transition, so no time is counted twice.
+     */
+    private void toggleStateAt(long now) {
+        Log.v(TAG, "STATE_CHANGED");
+        // day reset may have been missed, e.g. alarm delayed or clock changed
+        if (TimeStatus.getInstance().getSnapshot().day < TimeStorage.todayEpochDay()) {
+            resyncDay();
+        }
+        final StateSnapshot current = TimeStatus.getInstance().getSnapshot();
+        now = Math.max(now, current.isRunning() ? current.startTime : mLastTransition);
+        if (current.day != 0) {
+            // nor before the day totals are counted in
+            now = Math.max(now, TimeStorage.startOfEpochDay(current.day));
+        }
+        mLastTransition = now;
+
+        // delegate view change action to TimeStatus as one atomic transition
+        final int reason = mPendingReason;
+        mPendingReason = TimeStorage.Session.REASON_NONE;
+
+        // projection is refreshed before the transition, so that its notification update shows it
+        if (current.isRunning()) {
+            if (mForecaster != null) {
+                mForecaster.addSession(current.startTime, now);
+            }
+            if (mSketch != null) {
+                // whole session, also when split at midnight
+                mSketch.add(reason, HourBuckets.hourOf(current.getWholeSessionStart()),
+                        current.getWholeSessionTime(now));
+            }
+        }
+        updateForecast(current, now, true);
+
+        final StateSnapshot prev = TimeStatus.getInstance().toggle(now);
+        if (prev.isRunning()) {
+            // Store finished session with its reason and current total time spent in one transaction
+            TimeStorage.getInstance(this).closeSession(prev.startTime, now, reason, prev.day, prev.getDayTotal(now));
+            mStoredSessions++;
+            if (mForecaster != null) {
+                mForecaster.save(this);
+            }
+            if (mSketch != null) {
+                mSketch.save(this);
+            }
+        }
+    }
+
+    private void onForgottenCheck() {
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        if (!snapshot.isRunning()) {
+            return;
+        }
+        final long now = TimeStatus.getInstance().now();
+        final long trimLength = mThresholds.flagForgotten(snapshot, mPendingReason);
+        Log.d(TAG, "session running for " + TimeStatus.msToHourMin(snapshot.getWholeSessionTime(now))
+                + ", usual " + TimeStatus.msToHourMin(trimLength));
+        mNotiControler.forgottenNotification(snapshot.getWholeSessionTime(now), trimLength);
+    }
+
+    /**
+     * End flagged session at its usual length, as if stopped then.
+     */
+    private void trimSession() {
+        final long end = mThresholds.trimEnd(TimeStatus.getInstance().getSnapshot());
+        if (end == 0) {
+            Log.d(TAG, "trim : flagged session is over");
+            return;
+        }
+        Log.d(TAG, "trim : end at " + end);
+        toggleStateAt(Math.min(end, TimeStatus.getInstance().now()));
+    }
+
+    /**
+     * Read history into a new forecaster off main thread, projection stays off until it is handed over
+     */
+    private void rebuildForecaster() {
+        final Context ctx = getApplicationContext();
+        final long today = TimeStorage.todayEpochDay();
+        mForecasterRebuildFrom = mStoredSessions;
+        mRebuildExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final ComplianceForecaster forecaster = new ComplianceForecaster();
+                forecaster.rebuild(TimeStorage.getInstance(ctx), today);
+                mHanlder.obtainMessage(MSG_FORECASTER_REBUILT, forecaster).sendToTarget();
+            }
+        });
+    }
+
+    private void onForecasterRebuilt(ComplianceForecaster forecaster) {
+        if (mStoredSessions != mForecasterRebuildFrom) {
+            // sessions stored meanwhile may be missing from what was read
+            rebuildForecaster();
+            return;
+        }
+        mForecaster = forecaster;
+        mForecaster.save(this);
+        // shown with the next notification update
+        updateForecast(TimeStatus.getInstance().getSnapshot(), TimeStatus.getInstance().now(), false);
+    }
+
+    /**
+     * Read history into a new sketch off main thread, forgotten sessions are not flagged until it is handed over
+     */
+    private void rebuildSketch() {
+        final Context ctx = getApplicationContext();
+        final long today = TimeStorage.todayEpochDay();
+        mSketchRebuildFrom = mStoredSessions;
+        mRebuildExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final SessionLengthSketch sketch = new SessionLengthSketch();
+                sketch.rebuild(TimeStorage.getInstance(ctx), today);
+                mHanlder.obtainMessage(MSG_SKETCH_REBUILT, sketch).sendToTarget();
+            }
+        });
+    }
+
+    private void onSketchRebuilt(SessionLengthSketch sketch) {
+        if (mStoredSessions != mSketchRebuildFrom) {
+            // sessions stored meanwhile may be missing from what was read
+            rebuildSketch();
+            return;
+        }
+        mSketch = sketch;
+        mSketch.save(this);
+        if (mDestroyed) {
+            return;
+        }
+        mThresholds.setSketch(mSketch);
+        // running session gets its forgotten check
+        if (scheduleThresholds()) {
+            mNotiControler.updateNotification();
+        }
+    }
+
+    /**
+     * Project today's final total and warn once when it crosses time cap.
+     * Only called on transitions, day reset and settings change, never on a timer.
+     * @param warn false to only refresh shown projection
+     */
+    private void updateForecast(StateSnapshot snapshot, long now, boolean warn) {
+        if (mForecaster == null) {
+            mNotiControler.setProjection(ComplianceForecaster.UNKNOWN);
+            return;
+        }
+        final long projected = mForecaster.project(snapshot.getDayTotal(now), now);
+        mNotiControler.setProjection(projected);
+        if (!warn) {
+            return;
+        }
+        final boolean over = projected != ComplianceForecaster.UNKNOWN && projected > mSettings.timeCap;
+        if (over && !mProjectedOver) {
+            Log.d(TAG, "projected " + TimeStatus.msToHourMin(projected) + " over time cap");
+            mNotiControler.alarmNotification(NotificationView.ID_NOTI_FORECAST,
+                    R.string.noti_message_forecast_title, R.string.noti_message_forecast_text);
+        }
+        mProjectedOver = over;
+    }
+
+    /**
+     * Reason of running session is written when it closes, otherwise latest session is tagged
+     */
+    private void tagSession(int reason) {
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        if (snapshot.isRunning()) {
+            mPendingReason = reason;
+            mThresholds.armForgottenCheck(snapshot, TimeStatus.getInstance().now(), mPendingReason);
+        } else {
+            TimeStorage.getInstance(this).tagLastSession(reason);
+        }
+    }
+
+    /**
+     * Move totals to today, on day reset alarm, boot or time/timezone change.
+     * Running session is split exactly at each local midnight it crossed,
+     * and only days between the last snapshot and today are touched.
+     */
+    private void resyncDay() {
+        Log.v(TAG, "ALARM_DAY_RESET");
+        // Set next day alarm.
+        // NOTE : it will handle daylight saving or timezone change
+        AlarmTimer.setDayResetAlarmIfNeeded(mAlarms, TimeStatus.getInstance().now());
+
+        final long today = TimeStorage.todayEpochDay();
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        if (snapshot.day == today || snapshot == StateSnapshot.EMPTY) {
+            // clock moved within the day, only thresholds depend on it
+            if (scheduleThresholds()) {
+                mNotiControler.updateNotification();
+            }
+            return;
+        }
+
+        // Store final total time spent of each passed day in DB
+        // and reset total time and keep continuing if in progress at this moment
+        final TimeStorage storage = TimeStorage.getInstance(this);
+        final long newStart = DayRollover.apply(snapshot, today, TimeStatus.getInstance().now(),
+                new DayRollover.Sink() {
+
+                    @Override
+                    public void onSession(long start, long end) {
+                        storage.addSession(start, end, mPendingReason);
+                        mStoredSessions++;
+                        if (mForecaster != null) {
+                            mForecaster.addSession(start, end);
+                        }
+                    }
+
+                    @Override
+                    public void onDayTotal(long day, long total) {
+                        storage.addOrUpdateTime(day, total);
+                    }
+                });
+        TimeStatus.getInstance().dayReset(newStart, today);
+
+        // a new day is not warned about until its first transition
+        mProjectedOver = false;
+        updateForecast(TimeStatus.getInstance().getSnapshot(), TimeStatus.getInstance().now(), false);
+        if (mForecaster != null) {
+            mForecaster.save(this);
+        }
+        mNotiControler.cancelAlarmNotification(NotificationView.ID_NOTI_FORECAST);
+
+        // Update view as total time is reset.
+        scheduleThresholds();
+        mNotiControler.updateNotification();
+        publishSnapshot();
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
+    }
+
+    /**
+     * All timed messages go through this, so that tracker logic can also run on virtual time
+     */
+    private final Scheduler mScheduler;
+
+    private final TrackerBinder mBinder;
+
+    private final ThresholdTimers mThresholds;
+
+    /**
+     * Day reset goes through AlarmManager, it has to wake the device
+     */
+    private Scheduler mAlarms;
+
+    /**
+     * Rebuilds of statistics are handed over through the handler, so tests may run them on virtual time
+     */
+    private final Executor mRebuildExecutor;
+
+    public TimeTrackerService() {
+        this(null, null, null);
+    }
+
+    /**
+     * @param scheduler timed messages, null for the Handler
+     * @param alarms day reset alarm, null for AlarmManager
+     * @param rebuilds rebuilds of statistics from history, null for a background thread
+     */
+    TimeTrackerService(Scheduler scheduler, Scheduler alarms, Executor rebuilds) {
+        mScheduler = scheduler != null ? scheduler : new HandlerScheduler(mHanlder);
+        mBinder = new TrackerBinder(mScheduler, MSG_UI_TICK);
+        mThresholds = new ThresholdTimers(mScheduler);
+        mAlarms = alarms;
+        mRebuildExecutor = rebuilds != null ? rebuilds : sRebuildExecutor;
     }
 
     @Override
     public void onCreate() {
         Log.v(TAG, "onCreate");
+        final long begin = TrackerMetrics.begin();
+
         // create time control notification
         mNotiControler = new NotificationView(this);
-        mNotiControler.updateNotification();
+        mTickScheduler = new TickScheduler(this, mScheduler, MSG_NOTI_UPDATE);
+        mTickScheduler.register();
+        mSignalStream = new SignalStream(mScheduler, MSG_SIGNAL_BATCH, TimeStatus.getInstance().getClock());
+        if (mAlarms == null) {
+            mAlarms = new AlarmScheduler(this, TimeStatus.getInstance().getClock());
+        }
+        mSettings = SettingsSnapshot.load(this);
+        mThresholds.setSettings(mSettings);
+        setWearDetection(mSettings.isWearDetectionEnabled());
+        mForecaster = ComplianceForecaster.load(this);
+        if (mForecaster == null) {
+            // first run with forecaster, history is read once and then kept up to date
+            rebuildForecaster();
+        }
+        mSketch = SessionLengthSketch.load(this);
+        if (mSketch == null) {
+            // thresholds keep their empty sketch meanwhile, which never flags
+            rebuildSketch();
+        } else {
+            mThresholds.setSketch(mSketch);
+        }
 
         // day reset at 12:00am
-        AlarmTimer.setDayResetAlarmIfNeeded(getApplicationContext());
+        AlarmTimer.setDayResetAlarmIfNeeded(mAlarms, TimeStatus.getInstance().now());
+        // history upkeep runs apart from tracker, when device is idle and charging
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            MaintenanceTimer.setMaintenanceJobIfNeeded(getApplicationContext());
+        }
 
         // register observer to listen to time state change
         TimeStatus.getInstance().addObserver(this);
 
+        updateForecast(TimeStatus.getInstance().getSnapshot(), TimeStatus.getInstance().now(), false);
+
+        // Rebuild state from last anchor if process was killed.
+        // Observer above reschedules timers and updates views as for a normal transition.
+        StateSnapshot anchor = StateSnapshot.load(this);
+        if (TimeStatus.getInstance().getSnapshot() == StateSnapshot.EMPTY && anchor != StateSnapshot.EMPTY) {
+            Log.v(TAG, "restore " + anchor);
+            TimeStatus.getInstance().restore(anchor);
+        } else {
+            mNotiControler.updateNotification();
+        }
+        // day reset alarm may have died with the process, midnights passed meanwhile are split now
+        final StateSnapshot restored = TimeStatus.getInstance().getSnapshot();
+        if (restored != StateSnapshot.EMPTY && restored.day < TimeStorage.todayEpochDay()) {
+            resyncDay();
+        }
+        TrackerMetrics.end(TrackerMetrics.OP_RESTORE, begin);
+
         // Register Preference Changed
         SharedPreferences sp = getBaseContext().getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME, Context.MODE_PRIVATE);
         sp.registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
@@ -191,13 +647,30 @@ public class TimeTrackerService extends Service implements PropertyChangeListene
     @Override
     public void onDestroy() {
         Log.v(TAG, "onDestroy");
-        TimeStatus.getInstance().stop();
+        mDestroyed = true;
+        // Running session is kept, it is persisted as anchor and resumed on restart
+        TimeStatus.getInstance().removeObserver(this);
+        TimeStatus.getInstance().getSnapshot().save(this);
 
         // empty handler queue
-        mHanlder.removeMessages(0, null);
+        mTickScheduler.unregister();
+        if (mWearSource != null) {
+            mWearSource.unregister();
+        }
+        mHanlder.removeCallbacksAndMessages(null);
 
-        // Store latest time info
-        TimeStorage.getInstance(this).addOrUpdateTime(TimeStatus.getInstance().getTotalTimeInAday());
+        // Store latest time info on the day it belongs to, which may have passed if day reset is late.
+        // Time after its midnight is counted in when the next day reset splits the session.
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        if (snapshot != StateSnapshot.EMPTY) {
+            final long now = Math.min(TimeStatus.getInstance().now(), TimeStorage.startOfEpochDay(snapshot.day + 1));
+            TimeStorage.getInstance(this).addOrUpdateTime(snapshot.day, snapshot.getDayTotal(now));
+        }
+
+        // Regressions in cost show up in log of every debug session
+        if (BuildConfig.DEBUG && !TrackerMetrics.checkBudgets(null)) {
+            Log.e(TAG, "performance budget exceeded, see dumpsys for details");
+        }
 
         // Unregister observer for preference change
         SharedPreferences sp = getBaseContext().getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME, Context.MODE_PRIVATE);
@@ -208,18 +681,144 @@ public class TimeTrackerService extends Service implements PropertyChangeListene
     public void propertyChange(PropertyChangeEvent event) {
         final int state = (int) event.getNewValue();
         synchronized (mLockNotiUpdate) {
+            // pending suggestion is answered or outdated by any transition
+            mNotiControler.cancelAlarmNotification(NotificationView.ID_NOTI_SUGGEST);
             switch (state) {
                 case TimeStatus.STATE_STOPPED:
-                    mHanlder.removeMessages(0, null);
+                    mThresholds.clearForgotten();
+                    mNotiControler.cancelAlarmNotification(NotificationView.ID_NOTI_FORGOTTEN);
+                    mTickScheduler.stop();
+                    mScheduler.cancel(MSG_BACKUP_TIME);
+                    scheduleThresholds();
                     mNotiControler.updateNotification();
                     mNotiControler.cancelAlarmNotification(NotificationView.ID_NOTI_FINAL);
                     mNotiControler.cancelAlarmNotification(NotificationView.ID_NOTI_INIT);
                     break;
                 case TimeStatus.STATE_RUNNING:
-                    mHanlder.sendEmptyMessageDelayed(MSG_BACKUP_TIME, DELAY_BACKUP_TIME);
-                    mHanlder.sendEmptyMessageDelayed(MSG_NOTI_UPDATE, DELAY_NOTI_UPDATE);
+                    mScheduler.schedule(MSG_BACKUP_TIME, DELAY_BACKUP_TIME);
+                    mTickScheduler.start();
+                    scheduleThresholds();
+                    mNotiControler.updateNotification();
                     break;
             }
         }
+        publishSnapshot();
+    }
+
+    /**
+     * Schedule each threshold as one timed message computed from current snapshot,
+     * so crossing time cap or alarm period never needs to be polled.
+     * @return true if notification needs to be refreshed as over cap state changed
+     */
+    private boolean scheduleThresholds() {
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        final long now = TimeStatus.getInstance().now();
+
+        mThresholds.armAll(snapshot, now, mPendingReason);
+        return mNotiControler.setOverCap(CapPredictor.isOverCap(snapshot, mSettings.timeCap, now));
+    }
+
+    private void setWearDetection(boolean enable) {
+        Log.v(TAG, "wear detection : " + enable);
+        if (enable) {
+            // significant motion trigger sensor needs API 18, source is created only where it loads
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Log.d(TAG, "wear detection needs API 18");
+                return;
+            }
+            if (mWearSource == null) {
+                mWearSource = new WearSignalSource(this, mSignalStream);
+            }
+            mWearSource.register();
+        } else if (mWearSource != null) {
+            mWearSource.unregister();
+        }
+    }
+
+    /**
+     * Reconfigure only what differs from settings applied so far
+     */
+    private void applySettings(SettingsSnapshot settings) {
+        final int changes = settings.diff(mSettings);
+        Log.v(TAG, "applySettings : " + settings + ", changes " + Integer.toBinaryString(changes));
+        mSettings = settings;
+        mThresholds.setSettings(settings);
+        if (changes == 0) {
+            return;
+        }
+
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        final long now = TimeStatus.getInstance().now();
+        boolean refresh = false;
+        if ((changes & SettingsSnapshot.CHANGED_TIME_CAP) != 0) {
+            mNotiControler.setTimeCap(settings.timeCap);
+            mThresholds.armWarnAlarm(snapshot, now);
+            mThresholds.armFinalAlarm(snapshot, now);
+            // cap colour
+            refresh = mNotiControler.setOverCap(CapPredictor.isOverCap(snapshot, settings.timeCap, now));
+            updateForecast(snapshot, now, true);
+        } else if ((changes & SettingsSnapshot.CHANGED_FINAL_ALARM) != 0) {
+            mThresholds.armFinalAlarm(snapshot, now);
+        }
+        if ((changes & SettingsSnapshot.CHANGED_INITIAL_ALARM) != 0) {
+            mThresholds.armInitialAlarm(snapshot, now);
+        }
+        if ((changes & SettingsSnapshot.CHANGED_WEAR_DETECTION) != 0) {
+            setWearDetection(settings.isWearDetectionEnabled());
+        }
+        if ((changes & SettingsSnapshot.CHANGED_CLOCK_NOTIFICATION) != 0) {
+            // foreground notification is shown or removed here
+            mNotiControler.setEnable(settings.clockNotification);
+            if (!settings.clockNotification && snapshot.isRunning()) {
+                // stopped as by a tap, so the session is stored and its timers are cancelled
+                toggleStateAt(now);
+            }
+            refresh = false;
+        }
+        if (refresh) {
+            mNotiControler.updateNotification();
+        }
+    }
+
+    /**
+     * Run detector over a batch and suggest or apply the transition it guesses
+     */
+    private void onSignalBatch(List<WearSignal> batch) {
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        final int suggestion = mWearDetector.onBatch(batch, snapshot.isRunning(), snapshot.startTime);
+        if (suggestion == WearDetector.SUGGEST_NONE) {
+            return;
+        }
+        Log.d(TAG, "wear detection suggests " + (suggestion == WearDetector.SUGGEST_START ? "start" : "stop"));
+        if (mSettings.isWearDetectionAuto()) {
+            // already on tracker thread and checked against current state
+            toggleState();
+            if (suggestion == WearDetector.SUGGEST_START) {
+                // start is only suggested at meal time
+                mPendingReason = TimeStorage.Session.REASON_MEAL;
+                mThresholds.armForgottenCheck(TimeStatus.getInstance().getSnapshot(), TimeStatus.getInstance().now(),
+                        mPendingReason);
+            }
+        } else if (suggestion == WearDetector.SUGGEST_START) {
+            mNotiControler.suggestNotification(R.string.noti_message_suggest_start_title,
+                    R.string.noti_message_suggest_start_text);
+        } else {
+            mNotiControler.suggestNotification(R.string.noti_message_suggest_stop_title,
+                    R.string.noti_message_suggest_stop_text);
+        }
+    }
+
+    /**
+     * Share latest state with widget and other readers outside of this service.
+     */
+    private void publishSnapshot() {
+        StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        snapshot.save(this);
+        TrackerWidgetProvider.updateAll(this, snapshot);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // tile class does not load before N, its base class is missing
+            TrackerTileService.requestUpdate(this);
+        }
+        mBinder.dispatchStateChanged(snapshot);
     }
 }
\ No newline at end of file
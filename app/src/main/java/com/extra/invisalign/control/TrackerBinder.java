@@ -0,0 +1,103 @@
+package com.extra.invisalign.control;
+
+import android.os.Binder;
+
+import com.extra.invisalign.model.StateSnapshot;
+import com.extra.invisalign.model.TimeStatus;
+
+import java.util.ArrayList;
+
+/**
+ * Local binder of TimeTrackerService. Screens subscribe a TrackerListener instead of
+ * polling TimeStatus, ticks are scheduled only while someone listens and session runs.
+ */
+public class TrackerBinder extends Binder {
+
+    private static final long SECOND = 1000;
+
+    private final Scheduler mScheduler;
+    private final int mWhat;
+    private final ArrayList<TrackerListener> mListeners = new ArrayList<TrackerListener>();
+
+    /**
+     * listeners which also want ticks, views timing themselves don't
+     */
+    private final ArrayList<TrackerListener> mTickListeners = new ArrayList<TrackerListener>();
+
+    /**
+     * displayed second last tick was delivered for
+     */
+    private long mLastTickSecond = -1;
+
+    /**
+     * @param what event scheduled on each tick, its handler must call {@link #onTick()}
+     */
+    TrackerBinder(Scheduler scheduler, int what) {
+        mScheduler = scheduler;
+        mWhat = what;
+    }
+
+    public void subscribe(TrackerListener listener) {
+        subscribe(listener, true);
+    }
+
+    /**
+     * Listener gets current state right away
+     * @param ticks false if listener only needs state changes
+     */
+    public void subscribe(TrackerListener listener, boolean ticks) {
+        if (mListeners.contains(listener)) {
+            return;
+        }
+        mListeners.add(listener);
+        if (ticks) {
+            mTickListeners.add(listener);
+        }
+        listener.onStateChanged(TimeStatus.getInstance().getSnapshot());
+        scheduleTick();
+    }
+
+    public void unsubscribe(TrackerListener listener) {
+        mListeners.remove(listener);
+        mTickListeners.remove(listener);
+        if (mTickListeners.isEmpty()) {
+            mScheduler.cancel(mWhat);
+        }
+    }
+
+    void dispatchStateChanged(StateSnapshot snapshot) {
+        // backwards, listener may unsubscribe itself
+        for (int i = mListeners.size() - 1; i >= 0; i--) {
+            mListeners.get(i).onStateChanged(snapshot);
+        }
+        mLastTickSecond = -1;
+        scheduleTick();
+    }
+
+    void onTick() {
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        final long now = TimeStatus.getInstance().now();
+        final long second = snapshot.getSessionTime(now) / SECOND;
+        if (second != mLastTickSecond) {
+            mLastTickSecond = second;
+            for (int i = mTickListeners.size() - 1; i >= 0; i--) {
+                mTickListeners.get(i).onTick(snapshot, now);
+            }
+        }
+        scheduleTick();
+    }
+
+    private void scheduleTick() {
+        mScheduler.cancel(mWhat);
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        if (mTickListeners.isEmpty() || !snapshot.isRunning()) {
+            return;
+        }
+        final long session = snapshot.getSessionTime(TimeStatus.getInstance().now());
+        mScheduler.schedule(mWhat, SECOND - (session % SECOND));
+    }
+
+    int getListenerCount() {
+        return mListeners.size();
+    }
+}
@@ -0,0 +1,138 @@
+package com.extra.invisalign.control;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import com.extra.invisalign.model.TimeStatus;
+
+/**
+ * Typed request to TimeTrackerService.
+ * It travels as an explicit intent whose action names the command type,
+ * and payload is carried in extras rather than in intent flags.
+ */
+public class TrackerCommand {
+
+    public static final int TYPE_TOGGLE = 0;
+    public static final int TYPE_DAY_RESET = 1;
+    public static final int TYPE_TAG = 2;
+    public static final int TYPE_TRIM = 3;
+    public static final int TYPE_COUNT = 4;
+
+    public static final int SOURCE_UNKNOWN = 0;
+    public static final int SOURCE_NOTIFICATION = 1;
+    public static final int SOURCE_WIDGET = 2;
+    public static final int SOURCE_ALARM = 3;
+    public static final int SOURCE_APP = 4;
+    public static final int SOURCE_SYSTEM = 5;
+    public static final int SOURCE_DETECTOR = 6;
+    public static final int SOURCE_TILE = 7;
+
+    private static final String ACTION_PREFIX = "com.extra.invisalign.command.";
+    private static final String[] ACTIONS = {
+            ACTION_PREFIX + "TOGGLE",
+            ACTION_PREFIX + "DAY_RESET",
+            ACTION_PREFIX + "TAG",
+            ACTION_PREFIX + "TRIM",
+    };
+
+    private static final String EXTRA_SOURCE = "source";
+    private static final String EXTRA_TIMESTAMP = "timestamp";
+    private static final String EXTRA_REASON = "reason";
+
+    /**
+     * Same command arriving again within this window is treated as a duplicate,
+     * e.g. double tap on play/stop button
+     */
+    public static final long DUPLICATE_WINDOW = 500;
+
+    public final int type;
+    public final int source;
+
+    /**
+     * TimeStorage.Session reason carried by TYPE_TAG
+     */
+    public final int reason;
+
+    /**
+     * tracker clock time the command was issued, or received if sent through a pending intent
+     */
+    public final long timestamp;
+
+    /**
+     * elapsedRealtime when the service received it, to measure latency
+     */
+    public final long receivedAt;
+
+    public TrackerCommand(int type, int source) {
+        this(type, source, 0);
+    }
+
+    public TrackerCommand(int type, int source, int reason) {
+        this(type, source, reason, TimeStatus.getInstance().now(), 0);
+    }
+
+    /**
+     * @return same command without timestamp, for a PendingIntent built long before it is sent.
+     * It is stamped when received instead, the closest known time to the tap.
+     */
+    public TrackerCommand pending() {
+        return new TrackerCommand(type, source, reason, 0, 0);
+    }
+
+    private TrackerCommand(int type, int source, int reason, long timestamp, long receivedAt) {
+        this.type = type;
+        this.source = source;
+        this.reason = reason;
+        this.timestamp = timestamp;
+        this.receivedAt = receivedAt;
+    }
+
+    /**
+     * @return explicit intent to start TimeTrackerService with this command
+     */
+    public Intent toIntent(Context ctx) {
+        return new Intent(ctx, TimeTrackerService.class)
+                .setAction(ACTIONS[type])
+                .putExtra(EXTRA_SOURCE, source)
+                .putExtra(EXTRA_TIMESTAMP, timestamp)
+                .putExtra(EXTRA_REASON, reason);
+    }
+
+    /**
+     * @return command carried by given intent, null if there is none, e.g. sticky restart
+     */
+    public static TrackerCommand fromIntent(Intent intent) {
+        if (intent == null || intent.getAction() == null) {
+            return null;
+        }
+        for (int type = 0; type < ACTIONS.length; type++) {
+            if (ACTIONS[type].equals(intent.getAction())) {
+                return new TrackerCommand(type,
+                        intent.getIntExtra(EXTRA_SOURCE, SOURCE_UNKNOWN),
+                        intent.getIntExtra(EXTRA_REASON, 0),
+                        stampOf(intent.getLongExtra(EXTRA_TIMESTAMP, 0)),
+                        SystemClock.elapsedRealtime());
+            }
+        }
+        return null;
+    }
+
+    private static long stampOf(long timestamp) {
+        return timestamp != 0 ? timestamp : TimeStatus.getInstance().now();
+    }
+
+    /**
+     * @param last previously applied command of the same type, or null
+     */
+    public boolean isDuplicateOf(TrackerCommand last) {
+        return last != null && last.type == type && last.reason == reason
+                && receivedAt - last.receivedAt < DUPLICATE_WINDOW;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackerCommand{" + ACTIONS[type].substring(ACTION_PREFIX.length())
+                + ", source=" + source + ", reason=" + reason + ", at=" + timestamp + "}";
+    }
+}
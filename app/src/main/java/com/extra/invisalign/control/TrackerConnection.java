@@ -0,0 +1,112 @@
+package com.extra.invisalign.control;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+
+/**
+ * Keeps a TrackerListener subscribed to TimeTrackerService only while its activity is resumed.
+ * It follows activity lifecycle by itself, so a paused screen costs tracker nothing.
+ */
+public class TrackerConnection implements ServiceConnection, Application.ActivityLifecycleCallbacks {
+
+    private final Activity mActivity;
+    private final TrackerListener mListener;
+    private final boolean mTicks;
+    private TrackerBinder mBinder;
+    private boolean mBound = false;
+
+    private TrackerConnection(Activity activity, TrackerListener listener, boolean ticks) {
+        mActivity = activity;
+        mListener = listener;
+        mTicks = ticks;
+    }
+
+    public static TrackerConnection attach(Activity activity, TrackerListener listener) {
+        return attach(activity, listener, true);
+    }
+
+    /**
+     * Subscribe listener now and on every resume, until {@link #detach()}
+     * @param ticks false if listener only needs state changes
+     */
+    public static TrackerConnection attach(Activity activity, TrackerListener listener, boolean ticks) {
+        TrackerConnection connection = new TrackerConnection(activity, listener, ticks);
+        activity.getApplication().registerActivityLifecycleCallbacks(connection);
+        connection.bind();
+        return connection;
+    }
+
+    public void detach() {
+        mActivity.getApplication().unregisterActivityLifecycleCallbacks(this);
+        unbind();
+    }
+
+    private void bind() {
+        if (!mBound) {
+            mBound = mActivity.bindService(new Intent(mActivity, TimeTrackerService.class), this,
+                    Context.BIND_AUTO_CREATE);
+        }
+    }
+
+    private void unbind() {
+        if (mBinder != null) {
+            mBinder.unsubscribe(mListener);
+            mBinder = null;
+        }
+        if (mBound) {
+            mActivity.unbindService(this);
+            mBound = false;
+        }
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        mBinder = (TrackerBinder) service;
+        mBinder.subscribe(mListener, mTicks);
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        mBinder = null;
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+        if (activity == mActivity) {
+            bind();
+        }
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+        if (activity == mActivity) {
+            unbind();
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+}
@@ -0,0 +1,20 @@
+package com.extra.invisalign.control;
+
+import com.extra.invisalign.model.StateSnapshot;
+
+/**
+ * Push updates of tracker to a subscribed screen, called on main thread.
+ */
+public interface TrackerListener {
+
+    /**
+     * On subscribe, on every transition and on day reset
+     */
+    void onStateChanged(StateSnapshot snapshot);
+
+    /**
+     * At most once per displayed second of running session
+     * @param now wall clock time the tick is for
+     */
+    void onTick(StateSnapshot snapshot, long now);
+}
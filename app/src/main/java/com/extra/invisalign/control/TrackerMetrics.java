@@ -0,0 +1,265 @@
+package com.extra.invisalign.control;
+
+import android.os.Looper;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of what the tracker costs.
+ * Every update is a single atomic add, so it is cheap enough to leave on.
+ */
+public class TrackerMetrics {
+
+    public static final int COUNTER_NOTIFY = 0;
+    public static final int COUNTER_DB_TRANSACTION = 1;
+    public static final int COUNTER_FSYNC = 2;
+    public static final int COUNTER_ALARM_WAKEUP = 3;
+    public static final int COUNTER_COMMAND_DROPPED = 4;
+    public static final int COUNTER_TIMER_LATE_FRAME = 5;
+    private static final int COUNTER_COUNT = 6;
+
+    private static final String[] COUNTER_NAMES = {
+            "notify", "dbTransaction", "fsync", "alarmWakeup", "commandDropped", "timerLateFrame",
+    };
+
+    public static final int OP_HANDLE_MESSAGE = 0;
+    public static final int OP_NOTIFY = 1;
+    public static final int OP_DB_WRITE = 2;
+    public static final int OP_COMMAND_TOGGLE = 3;
+    public static final int OP_COMMAND_DAY_RESET = 4;
+    public static final int OP_TIMER_FRAME = 5;
+    public static final int OP_MAINTENANCE_CHUNK = 6;
+    public static final int OP_SESSION_EDIT = 7;
+    public static final int OP_COMMAND_TAG = 8;
+    public static final int OP_COMMAND_TRIM = 9;
+    public static final int OP_RESTORE = 10;
+    private static final int OP_COUNT = 11;
+
+    private static final String[] OP_NAMES = {
+            "handleMessage", "notify", "dbWrite", "cmdToggle", "cmdDayReset", "timerFrame", "maintenanceChunk",
+            "sessionEdit", "cmdTag", "cmdTrim", "restore",
+    };
+
+    /**
+     * latency op of each TrackerCommand type
+     */
+    private static final int[] COMMAND_OPS = {
+            OP_COMMAND_TOGGLE,
+            OP_COMMAND_DAY_RESET,
+            OP_COMMAND_TAG,
+            OP_COMMAND_TRIM,
+    };
+
+    /**
+     * handler message codes tracked, larger ones fall into the last slot
+     */
+    private static final int MESSAGE_SLOTS = 16;
+
+    /**
+     * histogram bucket i counts durations in [2^(i-1), 2^i) microseconds
+     */
+    private static final int BUCKETS = 24;
+
+    private static final AtomicLongArray sCounters = new AtomicLongArray(COUNTER_COUNT);
+    private static final AtomicLongArray sMessages = new AtomicLongArray(MESSAGE_SLOTS);
+    private static final AtomicLongArray sHistograms = new AtomicLongArray(OP_COUNT * BUCKETS);
+    private static final AtomicLongArray sOpTotalMicros = new AtomicLongArray(OP_COUNT);
+    private static final AtomicLongArray sMainThreadMicros = new AtomicLongArray(OP_COUNT);
+
+    /**
+     * p99 latency budget per operation in microseconds, 0 for none.
+     * Percentiles resolve to a bucket bound, so budgets are bucket bounds too.
+     */
+    private static final long[] OP_P99_BUDGET_MICROS = {
+            1 << 14,     // handleMessage, 16ms, a message may carry one write
+            1 << 13,     // notify, 8ms
+            1 << 14,     // dbWrite, 16ms
+            1 << 17,     // cmdToggle, 131ms
+            1 << 17,     // cmdDayReset, 131ms
+            1 << 11,     // timerFrame, 2ms
+            1 << 17,     // maintenanceChunk, the longest a tracker write may wait on a job
+            1 << 14,     // sessionEdit, same as any single write whatever history size
+            1 << 17,     // cmdTag, 131ms
+            1 << 17,     // cmdTrim, 131ms
+            1 << 16,     // restore, 65ms from service create to state rebuilt after process death
+    };
+
+    /**
+     * a toggle closing a session writes the session and the daily total
+     */
+    private static final long MAX_DB_TRANSACTIONS_PER_TOGGLE = 2;
+
+    /**
+     * a handled message refreshes the notification at most once, alarms add their own
+     */
+    private static final long MAX_NOTIFY_PER_MESSAGE = 2;
+
+    private TrackerMetrics() {
+    }
+
+    public static void increment(int counter) {
+        sCounters.incrementAndGet(counter);
+    }
+
+    public static long get(int counter) {
+        return sCounters.get(counter);
+    }
+
+    public static void message(int what) {
+        sMessages.incrementAndGet(Math.min(Math.max(what, 0), MESSAGE_SLOTS - 1));
+    }
+
+    /**
+     * Monotonic like elapsedRealtimeNanos, which needs API 17
+     * @return start mark to pass to {@link #end(int, long)}
+     */
+    public static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record an operation started at given mark.
+     */
+    public static void end(int op, long beginNanos) {
+        record(op, (System.nanoTime() - beginNanos) / 1000);
+    }
+
+    /**
+     * @return op timing commands of given TrackerCommand type, from received to applied
+     */
+    public static int commandOp(int type) {
+        return COMMAND_OPS[type];
+    }
+
+    public static void record(int op, long micros) {
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, micros)));
+        sHistograms.incrementAndGet(op * BUCKETS + bucket);
+        sOpTotalMicros.addAndGet(op, micros);
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            sMainThreadMicros.addAndGet(op, micros);
+        }
+    }
+
+    public static long getCount(int op) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += sHistograms.get(op * BUCKETS + i);
+        }
+        return count;
+    }
+
+    public static long getMainThreadMicros(int op) {
+        return sMainThreadMicros.get(op);
+    }
+
+    /**
+     * @return upper bound in microseconds of given percentile, from histogram buckets
+     */
+    public static long getPercentileMicros(int op, double percentile) {
+        final long count = getCount(op);
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += sHistograms.get(op * BUCKETS + i);
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * @return p99 budget of given operation in microseconds, 0 for none
+     */
+    public static long getBudgetMicros(int op) {
+        return OP_P99_BUDGET_MICROS[op];
+    }
+
+    /**
+     * Compare recorded metrics with budgets. Counts are compared as ratios,
+     * so it holds for any length of recording.
+     * @param pw violations are printed here, may be null
+     * @return true if every budget is met
+     */
+    public static boolean checkBudgets(PrintWriter pw) {
+        boolean ok = true;
+        for (int op = 0; op < OP_COUNT; op++) {
+            final long p99 = getPercentileMicros(op, 0.99);
+            if (OP_P99_BUDGET_MICROS[op] > 0 && p99 > OP_P99_BUDGET_MICROS[op]) {
+                ok = false;
+                if (pw != null) {
+                    pw.println("  " + OP_NAMES[op] + " p99 " + p99 + "us > " + OP_P99_BUDGET_MICROS[op] + "us");
+                }
+            }
+        }
+
+        final long toggles = getCount(OP_COMMAND_TOGGLE);
+        final long transactions = sCounters.get(COUNTER_DB_TRANSACTION);
+        // tagging a stored session is one write, trim closes the session as a toggle would
+        if (toggles > 0 && transactions > (toggles + getCount(OP_COMMAND_TRIM)) * MAX_DB_TRANSACTIONS_PER_TOGGLE
+                + getCount(OP_COMMAND_DAY_RESET) * 2 + getCount(OP_COMMAND_TAG)) {
+            ok = false;
+            if (pw != null) {
+                pw.println("  dbTransaction " + transactions + " for " + toggles + " toggles");
+            }
+        }
+
+        final long messages = getCount(OP_HANDLE_MESSAGE);
+        final long notifies = sCounters.get(COUNTER_NOTIFY);
+        if (messages > 0 && notifies > messages * MAX_NOTIFY_PER_MESSAGE) {
+            ok = false;
+            if (pw != null) {
+                pw.println("  notify " + notifies + " for " + messages + " messages");
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Clear everything, to measure a fresh window e.g. a simulated day
+     */
+    public static void reset() {
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            sCounters.set(i, 0);
+        }
+        for (int i = 0; i < MESSAGE_SLOTS; i++) {
+            sMessages.set(i, 0);
+        }
+        for (int i = 0; i < OP_COUNT * BUCKETS; i++) {
+            sHistograms.set(i, 0);
+        }
+        for (int i = 0; i < OP_COUNT; i++) {
+            sOpTotalMicros.set(i, 0);
+            sMainThreadMicros.set(i, 0);
+        }
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("Counters:");
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            pw.println("  " + COUNTER_NAMES[i] + "=" + sCounters.get(i));
+        }
+        pw.println("Handler messages:");
+        for (int i = 0; i < MESSAGE_SLOTS; i++) {
+            if (sMessages.get(i) > 0) {
+                pw.println("  what " + i + "=" + sMessages.get(i));
+            }
+        }
+        pw.println("Operations (count, total us, main thread us, p50 us, p99 us):");
+        for (int op = 0; op < OP_COUNT; op++) {
+            pw.println("  " + OP_NAMES[op] + " " + getCount(op)
+                    + ", " + sOpTotalMicros.get(op)
+                    + ", " + sMainThreadMicros.get(op)
+                    + ", " + getPercentileMicros(op, 0.5)
+                    + ", " + getPercentileMicros(op, 0.99));
+        }
+        pw.println("Budget violations:");
+        if (checkBudgets(pw)) {
+            pw.println("  none");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.extra.invisalign.control;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.util.Log;
+
+import com.extra.invisalign.model.WearSignal;
+
+/**
+ * Feeds cheap system signals into SignalStream: phone unlock, and significant motion
+ * which is a one-shot wake-up sensor evaluated by sensor hub, so CPU is not woken
+ * for raw samples. Both arrive on main thread.
+ */
+public class WearSignalSource {
+
+    private static final String TAG = "Invisalign::WearSignalSource";
+
+    private final Context mContext;
+    private final SignalStream mStream;
+    private final SensorManager mSensorManager;
+    private final Sensor mMotionSensor;
+    private boolean mRegistered = false;
+
+    private final BroadcastReceiver mUnlockReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mStream.offer(WearSignal.TYPE_UNLOCK);
+        }
+    };
+
+    private final TriggerEventListener mMotionListener = new TriggerEventListener() {
+
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            mStream.offer(WearSignal.TYPE_MOTION);
+            // one-shot, arm again for next motion
+            if (mRegistered) {
+                mSensorManager.requestTriggerSensor(mMotionListener, mMotionSensor);
+            }
+        }
+    };
+
+    public WearSignalSource(Context ctx, SignalStream stream) {
+        mContext = ctx;
+        mStream = stream;
+        mSensorManager = (SensorManager) ctx.getSystemService(Context.SENSOR_SERVICE);
+        mMotionSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+    }
+
+    public void register() {
+        if (mRegistered) {
+            return;
+        }
+        mRegistered = true;
+        mContext.registerReceiver(mUnlockReceiver, new IntentFilter(Intent.ACTION_USER_PRESENT));
+        if (mMotionSensor != null) {
+            mSensorManager.requestTriggerSensor(mMotionListener, mMotionSensor);
+        } else {
+            Log.d(TAG, "no significant motion sensor, unlock only");
+        }
+    }
+
+    public void unregister() {
+        if (!mRegistered) {
+            return;
+        }
+        mRegistered = false;
+        mContext.unregisterReceiver(mUnlockReceiver);
+        if (mMotionSensor != null) {
+            mSensorManager.cancelTriggerSensor(mMotionListener, mMotionSensor);
+        }
+        mStream.clear();
+    }
+}
@@ -1,18 +1,11 @@
 package com.extra.invisalign.model;
 
-import java.util.Calendar;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
-import android.os.Handler;
 import android.util.Log;
-import android.util.SparseArray;
 
-import com.extra.invisalign.control.TimeTrackerService;
+import com.extra.invisalign.control.AlarmScheduler;
+import com.extra.invisalign.control.Scheduler;
+import com.extra.invisalign.control.TrackerCommand;
 
 public class AlarmTimer {
 
@@ -22,28 +15,26 @@ public class AlarmTimer {
      * Everyday at 12:00am reset total time spent and store it in DB
      */
     public static void setDayResetAlarmIfNeeded(Context ctx) {
+        setDayResetAlarmIfNeeded(new AlarmScheduler(ctx, TimeStatus.getInstance().getClock()),
+                TimeStatus.getInstance().now());
+    }
+
+    /**
+     * @param alarms AlarmScheduler, or VirtualScheduler to run day resets on virtual time
+     */
+    public static void setDayResetAlarmIfNeeded(Scheduler alarms, long now) {
         Log.v(TAG, "setDayResetAlarmIfNeeded");
-        AlarmManager alarmMgr = (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
+        // Cancel existing one
+        alarms.cancel(TrackerCommand.TYPE_DAY_RESET);
 
-        Intent serviceIntent = TimeTrackerService.createServiceIntent(ctx, TimeTrackerService.MSG_ALARM_DAY_RESET);
-        PendingIntent alarmIntent = PendingIntent.getService(ctx,
-                TimeTrackerService.MSG_ALARM_DAY_RESET,
-                serviceIntent,
-                PendingIntent.FLAG_CANCEL_CURRENT);
+        // at 12:00 am of tomorrow in current timezone
+        alarms.schedule(TrackerCommand.TYPE_DAY_RESET, nextDayResetTime(now) - now);
+    }
 
-        // Cancel existing one
-        alarmMgr.cancel(alarmIntent);
-
-        // Set the alarm to start at approximately 12:00 a.m.
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(System.currentTimeMillis());
-        calendar.set(Calendar.HOUR_OF_DAY, 0);
-        calendar.add(Calendar.DATE, 1);
-
-        // at 12:00 am
-        alarmMgr.setExact(
-                AlarmManager.RTC_WAKEUP,
-                calendar.getTimeInMillis(),
-                alarmIntent);
+    /**
+     * @return 12:00 am following given time in current timezone
+     */
+    public static long nextDayResetTime(long now) {
+        return TimeStorage.startOfEpochDay(TimeStorage.toEpochDay(now) + 1);
     }
 }
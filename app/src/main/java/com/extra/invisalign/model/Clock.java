@@ -0,0 +1,17 @@
+package com.extra.invisalign.model;
+
+/**
+ * Source of wall clock time, replaceable to run tracker on virtual time.
+ */
+public interface Clock {
+
+    Clock SYSTEM = new Clock() {
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long currentTimeMillis();
+}
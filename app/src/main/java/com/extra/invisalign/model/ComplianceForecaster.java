@@ -0,0 +1,197 @@
+package com.extra.invisalign.model;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Calendar;
+
+/**
+ * Projects today's final total from how much time each hour of day usually takes.
+ * Out-of-mouth time of the current day is collected per hour as sessions close,
+ * and folded into exponentially weighted per hour averages when the day is left behind.
+ * Each update touches only the hours of one session or the 24 averages once a day,
+ * so nothing is recomputed from history after the first build.
+ */
+public class ComplianceForecaster {
+
+    /**
+     * returned by project when there is no history to project from
+     */
+    public static final long UNKNOWN = -1;
+
+    private static final long HOUR = 1000 * 60 * 60;
+
+    /**
+     * weight of the latest day in averages, about two weeks of memory
+     */
+    private static final double ALPHA = 2.0 / (14 + 1);
+
+    /**
+     * empty days folded at most, e.g. after the tracker was not used for a while
+     */
+    private static final int MAX_GAP_DAYS = 14;
+
+    /**
+     * days of history read to build averages when nothing is persisted yet
+     */
+    public static final int REBUILD_DAYS = 28;
+
+    private static final String PREFS_FILE = "forecast";
+    private static final String KEY_DAY = "day";
+    private static final String KEY_DAYS = "days";
+    private static final String KEY_MEAN = "mean";
+    private static final String KEY_TODAY = "today";
+
+    private final double[] mMean = new double[HourBuckets.HOURS];
+    private final long[] mToday = new long[HourBuckets.HOURS];
+
+    /**
+     * epoch-day mToday is collected for, 0 before the first session
+     */
+    private long mDay = 0;
+
+    /**
+     * days folded into averages so far
+     */
+    private int mDays = 0;
+
+    private final HourBuckets.Sink mTodaySink = new HourBuckets.Sink() {
+
+        @Override
+        public void onBucket(int dayOfWeek, int hour, long millis) {
+            mToday[hour] += millis;
+        }
+    };
+
+    /**
+     * Add a closed session, never crossing a day boundary as tracker splits them at midnight.
+     * Sessions of days already folded are ignored.
+     */
+    public void addSession(long start, long end) {
+        final long day = TimeStorage.toEpochDay(start);
+        rollTo(day);
+        if (day == mDay) {
+            HourBuckets.split(start, end, mTodaySink);
+        }
+    }
+
+    /**
+     * @param dayTotal today's total at now, including running session
+     * @return expected total at the end of today, or UNKNOWN without history
+     */
+    public long project(long dayTotal, long now) {
+        rollTo(TimeStorage.toEpochDay(now));
+        if (mDays == 0) {
+            return UNKNOWN;
+        }
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        final int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        final long intoHour = calendar.get(Calendar.MINUTE) * 60 * 1000
+                + calendar.get(Calendar.SECOND) * 1000 + calendar.get(Calendar.MILLISECOND);
+        final double leftInHour = (HOUR - intoHour) / (double) HOUR;
+        double remaining = mMean[hour] * leftInHour;
+        for (int h = hour + 1; h < HourBuckets.HOURS; h++) {
+            remaining += mMean[h];
+        }
+        return dayTotal + Math.round(remaining);
+    }
+
+    /**
+     * Fold collected days up to the given one into averages
+     */
+    private void rollTo(long day) {
+        if (mDay == 0) {
+            mDay = day;
+            return;
+        }
+        if (day <= mDay) {
+            return;
+        }
+        final long folds = Math.min(day - mDay, MAX_GAP_DAYS);
+        for (long i = 0; i < folds; i++) {
+            mDays++;
+            // plain mean while history is short, so the first days are not underweighted
+            final double weight = Math.max(ALPHA, 1.0 / mDays);
+            for (int h = 0; h < HourBuckets.HOURS; h++) {
+                mMean[h] += weight * (mToday[h] - mMean[h]);
+                mToday[h] = 0;
+            }
+        }
+        mDay = day;
+    }
+
+    /**
+     * Build from stored sessions of the last REBUILD_DAYS days, today's closed ones included
+     */
+    public void rebuild(TimeStorage storage, long today) {
+        storage.forEachSession(today - REBUILD_DAYS, today, new TimeStorage.SessionVisitor() {
+
+            @Override
+            public void onSession(long start, long end, int reason) {
+                addSession(start, end);
+            }
+        });
+        rollTo(today);
+    }
+
+    public void save(Context ctx) {
+        StringBuilder mean = new StringBuilder();
+        StringBuilder today = new StringBuilder();
+        for (int h = 0; h < HourBuckets.HOURS; h++) {
+            if (h > 0) {
+                mean.append(',');
+                today.append(',');
+            }
+            mean.append(Math.round(mMean[h]));
+            today.append(mToday[h]);
+        }
+        prefs(ctx).edit()
+                .putLong(KEY_DAY, mDay)
+                .putInt(KEY_DAYS, mDays)
+                .putString(KEY_MEAN, mean.toString())
+                .putString(KEY_TODAY, today.toString())
+                .apply();
+    }
+
+    /**
+     * @return persisted forecaster, or null if never saved
+     */
+    public static ComplianceForecaster load(Context ctx) {
+        SharedPreferences sp = prefs(ctx);
+        if (!sp.contains(KEY_DAY)) {
+            return null;
+        }
+        final String[] mean = sp.getString(KEY_MEAN, "").split(",");
+        final String[] today = sp.getString(KEY_TODAY, "").split(",");
+        if (mean.length != HourBuckets.HOURS || today.length != HourBuckets.HOURS) {
+            return null;
+        }
+        ComplianceForecaster forecaster = new ComplianceForecaster();
+        try {
+            for (int h = 0; h < HourBuckets.HOURS; h++) {
+                forecaster.mMean[h] = Long.parseLong(mean[h]);
+                forecaster.mToday[h] = Long.parseLong(today[h]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        forecaster.mDay = sp.getLong(KEY_DAY, 0);
+        forecaster.mDays = sp.getInt(KEY_DAYS, 0);
+        return forecaster;
+    }
+
+    private static SharedPreferences prefs(Context ctx) {
+        return ctx.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public String toString() {
+        long expected = 0;
+        for (double mean : mMean) {
+            expected += Math.round(mean);
+        }
+        return "ComplianceForecaster{day=" + mDay + ", days=" + mDays
+                + ", expectedDay=" + TimeStatus.msToHourMin(expected) + "}";
+    }
+}
@@ -0,0 +1,58 @@
+package com.extra.invisalign.model;
+
+/**
+ * Splits a snapshot at every local midnight between its day and today.
+ * Pure computation, results are handed to a Sink so that the tracker stores them in DB
+ * and simulation keeps them in memory.
+ */
+public final class DayRollover {
+
+    public interface Sink {
+
+        /**
+         * a finished piece of session, never crossing a day boundary
+         */
+        void onSession(long start, long end);
+
+        /**
+         * final total of a day that is left behind
+         */
+        void onDayTotal(long day, long total);
+    }
+
+    private DayRollover() {
+    }
+
+    /**
+     * @return start of running session in today, to pass to TimeStatus.dayReset
+     */
+    public static long apply(StateSnapshot snapshot, long today, long now, Sink sink) {
+        long newStart = snapshot.startTime;
+        if (snapshot.day < today) {
+            long total = snapshot.totalTime;
+            for (long day = snapshot.day; day < today; day++) {
+                if (snapshot.isRunning()) {
+                    final long boundary = TimeStorage.startOfEpochDay(day + 1);
+                    if (newStart < boundary) {
+                        // Split running session at day boundary
+                        sink.onSession(newStart, boundary);
+                        total += boundary - newStart + (day == snapshot.day ? snapshot.elapsedTime : 0);
+                        newStart = boundary;
+                    }
+                }
+                if (total > 0 || day == snapshot.day) {
+                    sink.onDayTotal(day, total);
+                }
+                total = 0;
+            }
+        } else if (snapshot.day > today) {
+            // clock went back to a previous day, keep totals on the day they were counted in
+            if (snapshot.isRunning()) {
+                sink.onSession(newStart, now);
+                newStart = now;
+            }
+            sink.onDayTotal(snapshot.day, snapshot.getDayTotal(now));
+        }
+        return newStart;
+    }
+}
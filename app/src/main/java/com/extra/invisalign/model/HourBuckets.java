@@ -0,0 +1,61 @@
+package com.extra.invisalign.model;
+
+import java.util.Calendar;
+
+/**
+ * Splits a time range at every local hour boundary.
+ * Shared by statistics kept per hour of day, so that they all agree on which hour a minute belongs to.
+ */
+public final class HourBuckets {
+
+    public static final int HOURS = 24;
+
+    public interface Sink {
+
+        /**
+         * @param dayOfWeek 0 for Sunday to 6 for Saturday
+         * @param hour local hour of day, 0 to 23
+         * @param millis part of the range within that hour
+         */
+        void onBucket(int dayOfWeek, int hour, long millis);
+    }
+
+    private HourBuckets() {
+    }
+
+    /**
+     * Hand each hour piece of [start, end) to sink, in time order.
+     * A session spans a bounded number of hours, so this stays constant per session.
+     */
+    public static void split(long start, long end, Sink sink) {
+        if (end <= start) {
+            return;
+        }
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(start);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long bucketStart = calendar.getTimeInMillis();
+        while (bucketStart < end) {
+            final int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY;
+            final int hour = calendar.get(Calendar.HOUR_OF_DAY);
+            calendar.add(Calendar.HOUR_OF_DAY, 1);
+            final long bucketEnd = calendar.getTimeInMillis();
+            final long millis = Math.min(end, bucketEnd) - Math.max(start, bucketStart);
+            if (millis > 0) {
+                sink.onBucket(dayOfWeek, hour, millis);
+            }
+            bucketStart = bucketEnd;
+        }
+    }
+
+    /**
+     * @return local hour of day of given wall clock time
+     */
+    public static int hourOf(long millis) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return calendar.get(Calendar.HOUR_OF_DAY);
+    }
+}
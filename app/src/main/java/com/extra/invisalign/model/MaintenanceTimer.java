@@ -0,0 +1,36 @@
+package com.extra.invisalign.model;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import com.extra.invisalign.control.MaintenanceService;
+
+public class MaintenanceTimer {
+
+    private static final String TAG = "Invisalign::MaintenanceTimer";
+
+    public static final int JOB_MAINTENANCE = 1;
+
+    /**
+     * Once a day while the device is idle and charging, never competing with the tracker.
+     * JobScheduler needs Lollipop, callers check it.
+     */
+    public static void setMaintenanceJobIfNeeded(Context ctx) {
+        JobScheduler scheduler = (JobScheduler) ctx.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_MAINTENANCE) {
+                return;
+            }
+        }
+        Log.v(TAG, "setMaintenanceJobIfNeeded : scheduling");
+        scheduler.schedule(new JobInfo.Builder(JOB_MAINTENANCE, new ComponentName(ctx, MaintenanceService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(TimeStorage.DAY_IN_MILLIS)
+                .setPersisted(true)
+                .build());
+    }
+}
@@ -0,0 +1,236 @@
+package com.extra.invisalign.model;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Streaming quantiles of session length per reason and hour of day the session started.
+ * Each sketch is a histogram over log spaced lengths, so a quantile is off by at most
+ * one bucket, i.e. GROWTH, whatever the number of sessions. Adding a session is O(1),
+ * and counts are halved once a sketch gets large, so that recent habits outweigh old ones.
+ */
+public class SessionLengthSketch {
+
+    /**
+     * returned by quantile when there are too few sessions to tell
+     */
+    public static final long UNKNOWN = -1;
+
+    private static final long MINUTE = 1000 * 60;
+
+    /**
+     * upper bound of the first bucket
+     */
+    private static final long MIN_LENGTH = MINUTE;
+
+    /**
+     * ratio between bucket bounds, 40 buckets reach beyond 100 hours
+     */
+    private static final double GROWTH = 1.25;
+    private static final int BUCKETS = 40;
+
+    /**
+     * sessions a sketch needs before it is trusted, otherwise all hours of the reason are used
+     */
+    private static final int MIN_SAMPLES = 8;
+
+    /**
+     * sketch is halved on reaching this
+     */
+    private static final int MAX_SAMPLES = 512;
+
+    /**
+     * days of history read to build sketches when nothing is persisted yet
+     */
+    public static final int REBUILD_DAYS = 90;
+
+    private static final String PREFS_FILE = "session_sketch";
+    private static final String KEY_COUNTS = "counts";
+
+    /**
+     * [reason][hour][bucket] flattened
+     */
+    private final int[] mCounts = new int[TimeStorage.Session.REASON_COUNT * HourBuckets.HOURS * BUCKETS];
+
+    /**
+     * [reason][hour] flattened
+     */
+    private final int[] mTotals = new int[TimeStorage.Session.REASON_COUNT * HourBuckets.HOURS];
+
+    public void add(int reason, int hour, long length) {
+        final int sketch = sketchOf(reason, hour);
+        mCounts[sketch * BUCKETS + bucketOf(length)]++;
+        if (++mTotals[sketch] >= MAX_SAMPLES) {
+            int total = 0;
+            for (int b = sketch * BUCKETS; b < (sketch + 1) * BUCKETS; b++) {
+                mCounts[b] /= 2;
+                total += mCounts[b];
+            }
+            mTotals[sketch] = total;
+        }
+    }
+
+    /**
+     * @param q quantile in [0, 1], e.g. 0.95
+     * @return upper bound of length below which q of sessions of this reason and hour end,
+     *         from all hours of the reason if this hour has few sessions, UNKNOWN if the reason has too
+     */
+    public long quantile(int reason, int hour, double q) {
+        final int sketch = sketchOf(reason, hour);
+        if (mTotals[sketch] >= MIN_SAMPLES) {
+            return mergedQuantile(sketch, sketch + 1, q);
+        }
+        final int first = sketchOf(reason, 0);
+        return mergedQuantile(first, first + HourBuckets.HOURS, q);
+    }
+
+    /**
+     * Merged quantile of sketches [from, to)
+     */
+    private long mergedQuantile(int from, int to, double q) {
+        int total = 0;
+        for (int sketch = from; sketch < to; sketch++) {
+            total += mTotals[sketch];
+        }
+        if (total < MIN_SAMPLES) {
+            return UNKNOWN;
+        }
+        final double rank = q * total;
+        int seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            for (int sketch = from; sketch < to; sketch++) {
+                seen += mCounts[sketch * BUCKETS + b];
+            }
+            if (seen >= rank) {
+                return upperBound(b);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static int sketchOf(int reason, int hour) {
+        final int r = reason >= 0 && reason < TimeStorage.Session.REASON_COUNT ? reason : TimeStorage.Session.REASON_NONE;
+        return r * HourBuckets.HOURS + hour;
+    }
+
+    private static int bucketOf(long length) {
+        if (length <= MIN_LENGTH) {
+            return 0;
+        }
+        final int bucket = (int) Math.ceil(Math.log(length / (double) MIN_LENGTH) / Math.log(GROWTH));
+        return Math.min(BUCKETS - 1, bucket);
+    }
+
+    private static long upperBound(int bucket) {
+        return (long) (MIN_LENGTH * Math.pow(GROWTH, bucket));
+    }
+
+    /**
+     * Build from stored sessions of the last REBUILD_DAYS days.
+     * Pieces of a session split at midnight count as sessions of their own.
+     */
+    public void rebuild(TimeStorage storage, long today) {
+        SessionJoiner joiner = new SessionJoiner();
+        storage.forEachSession(today - REBUILD_DAYS, today, joiner);
+        joiner.flush();
+    }
+
+    /**
+     * Pieces of a session split at midnight are stored apart, they are joined back
+     * into the whole session the tracker adds when it closes
+     */
+    private class SessionJoiner implements TimeStorage.SessionVisitor {
+
+        private long mStart = 0;
+        private long mEnd = 0;
+        private int mReason;
+
+        @Override
+        public void onSession(long start, long end, int reason) {
+            final boolean continued = mEnd != 0 && start == mEnd
+                    && TimeStorage.startOfEpochDay(TimeStorage.toEpochDay(start)) == start;
+            if (!continued) {
+                flush();
+                mStart = start;
+            }
+            // reason is written on the last piece when the session closes
+            mEnd = end;
+            mReason = reason;
+        }
+
+        void flush() {
+            if (mEnd != 0) {
+                add(mReason, HourBuckets.hourOf(mStart), mEnd - mStart);
+            }
+            mEnd = 0;
+        }
+    }
+
+    /**
+     * Only non empty buckets are written, as index:count pairs
+     */
+    public void save(Context ctx) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mCounts.length; i++) {
+            if (mCounts[i] == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(i).append(':').append(mCounts[i]);
+        }
+        prefs(ctx).edit().putString(KEY_COUNTS, sb.toString()).apply();
+    }
+
+    /**
+     * @return persisted sketch, or null if never saved
+     */
+    public static SessionLengthSketch load(Context ctx) {
+        final String counts = prefs(ctx).getString(KEY_COUNTS, null);
+        if (counts == null) {
+            return null;
+        }
+        SessionLengthSketch sketch = new SessionLengthSketch();
+        if (counts.isEmpty()) {
+            return sketch;
+        }
+        try {
+            for (String pair : counts.split(",")) {
+                final int colon = pair.indexOf(':');
+                if (colon < 0) {
+                    return null;
+                }
+                final int index = Integer.parseInt(pair.substring(0, colon));
+                final int count = Integer.parseInt(pair.substring(colon + 1));
+                if (index < 0 || index >= sketch.mCounts.length) {
+                    return null;
+                }
+                sketch.mCounts[index] = count;
+                sketch.mTotals[index / BUCKETS] += count;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return sketch;
+    }
+
+    private static SharedPreferences prefs(Context ctx) {
+        return ctx.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SessionLengthSketch{");
+        for (int reason = 0; reason < TimeStorage.Session.REASON_COUNT; reason++) {
+            int total = 0;
+            for (int hour = 0; hour < HourBuckets.HOURS; hour++) {
+                total += mTotals[sketchOf(reason, hour)];
+            }
+            final long p95 = mergedQuantile(sketchOf(reason, 0), sketchOf(reason, 0) + HourBuckets.HOURS, 0.95);
+            sb.append(reason == 0 ? "" : ", ").append(reason).append('=').append(total)
+                    .append(p95 == UNKNOWN ? "" : " p95 " + TimeStatus.msToHourMin(p95));
+        }
+        return sb.append('}').toString();
+    }
+}
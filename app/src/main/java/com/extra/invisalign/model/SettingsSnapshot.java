@@ -0,0 +1,92 @@
+package com.extra.invisalign.model;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.extra.invisalign.view.SettingFragment;
+import com.extra.invisalign.view.TimeLimitPreference;
+
+/**
+ * Immutable typed copy of settings. Tracker diffs a fresh copy against the applied one
+ * and reconfigures only what changed, instead of reacting to each key.
+ */
+public final class SettingsSnapshot {
+
+    public static final int CHANGED_TIME_CAP = 1;
+    public static final int CHANGED_INITIAL_ALARM = 1 << 1;
+    public static final int CHANGED_FINAL_ALARM = 1 << 2;
+    public static final int CHANGED_CLOCK_NOTIFICATION = 1 << 3;
+    public static final int CHANGED_WEAR_DETECTION = 1 << 4;
+    public static final int CHANGED_ALL = (1 << 5) - 1;
+
+    public static final SettingsSnapshot DEFAULT = new SettingsSnapshot(
+            TimeLimitPreference.DEFAULT_TIME_CAP_VALUE, true, true, true, SettingFragment.WEAR_DETECTION_OFF);
+
+    public final long timeCap;
+    public final boolean initialAlarm;
+    public final boolean finalAlarm;
+    public final boolean clockNotification;
+    public final String wearDetection;
+
+    public SettingsSnapshot(long timeCap, boolean initialAlarm, boolean finalAlarm,
+            boolean clockNotification, String wearDetection) {
+        this.timeCap = timeCap;
+        this.initialAlarm = initialAlarm;
+        this.finalAlarm = finalAlarm;
+        this.clockNotification = clockNotification;
+        this.wearDetection = wearDetection;
+    }
+
+    public static SettingsSnapshot load(Context ctx) {
+        SharedPreferences pref = ctx.getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME,
+                Context.MODE_PRIVATE);
+        return new SettingsSnapshot(
+                pref.getLong(SettingFragment.KEY_TIMECAP, DEFAULT.timeCap),
+                pref.getBoolean(SettingFragment.KEY_INITIAL_ALARM, DEFAULT.initialAlarm),
+                pref.getBoolean(SettingFragment.KEY_FINAL_ALARM, DEFAULT.finalAlarm),
+                pref.getBoolean(SettingFragment.KEY_CLOCK_NOTIFICATION, DEFAULT.clockNotification),
+                pref.getString(SettingFragment.KEY_WEAR_DETECTION, DEFAULT.wearDetection));
+    }
+
+    /**
+     * @param previous settings applied so far, null if none
+     * @return CHANGED_* flags of fields differing from previous
+     */
+    public int diff(SettingsSnapshot previous) {
+        if (previous == null) {
+            return CHANGED_ALL;
+        }
+        int changes = 0;
+        if (timeCap != previous.timeCap) {
+            changes |= CHANGED_TIME_CAP;
+        }
+        if (initialAlarm != previous.initialAlarm) {
+            changes |= CHANGED_INITIAL_ALARM;
+        }
+        if (finalAlarm != previous.finalAlarm) {
+            changes |= CHANGED_FINAL_ALARM;
+        }
+        if (clockNotification != previous.clockNotification) {
+            changes |= CHANGED_CLOCK_NOTIFICATION;
+        }
+        if (!wearDetection.equals(previous.wearDetection)) {
+            changes |= CHANGED_WEAR_DETECTION;
+        }
+        return changes;
+    }
+
+    public boolean isWearDetectionEnabled() {
+        return !SettingFragment.WEAR_DETECTION_OFF.equals(wearDetection);
+    }
+
+    public boolean isWearDetectionAuto() {
+        return SettingFragment.WEAR_DETECTION_AUTO.equals(wearDetection);
+    }
+
+    @Override
+    public String toString() {
+        return "SettingsSnapshot{timeCap=" + timeCap + ", initialAlarm=" + initialAlarm
+                + ", finalAlarm=" + finalAlarm + ", clockNotification=" + clockNotification
+                + ", wearDetection=" + wearDetection + "}";
+    }
+}
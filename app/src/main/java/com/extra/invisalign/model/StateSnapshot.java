@@ -0,0 +1,141 @@
+package com.extra.invisalign.model;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.extra.invisalign.view.SettingFragment;
+
+/**
+ * Immutable copy of TimeStatus taken on every state transition.
+ * Readers can compute live times from it without locking or touching DB.
+ */
+public final class StateSnapshot {
+
+    private static final String KEY_STATE = "snapshot_state";
+    private static final String KEY_START_TIME = "snapshot_start_time";
+    private static final String KEY_ELAPSED_TIME = "snapshot_elapsed_time";
+    private static final String KEY_TOTAL_TIME = "snapshot_total_time";
+    private static final String KEY_DAY = "snapshot_day";
+    private static final String KEY_CARRIED_TIME = "snapshot_carried_time";
+
+    public static final StateSnapshot EMPTY = new StateSnapshot(TimeStatus.STATE_STOPPED, 0, 0, 0, 0, 0);
+
+    public final int state;
+
+    /**
+     * wall clock time the running session started at, 0 if not running
+     */
+    public final long startTime;
+
+    /**
+     * session time accumulated before startTime
+     */
+    public final long elapsedTime;
+
+    /**
+     * total time of the day, excluding current session
+     */
+    public final long totalTime;
+
+    /**
+     * local epoch-day totalTime belongs to, 0 if never set
+     */
+    public final long day;
+
+    /**
+     * time of current session already counted in previous days, as it was split at midnight
+     */
+    public final long carriedTime;
+
+    StateSnapshot(int state, long startTime, long elapsedTime, long totalTime, long day, long carriedTime) {
+        this.state = state;
+        this.startTime = startTime;
+        this.elapsedTime = elapsedTime;
+        this.totalTime = totalTime;
+        this.day = day;
+        this.carriedTime = carriedTime;
+    }
+
+    public boolean isRunning() {
+        return state == TimeStatus.STATE_RUNNING;
+    }
+
+    /**
+     * @return time of current session at given wall clock time
+     */
+    public long getSessionTime(long now) {
+        return startTime == 0 ? elapsedTime : elapsedTime + (now - startTime);
+    }
+
+    /**
+     * @return time of current session since it really started, including parts before midnight
+     */
+    public long getWholeSessionTime(long now) {
+        return carriedTime + getSessionTime(now);
+    }
+
+    /**
+     * @return wall clock time running session really started, before any split at midnight
+     */
+    public long getWholeSessionStart() {
+        return startTime - elapsedTime - carriedTime;
+    }
+
+    /**
+     * @return total time of the day including current session at given wall clock time
+     */
+    public long getDayTotal(long now) {
+        return state == TimeStatus.STATE_STOPPED ? totalTime : totalTime + getSessionTime(now);
+    }
+
+    /**
+     * Persist so that other components can read it while the tracker is not alive.
+     */
+    public void save(Context ctx) {
+        prefs(ctx).edit()
+                .putInt(KEY_STATE, state)
+                .putLong(KEY_START_TIME, startTime)
+                .putLong(KEY_ELAPSED_TIME, elapsedTime)
+                .putLong(KEY_TOTAL_TIME, totalTime)
+                .putLong(KEY_DAY, day)
+                .putLong(KEY_CARRIED_TIME, carriedTime)
+                .apply();
+    }
+
+    /**
+     * @return last persisted snapshot, or EMPTY if never saved
+     */
+    public static StateSnapshot load(Context ctx) {
+        SharedPreferences sp = prefs(ctx);
+        if (!sp.contains(KEY_STATE)) {
+            return EMPTY;
+        }
+        return new StateSnapshot(
+                sp.getInt(KEY_STATE, TimeStatus.STATE_STOPPED),
+                sp.getLong(KEY_START_TIME, 0),
+                sp.getLong(KEY_ELAPSED_TIME, 0),
+                sp.getLong(KEY_TOTAL_TIME, 0),
+                sp.getLong(KEY_DAY, TimeStorage.todayEpochDay()),
+                sp.getLong(KEY_CARRIED_TIME, 0));
+    }
+
+    /**
+     * @return in-memory snapshot if tracker is alive in this process, otherwise persisted one
+     */
+    public static StateSnapshot read(Context ctx) {
+        StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        return snapshot != EMPTY ? snapshot : load(ctx);
+    }
+
+    private static SharedPreferences prefs(Context ctx) {
+        return ctx.getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public String toString() {
+        return "StateSnapshot{state=" + state + ", start=" + startTime
+                + ", elapsed=" + elapsedTime + ", total=" + totalTime + ", day=" + day
+                + ", carried=" + carriedTime + "}";
+    }
+}
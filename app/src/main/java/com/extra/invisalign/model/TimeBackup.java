@@ -0,0 +1,357 @@
+package com.extra.invisalign.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.extra.invisalign.control.TrackerMetrics;
+import com.extra.invisalign.view.SettingFragment;
+import com.extra.invisalign.view.TimeLimitPreference;
+
+/**
+ * Binary backup of entire tracker state : daily totals, sessions, settings and current TimeStatus.
+ *
+ * Layout, all integers are unsigned LEB128 varints unless noted :
+ * <pre>
+ * magic "ITBK" | version (1 byte)
+ * [tag (1 byte) | section]... | TAG_END
+ * crc32 of everything above (4 bytes, big endian)
+ * </pre>
+ * Daily section stores epoch-day as zigzag delta from previous row,
+ * session section stores start as zigzag delta from previous start, duration and reason (version 3),
+ * compacted section stores day as zigzag delta, reason, session count and time spent (version 4).
+ */
+public class TimeBackup {
+
+    private static final String TAG = "Invisalign::TimeBackup";
+
+    private static final byte[] MAGIC = { 'I', 'T', 'B', 'K' };
+    public static final int VERSION = 4;
+
+    private static final int TAG_END = 0;
+    private static final int TAG_SETTINGS = 1;
+    private static final int TAG_STATUS = 2;
+    private static final int TAG_DAILY = 3;
+    private static final int TAG_SESSIONS = 4;
+    private static final int TAG_SESSION_DAILY = 5;
+
+    private static final int FLAG_INITIAL_ALARM = 1;
+    private static final int FLAG_FINAL_ALARM = 1 << 1;
+    private static final int FLAG_CLOCK_NOTIFICATION = 1 << 2;
+
+    private static final int CRC_CHUNK = 8 * 1024;
+
+    public static class CorruptedBackupException extends IOException {
+
+        public CorruptedBackupException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Write every state into given file, replacing it.
+     */
+    public static void backup(Context ctx, File file) throws IOException {
+        final long begin = System.currentTimeMillis();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 * 1024);
+        out.write(MAGIC);
+        out.write(VERSION);
+
+        // Settings
+        SharedPreferences sp = ctx.getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME,
+                Context.MODE_PRIVATE);
+        int flags = 0;
+        if (sp.getBoolean(SettingFragment.KEY_INITIAL_ALARM, true)) {
+            flags |= FLAG_INITIAL_ALARM;
+        }
+        if (sp.getBoolean(SettingFragment.KEY_FINAL_ALARM, true)) {
+            flags |= FLAG_FINAL_ALARM;
+        }
+        if (sp.getBoolean(SettingFragment.KEY_CLOCK_NOTIFICATION, true)) {
+            flags |= FLAG_CLOCK_NOTIFICATION;
+        }
+        out.write(TAG_SETTINGS);
+        writeVarLong(out, sp.getLong(SettingFragment.KEY_TIMECAP, TimeLimitPreference.DEFAULT_TIME_CAP_VALUE));
+        writeVarLong(out, flags);
+
+        // Current status
+        TimeStatus status = TimeStatus.getInstance();
+        out.write(TAG_STATUS);
+        writeVarLong(out, status.getCurrentState());
+        writeVarLong(out, status.getStartTime());
+        writeVarLong(out, status.getAccumulatedElapsedTime());
+        writeVarLong(out, status.getTotalTimeInAday());
+        writeVarLong(out, status.getSnapshot().day);
+
+        // History
+        TimeStorage storage = TimeStorage.getInstance(ctx);
+        SQLiteDatabase db = storage.getReadableDatabase();
+        Cursor c = null;
+        try {
+            c = storage.queryDaily(db);
+            out.write(TAG_DAILY);
+            writeVarLong(out, c.getCount());
+            long prevDay = 0;
+            while (c.moveToNext()) {
+                final long day = TimeStorage.dateToEpochDay(c.getString(TimeStorage.Daily.Index.DATE));
+                writeVarLong(out, zigzag(day - prevDay));
+                writeVarLong(out, c.getLong(TimeStorage.Daily.Index.SPENT_TIME));
+                prevDay = day;
+            }
+            c.close();
+
+            c = storage.querySessions(db);
+            out.write(TAG_SESSIONS);
+            writeVarLong(out, c.getCount());
+            long prevStart = 0;
+            while (c.moveToNext()) {
+                final long start = c.getLong(TimeStorage.Session.Index.START);
+                final long end = c.getLong(TimeStorage.Session.Index.END);
+                writeVarLong(out, zigzag(start - prevStart));
+                writeVarLong(out, end - start);
+                writeVarLong(out, c.getInt(TimeStorage.Session.Index.REASON));
+                prevStart = start;
+            }
+            c.close();
+
+            // sessions past retention only live here
+            c = storage.querySessionDaily(db);
+            out.write(TAG_SESSION_DAILY);
+            writeVarLong(out, c.getCount());
+            prevDay = 0;
+            while (c.moveToNext()) {
+                final long day = c.getLong(0);
+                writeVarLong(out, zigzag(day - prevDay));
+                writeVarLong(out, c.getInt(1));
+                writeVarLong(out, c.getInt(2));
+                writeVarLong(out, c.getLong(3));
+                prevDay = day;
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        out.write(TAG_END);
+
+        CRC32 crc = new CRC32();
+        byte[] body = out.toByteArray();
+        crc.update(body, 0, body.length);
+        final long checksum = crc.getValue();
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(body);
+            fos.write((int) (checksum >>> 24) & 0xFF);
+            fos.write((int) (checksum >>> 16) & 0xFF);
+            fos.write((int) (checksum >>> 8) & 0xFF);
+            fos.write((int) checksum & 0xFF);
+            fos.getFD().sync();
+            TrackerMetrics.increment(TrackerMetrics.COUNTER_FSYNC);
+        } finally {
+            fos.close();
+        }
+        Log.d(TAG, "backup : " + (body.length + 4) + " bytes in "
+                + (System.currentTimeMillis() - begin) + "ms");
+    }
+
+    /**
+     * Replace every state with given backup file.
+     * Nothing is changed if the file is invalid or history cannot be written.
+     */
+    public static void restore(Context ctx, File file) throws IOException {
+        final long begin = System.currentTimeMillis();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size < MAGIC.length + 2 + 4 || size > Integer.MAX_VALUE) {
+                throw new CorruptedBackupException("invalid size : " + size);
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            final int bodyLength = (int) size - 4;
+
+            // Verify checksum before touching anything
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[Math.min(CRC_CHUNK, bodyLength)];
+            buf.position(0);
+            while (buf.position() < bodyLength) {
+                final int len = Math.min(chunk.length, bodyLength - buf.position());
+                buf.get(chunk, 0, len);
+                crc.update(chunk, 0, len);
+            }
+            final long checksum = buf.getInt(bodyLength) & 0xFFFFFFFFL;
+            if (checksum != crc.getValue()) {
+                throw new CorruptedBackupException("checksum mismatch");
+            }
+
+            buf.position(0);
+            for (byte b : MAGIC) {
+                if (buf.get() != b) {
+                    throw new CorruptedBackupException("invalid magic");
+                }
+            }
+            final int version = buf.get();
+            if (version > VERSION) {
+                throw new CorruptedBackupException("unsupported version : " + version);
+            }
+            buf.limit(bodyLength);
+
+            long timeCap = TimeLimitPreference.DEFAULT_TIME_CAP_VALUE;
+            int flags = FLAG_INITIAL_ALARM | FLAG_FINAL_ALARM | FLAG_CLOCK_NOTIFICATION;
+            int state = TimeStatus.STATE_STOPPED;
+            long startTime = 0;
+            long elapsed = 0;
+            long total = 0;
+            long statusDay = TimeStorage.todayEpochDay();
+            long[] days = new long[0];
+            long[] spent = new long[0];
+            long[] starts = new long[0];
+            long[] ends = new long[0];
+            int[] reasons = new int[0];
+            long[] compactedDays = new long[0];
+            int[] compactedReasons = new int[0];
+            int[] compactedSessions = new int[0];
+            long[] compactedSpent = new long[0];
+
+            int tag;
+            while ((tag = buf.get()) != TAG_END) {
+                switch (tag) {
+                    case TAG_SETTINGS:
+                        timeCap = readVarLong(buf);
+                        flags = (int) readVarLong(buf);
+                        break;
+                    case TAG_STATUS:
+                        state = (int) readVarLong(buf);
+                        startTime = readVarLong(buf);
+                        elapsed = readVarLong(buf);
+                        total = readVarLong(buf);
+                        if (version >= 2) {
+                            statusDay = readVarLong(buf);
+                        }
+                        break;
+                    case TAG_DAILY: {
+                        final int count = readCount(buf);
+                        days = new long[count];
+                        spent = new long[count];
+                        long day = 0;
+                        for (int i = 0; i < count; i++) {
+                            day += unzigzag(readVarLong(buf));
+                            days[i] = day;
+                            spent[i] = readVarLong(buf);
+                        }
+                        break;
+                    }
+                    case TAG_SESSIONS: {
+                        final int count = readCount(buf);
+                        starts = new long[count];
+                        ends = new long[count];
+                        reasons = new int[count];
+                        long start = 0;
+                        for (int i = 0; i < count; i++) {
+                            start += unzigzag(readVarLong(buf));
+                            starts[i] = start;
+                            ends[i] = start + readVarLong(buf);
+                            if (version >= 3) {
+                                reasons[i] = (int) readVarLong(buf);
+                            }
+                        }
+                        break;
+                    }
+                    case TAG_SESSION_DAILY: {
+                        final int count = readCount(buf);
+                        compactedDays = new long[count];
+                        compactedReasons = new int[count];
+                        compactedSessions = new int[count];
+                        compactedSpent = new long[count];
+                        long day = 0;
+                        for (int i = 0; i < count; i++) {
+                            day += unzigzag(readVarLong(buf));
+                            compactedDays[i] = day;
+                            compactedReasons[i] = (int) readVarLong(buf);
+                            compactedSessions[i] = (int) readVarLong(buf);
+                            compactedSpent[i] = readVarLong(buf);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new CorruptedBackupException("unknown section : " + tag);
+                }
+            }
+
+            // settings and status are only restored along with the history they belong to
+            if (!TimeStorage.getInstance(ctx).replaceAll(days, spent, days.length,
+                    starts, ends, reasons, starts.length,
+                    compactedDays, compactedReasons, compactedSessions, compactedSpent, compactedDays.length)) {
+                throw new IOException("history not replaced, nothing restored");
+            }
+
+            ctx.getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME, Context.MODE_PRIVATE)
+                    .edit()
+                    .putLong(SettingFragment.KEY_TIMECAP, timeCap)
+                    .putBoolean(SettingFragment.KEY_INITIAL_ALARM, (flags & FLAG_INITIAL_ALARM) != 0)
+                    .putBoolean(SettingFragment.KEY_FINAL_ALARM, (flags & FLAG_FINAL_ALARM) != 0)
+                    .putBoolean(SettingFragment.KEY_CLOCK_NOTIFICATION, (flags & FLAG_CLOCK_NOTIFICATION) != 0)
+                    .putLong(TimeStorage.TIME_SPENT_FOR_SINGLE_DAY, total)
+                    .commit();
+
+            TimeStatus.getInstance().restore(state, startTime, elapsed, total, statusDay);
+
+            Log.d(TAG, "restore : " + days.length + " days, " + starts.length + " sessions, "
+                    + compactedDays.length + " compacted in "
+                    + (System.currentTimeMillis() - begin) + "ms");
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new CorruptedBackupException("truncated section");
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int readCount(MappedByteBuffer buf) throws CorruptedBackupException {
+        final long count = readVarLong(buf);
+        // every row takes at least 2 bytes
+        if (count < 0 || count > buf.remaining() / 2) {
+            throw new CorruptedBackupException("invalid row count : " + count);
+        }
+        return (int) count;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(MappedByteBuffer buf) throws CorruptedBackupException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CorruptedBackupException("malformed varint");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -2,6 +2,7 @@ package com.extra.invisalign.model;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TimeStatus {
 
@@ -18,17 +19,28 @@ public class TimeStatus {
     public static final String ACTION_STATE_CHANGED = "com.extra.invisalign." + STATE_CHANGED;
     public static final int REQUEST_STATE_CHANGED = 0;
 
-    private int currentState;
-    private long startTime;
-    private long elapsedTime;
-    private long totalTime;
+    /**
+     * Entire state lives in one immutable snapshot, each transition is a single
+     * compare-and-set so readers and writers never block each other.
+     */
+    private final AtomicReference<StateSnapshot> mSnapshot =
+            new AtomicReference<StateSnapshot>(StateSnapshot.EMPTY);
 
-    private final Object mSynchronizedObject = new Object();
+    private volatile Clock mClock = Clock.SYSTEM;
 
     private TimeStatus() {
         observers = new PropertyChangeSupport(this);
     }
 
+    /**
+     * Instance apart from the tracker's one, e.g. to simulate days on virtual time
+     */
+    public static TimeStatus newInstance(Clock clock) {
+        TimeStatus status = new TimeStatus();
+        status.mClock = clock;
+        return status;
+    }
+
     public void addObserver(PropertyChangeListener listener) {
         observers.addPropertyChangeListener(listener);
     }
@@ -44,71 +56,174 @@ public class TimeStatus {
         return instance;
     }
 
+    /**
+     * Replace time source of the tracker, System clock by default
+     */
+    public void setClock(Clock clock) {
+        mClock = clock;
+    }
+
+    public Clock getClock() {
+        return mClock;
+    }
+
+    /**
+     * @return current wall clock time of this tracker, use it instead of System.currentTimeMillis
+     */
+    public long now() {
+        return mClock.currentTimeMillis();
+    }
+
     public void notifyStateChanged() {
-        observers.firePropertyChange(STATE_CHANGED, null, currentState);
+        observers.firePropertyChange(STATE_CHANGED, null, getCurrentState());
+    }
+
+    /**
+     * @return snapshot of last state change, EMPTY if nothing has changed yet
+     */
+    public StateSnapshot getSnapshot() {
+        return mSnapshot.get();
     }
 
     public int getCurrentState() {
-        return currentState;
+        return mSnapshot.get().state;
     }
 
     public long getStartTime() {
-        return startTime;
+        return mSnapshot.get().startTime;
     }
 
     public long getTotalTimeInAday() {
-        return totalTime;
+        return mSnapshot.get().totalTime;
+    }
+
+    /**
+     * @return elapsed time accumulated before startTime, without running time
+     */
+    long getAccumulatedElapsedTime() {
+        return mSnapshot.get().elapsedTime;
     }
 
     /**
      * It is only for day reset
-     * Reset startTime and add elapsedTime to total and return it.
-     * @return
+     * Reset total and move to given day, running session continues from newStart.
+     * Observers are not notified as state itself does not change.
+     * @param newStart start of the new day, caller stores time before it to previous day
+     * @return state right before reset
      */
-    public long dayReset() {
-        synchronized (mSynchronizedObject) {
-            if (currentState == STATE_RUNNING) {
-                totalTime += getElapsedTime();
-                startTime = System.currentTimeMillis();
-            }
+    public StateSnapshot dayReset(long newStart, long newDay) {
+        StateSnapshot prev;
+        StateSnapshot next;
+        do {
+            prev = mSnapshot.get();
+            // session keeps what it counted before newStart, so its whole length is still known
+            next = prev.isRunning()
+                    ? new StateSnapshot(STATE_RUNNING, newStart, 0, 0, newDay,
+                            prev.carriedTime + prev.getSessionTime(newStart))
+                    : new StateSnapshot(prev.state, prev.startTime, prev.elapsedTime, 0, newDay, prev.carriedTime);
+        } while (!mSnapshot.compareAndSet(prev, next));
 
-            return totalTime;
-        }
+        return prev;
+    }
+
+    /**
+     * Overwrite entire state, e.g. restored from backup
+     */
+    void restore(int state, long start, long elapsed, long total, long day) {
+        restore(new StateSnapshot(state, start, elapsed, total, day, 0));
+    }
+
+    /**
+     * Overwrite entire state with persisted snapshot, e.g. after process death
+     */
+    public void restore(StateSnapshot snapshot) {
+        mSnapshot.set(snapshot);
+        notifyStateChanged();
     }
 
     public long getElapsedTime() {
-        if (startTime == 0) {
-            return elapsedTime;
-        } else {
-            return elapsedTime + (System.currentTimeMillis() - startTime);
-        }
+        return mSnapshot.get().getSessionTime(now());
     }
 
     public void start() {
-        synchronized (mSynchronizedObject) {
-            startTime = System.currentTimeMillis();
-            currentState = STATE_RUNNING;
-            notifyStateChanged();
-        }
+        StateSnapshot prev;
+        long now;
+        do {
+            prev = mSnapshot.get();
+            now = now();
+        } while (!mSnapshot.compareAndSet(prev, started(prev, now)));
+        notifyStateChanged();
     }
 
     public void stop() {
-        synchronized (mSynchronizedObject) {
-            totalTime += getElapsedTime();
-            startTime = 0;
-            elapsedTime = 0;
-            currentState = STATE_STOPPED;
-            notifyStateChanged();
-        }
+        StateSnapshot prev;
+        long now;
+        do {
+            prev = mSnapshot.get();
+            now = now();
+        } while (!mSnapshot.compareAndSet(prev, stopped(prev, now)));
+        notifyStateChanged();
     }
 
     public void pause() {
-        synchronized (mSynchronizedObject) {
-            elapsedTime = elapsedTime + (System.currentTimeMillis() - startTime);
-            startTime = 0;
-            currentState = STATE_PAUSED;
-            notifyStateChanged();
+        StateSnapshot prev;
+        StateSnapshot next;
+        long now;
+        do {
+            prev = mSnapshot.get();
+            now = now();
+            next = new StateSnapshot(STATE_PAUSED, 0, prev.getSessionTime(now), prev.totalTime, dayOf(prev, now),
+                    prev.carriedTime);
+        } while (!mSnapshot.compareAndSet(prev, next));
+        notifyStateChanged();
+    }
+
+    /**
+     * Start if not running, otherwise stop, as one atomic transition.
+     * @return state right before the transition, e.g. to store the session it closed
+     */
+    public StateSnapshot toggle(long now) {
+        StateSnapshot prev;
+        StateSnapshot next;
+        do {
+            prev = mSnapshot.get();
+            next = prev.isRunning() ? stopped(prev, now) : started(prev, now);
+        } while (!mSnapshot.compareAndSet(prev, next));
+        notifyStateChanged();
+        return prev;
+    }
+
+    private static StateSnapshot started(StateSnapshot prev, long now) {
+        if (prev.isRunning()) {
+            return prev;
+        }
+        return new StateSnapshot(STATE_RUNNING, now, prev.elapsedTime, prev.totalTime, dayOf(prev, now),
+                prev.carriedTime);
+    }
+
+    private static StateSnapshot stopped(StateSnapshot prev, long now) {
+        return new StateSnapshot(STATE_STOPPED, 0, 0, prev.getDayTotal(now), dayOf(prev, now), 0);
+    }
+
+    /**
+     * Totals stay on their day until day reset moves them, except for the very first state
+     */
+    private static long dayOf(StateSnapshot prev, long now) {
+        return prev.day != 0 ? prev.day : TimeStorage.toEpochDay(now);
+    }
+
+    public static String msToHourMin(long ms) {
+        final long minutes = (ms / 1000) / 60;
+        final long hours = minutes / 60;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(hours);
+        sb.append(':');
+        if (minutes % 60 < 10) {
+            sb.append(0);
         }
+        sb.append(minutes % 60);
+        return sb.toString();
     }
 
     public static String msToHourMinSec(long ms) {
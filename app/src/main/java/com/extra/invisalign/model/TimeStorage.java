@@ -1,29 +1,37 @@
 package com.extra.invisalign.model;
 
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import com.extra.invisalign.control.TrackerMetrics;
 import com.extra.invisalign.view.SettingFragment;
 
 public class TimeStorage extends SQLiteOpenHelper {
 
     private static final String TAG = "Invisalign::TimeStorage";
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 7;
     private static final String DATABASE_NAME = "time_daily";
 
+    public static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
     /**
      * total time spent of a day in DB
      */
@@ -44,15 +52,150 @@ public class TimeStorage extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * a single continuous period of time spent, never crossing a day boundary
+     */
+    public static class Session {
+
+        public static final String TABLE = "session";
+
+        public static class Columns {
+
+            public static final String ID = "_id";
+            public static final String START = "start";
+            public static final String END = "end";
+            public static final String DAY = "day";
+            public static final String REASON = "reason";
+        }
+
+        public static class Index {
+
+            public static final int ID = 0;
+            public static final int START = 1;
+            public static final int END = 2;
+            public static final int DAY = 3;
+            public static final int REASON = 4;
+        }
+
+        /**
+         * why aligners were out, REASON_NONE if not tagged
+         */
+        public static final int REASON_NONE = 0;
+        public static final int REASON_MEAL = 1;
+        public static final int REASON_CLEANING = 2;
+        public static final int REASON_FORGOT = 3;
+        public static final int REASON_COUNT = 4;
+    }
+
+    /**
+     * sessions of one day and reason, compacted by retention once raw rows are past the horizon
+     */
+    public static class SessionDaily {
+
+        public static final String TABLE = "session_daily";
+
+        public static class Columns {
+
+            public static final String DAY = "day";
+            public static final String REASON = "reason";
+            public static final String SESSIONS = "sessions";
+            public static final String SPENT_TIME = "spent_time";
+        }
+    }
+
+    /**
+     * time out of mouth per weekday and hour of day, over every session still stored raw
+     */
+    public static class Heatmap {
+
+        public static final String TABLE = "heatmap";
+
+        public static class Columns {
+
+            public static final String DAY_OF_WEEK = "day_of_week";
+            public static final String HOUR = "hour";
+            public static final String SPENT_TIME = "spent_time";
+        }
+
+        public static final int DAYS_OF_WEEK = 7;
+
+        /**
+         * cell of weekday d, Sunday 0, and hour h is d * HourBuckets.HOURS + h
+         */
+        public static final int CELLS = DAYS_OF_WEEK * HourBuckets.HOURS;
+    }
+
+    /**
+     * log of session edits, newest last, to undo them
+     */
+    public static class SessionEdit {
+
+        public static final String TABLE = "session_edit";
+
+        public static class Columns {
+
+            public static final String ID = "_id";
+            public static final String OP = "op";
+            public static final String SESSION_ID = "session_id";
+            public static final String OLD_START = "old_start";
+            public static final String OLD_END = "old_end";
+            public static final String OLD_REASON = "old_reason";
+        }
+
+        public static final int OP_INSERT = 0;
+        public static final int OP_UPDATE = 1;
+        public static final int OP_DELETE = 2;
+
+        /**
+         * edits kept for undo, older ones are dropped
+         */
+        public static final int MAX_EDITS = 50;
+
+        /**
+         * results of undoLastEdit : nothing logged, reverted, no longer applicable and dropped, DB error
+         */
+        public static final int UNDO_NONE = 0;
+        public static final int UNDO_APPLIED = 1;
+        public static final int UNDO_DROPPED = 2;
+        public static final int UNDO_FAILED = 3;
+    }
+
     /**
      * preference key of total time spent
      */
     public static final String TIME_SPENT_FOR_SINGLE_DAY = "time_spent_for_single_day";
 
+    /**
+     * fired with local epoch-day whenever total of the day is written
+     */
+    public static final String DAY_UPDATED = "day_updated";
+
+    /**
+     * fired when entire history is replaced, e.g. restored from backup
+     */
+    public static final String HISTORY_REPLACED = "history_replaced";
+
     private static TimeStorage sSingleton;
 
+    private final PropertyChangeSupport observers = new PropertyChangeSupport(this);
+
+    /**
+     * copy of heatmap table, kept in step with each committed write
+     */
+    private final long[] mHeatmap = new long[Heatmap.CELLS];
+    private boolean mHeatmapLoaded = false;
+
+    /**
+     * bumped on every heatmap write, so that a copy read meanwhile is not kept
+     */
+    private long mHeatmapGeneration = 0;
+
     private static Context ctx;
 
+    /**
+     * Connection stays open for the life of the process. It is shared by the tracker and
+     * maintenance jobs, so it is never closed after use.
+     */
     public static synchronized TimeStorage getInstance(Context context) {
         if (sSingleton == null) {
             ctx = context;
@@ -64,11 +207,56 @@ public class TimeStorage extends SQLiteOpenHelper {
         return sSingleton;
     }
 
+    /**
+     * Close shared instance, next getInstance opens it again.
+     * Only for tests, each runs on a fresh application and database.
+     */
+    public static synchronized void closeInstance() {
+        if (sSingleton != null) {
+            sSingleton.close();
+            sSingleton = null;
+        }
+    }
+
+    /**
+     * only the shared instance counts in TrackerMetrics, private ones e.g. of benchmarks do not
+     */
+    private final boolean mRecordMetrics;
+
     private TimeStorage(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mRecordMetrics = true;
         timeSpentRecoverIfNeeded();
     }
 
+    private TimeStorage(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mRecordMetrics = false;
+    }
+
+    /**
+     * @return storage on a private in-memory DB, e.g. for benchmarks, caller must close it
+     */
+    public static TimeStorage newInMemoryInstance(Context context) {
+        return new TimeStorage(context, null);
+    }
+
+    public void addObserver(PropertyChangeListener listener) {
+        observers.addPropertyChangeListener(listener);
+    }
+
+    public void removeObserver(PropertyChangeListener listener) {
+        observers.removePropertyChangeListener(listener);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // takes effect on a new DB only, existing ones are switched by enableIncrementalVacuum
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        // maintenance reads never block tracker writes
+        db.enableWriteAheadLogging();
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         try {
@@ -76,6 +264,10 @@ public class TimeStorage extends SQLiteOpenHelper {
                     Daily.Columns.DATE + " DATETIME PRIMARY KEY, " +
                     Daily.Columns.SPENT_TIME + " INTEGER NOT NULL" +
                     ");");
+            createSessionTable(db);
+            createSessionDailyTable(db);
+            createHeatmapTable(db);
+            createSessionEditTable(db);
         } catch (SQLiteException e) {
             Log.e(TAG, "creating DB causes exception", e);
         }
@@ -83,26 +275,1083 @@ public class TimeStorage extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createSessionTable(db);
+            createSessionDailyTable(db);
+            createHeatmapTable(db);
+            createSessionEditTable(db);
+            return;
+        }
+        if (oldVersion < 3) {
+            // session day, in local epoch-day, for paging history by day
+            db.execSQL("ALTER TABLE " + Session.TABLE + " ADD COLUMN " +
+                    Session.Columns.DAY + " INTEGER NOT NULL DEFAULT 0");
+            Cursor c = db.query(Session.TABLE,
+                    new String[] { Session.Columns.ID, Session.Columns.START }, null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    ContentValues cv = new ContentValues(1);
+                    cv.put(Session.Columns.DAY, toEpochDay(c.getLong(1)));
+                    db.update(Session.TABLE, cv, Session.Columns.ID + "=" + c.getLong(0), null);
+                }
+            } finally {
+                c.close();
+            }
+            createSessionDayIndex(db);
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + Session.TABLE + " ADD COLUMN " +
+                    Session.Columns.REASON + " INTEGER NOT NULL DEFAULT " + Session.REASON_NONE);
+            createSessionReasonIndex(db);
+        }
+        if (oldVersion < 5) {
+            createSessionDailyTable(db);
+        }
+        if (oldVersion < 6) {
+            createHeatmapTable(db);
+            writeHeatmap(db, computeHeatmap(db));
+        }
+        if (oldVersion < 7) {
+            createSessionEditTable(db);
+        }
+    }
+
+    /**
+     * Only what an undo needs : new values are those of the session row itself
+     */
+    private static void createSessionEditTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SessionEdit.TABLE + "(" +
+                SessionEdit.Columns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                SessionEdit.Columns.OP + " INTEGER NOT NULL, " +
+                SessionEdit.Columns.SESSION_ID + " INTEGER NOT NULL, " +
+                SessionEdit.Columns.OLD_START + " INTEGER NOT NULL DEFAULT 0, " +
+                SessionEdit.Columns.OLD_END + " INTEGER NOT NULL DEFAULT 0, " +
+                SessionEdit.Columns.OLD_REASON + " INTEGER NOT NULL DEFAULT " + Session.REASON_NONE +
+                ");");
+    }
 
+    /**
+     * Every cell exists from the start, so that writes only ever add to it
+     */
+    private static void createHeatmapTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Heatmap.TABLE + "(" +
+                Heatmap.Columns.DAY_OF_WEEK + " INTEGER NOT NULL, " +
+                Heatmap.Columns.HOUR + " INTEGER NOT NULL, " +
+                Heatmap.Columns.SPENT_TIME + " INTEGER NOT NULL DEFAULT 0, " +
+                "PRIMARY KEY (" + Heatmap.Columns.DAY_OF_WEEK + ", " + Heatmap.Columns.HOUR + ")" +
+                ");");
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + Heatmap.TABLE +
+                " (" + Heatmap.Columns.DAY_OF_WEEK + ", " + Heatmap.Columns.HOUR + ") VALUES (?, ?)");
+        try {
+            for (int cell = 0; cell < Heatmap.CELLS; cell++) {
+                insert.bindLong(1, cell / HourBuckets.HOURS);
+                insert.bindLong(2, cell % HourBuckets.HOURS);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static void createSessionDailyTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SessionDaily.TABLE + "(" +
+                SessionDaily.Columns.DAY + " INTEGER NOT NULL, " +
+                SessionDaily.Columns.REASON + " INTEGER NOT NULL, " +
+                SessionDaily.Columns.SESSIONS + " INTEGER NOT NULL, " +
+                SessionDaily.Columns.SPENT_TIME + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + SessionDaily.Columns.DAY + ", " + SessionDaily.Columns.REASON + ")" +
+                ");");
+    }
+
+    private static void createSessionTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Session.TABLE + "(" +
+                Session.Columns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                Session.Columns.START + " INTEGER NOT NULL, " +
+                Session.Columns.END + " INTEGER NOT NULL, " +
+                Session.Columns.DAY + " INTEGER NOT NULL DEFAULT 0, " +
+                Session.Columns.REASON + " INTEGER NOT NULL DEFAULT " + Session.REASON_NONE +
+                ");");
+        createSessionDayIndex(db);
+        createSessionReasonIndex(db);
+    }
+
+    private static void createSessionDayIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Session.TABLE + "_" + Session.Columns.DAY +
+                " ON " + Session.TABLE + "(" + Session.Columns.DAY + ")");
+    }
+
+    /**
+     * backs per-reason totals and trends over a range of days
+     */
+    private static void createSessionReasonIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Session.TABLE + "_" + Session.Columns.REASON + "_" +
+                Session.Columns.DAY + " ON " + Session.TABLE +
+                "(" + Session.Columns.REASON + ", " + Session.Columns.DAY + ")");
     }
 
     private static final String INSERT_DAY_TIME =
             "INSERT OR REPLACE INTO " + Daily.TABLE +
                     " (" + Daily.Columns.DATE + ", " + Daily.Columns.SPENT_TIME + ")" +
-                    " VALUES (date(), " + " %d)";
+                    " VALUES ('%s', " + " %d)";
 
     /**
      * Store final time spent of full day in DB
      */
     public void addOrUpdateTime(long timeSpent) {
+        addOrUpdateTime(todayEpochDay(), timeSpent);
+    }
+
+    /**
+     * Store time spent of given local epoch-day in DB
+     */
+    public void addOrUpdateTime(long epochDay, long timeSpent) {
         Log.v(TAG, "addTime : " + timeSpent);
+        final long begin = beginWrite();
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.execSQL(String.format(INSERT_DAY_TIME, timeSpent));
-            Log.d(TAG, "addOrUpdateTime : " + String.format(INSERT_DAY_TIME, timeSpent));
-            db.close();
+            final String sql = String.format(Locale.US, INSERT_DAY_TIME, epochDayToDate(epochDay), timeSpent);
+            db.execSQL(sql);
+            Log.d(TAG, "addOrUpdateTime : " + sql);
+            observers.firePropertyChange(DAY_UPDATED, null, epochDay);
         } catch (SQLException e) {
             Log.e(TAG, "unable to update time", e);
+        } finally {
+            endWrite(TrackerMetrics.OP_DB_WRITE, begin);
+        }
+    }
+
+    /**
+     * Store a finished session. Caller must split sessions at day boundary.
+     */
+    public void addSession(long start, long end) {
+        addSession(start, end, Session.REASON_NONE);
+    }
+
+    public void addSession(long start, long end, int reason) {
+        Log.v(TAG, "addSession : " + start + " ~ " + end + ", reason " + reason);
+        if (end <= start) {
+            return;
+        }
+        final long begin = beginWrite();
+        final long[] delta = heatmapDelta(start, end, 1);
+        boolean committed = false;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues cv = new ContentValues(4);
+            cv.put(Session.Columns.START, start);
+            cv.put(Session.Columns.END, end);
+            cv.put(Session.Columns.DAY, toEpochDay(start));
+            cv.put(Session.Columns.REASON, reason);
+            db.insert(Session.TABLE, null, cv);
+            addToHeatmap(db, delta);
+            db.setTransactionSuccessful();
+            committed = true;
+        } catch (SQLException e) {
+            Log.e(TAG, "unable to add session", e);
+        } finally {
+            db.endTransaction();
+            endWrite(TrackerMetrics.OP_DB_WRITE, begin);
+        }
+        if (committed) {
+            addToHeatmapCache(delta);
+        }
+    }
+
+    /**
+     * Store a finished session with its reason and total of its day, in one transaction.
+     * Caller must split sessions at day boundary.
+     */
+    public void closeSession(long start, long end, int reason, long epochDay, long timeSpent) {
+        Log.v(TAG, "closeSession : " + start + " ~ " + end + ", reason " + reason);
+        final long begin = beginWrite();
+        final long[] delta = heatmapDelta(start, end, 1);
+        boolean committed = false;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (end > start) {
+                ContentValues cv = new ContentValues(4);
+                cv.put(Session.Columns.START, start);
+                cv.put(Session.Columns.END, end);
+                cv.put(Session.Columns.DAY, toEpochDay(start));
+                cv.put(Session.Columns.REASON, reason);
+                db.insert(Session.TABLE, null, cv);
+                addToHeatmap(db, delta);
+            }
+            db.execSQL(String.format(Locale.US, INSERT_DAY_TIME, epochDayToDate(epochDay), timeSpent));
+            db.setTransactionSuccessful();
+            committed = true;
+        } catch (SQLException e) {
+            Log.e(TAG, "unable to close session", e);
+        } finally {
+            db.endTransaction();
+            endWrite(TrackerMetrics.OP_DB_WRITE, begin);
+        }
+        if (committed) {
+            addToHeatmapCache(delta);
+        }
+        observers.firePropertyChange(DAY_UPDATED, null, epochDay);
+    }
+
+    /**
+     * Tag latest session, e.g. reason chosen after it was closed
+     */
+    public void tagLastSession(int reason) {
+        Log.v(TAG, "tagLastSession : " + reason);
+        final long begin = beginWrite();
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.execSQL("UPDATE " + Session.TABLE + " SET " + Session.Columns.REASON + "=" + reason +
+                    " WHERE " + Session.Columns.ID + "=(SELECT MAX(" + Session.Columns.ID + ") FROM " +
+                    Session.TABLE + ")");
+        } catch (SQLException e) {
+            Log.e(TAG, "unable to tag session", e);
+        } finally {
+            endWrite(TrackerMetrics.OP_DB_WRITE, begin);
+        }
+    }
+
+    /**
+     * Sum session time of each reason over days [fromDay, toDay], one index range per reason.
+     * @param totals indexed by reason, at least Session.REASON_COUNT long
+     */
+    public void loadReasonTotals(long fromDay, long toDay, long[] totals) {
+        SQLiteDatabase db = getReadableDatabase();
+        SQLiteStatement sum = db.compileStatement("SELECT (SELECT IFNULL(SUM(" + Session.Columns.END + "-" +
+                Session.Columns.START + "), 0) FROM " + Session.TABLE + " WHERE " + Session.Columns.REASON +
+                "=?1 AND " + Session.Columns.DAY + " BETWEEN ?2 AND ?3)" +
+                " + (SELECT IFNULL(SUM(" + SessionDaily.Columns.SPENT_TIME + "), 0) FROM " + SessionDaily.TABLE +
+                " WHERE " + SessionDaily.Columns.REASON + "=?1 AND " + SessionDaily.Columns.DAY +
+                " BETWEEN ?2 AND ?3)");
+        try {
+            for (int reason = 0; reason < Session.REASON_COUNT; reason++) {
+                sum.bindLong(1, reason);
+                sum.bindLong(2, fromDay);
+                sum.bindLong(3, toDay);
+                totals[reason] = sum.simpleQueryForLong();
+            }
+        } finally {
+            sum.close();
+        }
+    }
+
+    /**
+     * Load session time of one reason per day of [fromDay, fromDay + spent.length), for trends.
+     * Days without such session are left as 0.
+     */
+    public void loadReasonDays(int reason, long fromDay, long[] spent) {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = db.rawQuery("SELECT " + Session.Columns.DAY + ", SUM(" + Session.Columns.END + "-" +
+                Session.Columns.START + ") FROM " + Session.TABLE + " WHERE " + Session.Columns.REASON +
+                "=?1 AND " + Session.Columns.DAY + " BETWEEN ?2 AND ?3 GROUP BY " + Session.Columns.DAY +
+                " UNION ALL SELECT " + SessionDaily.Columns.DAY + ", " + SessionDaily.Columns.SPENT_TIME +
+                " FROM " + SessionDaily.TABLE + " WHERE " + SessionDaily.Columns.REASON + "=?1 AND " +
+                SessionDaily.Columns.DAY + " BETWEEN ?2 AND ?3",
+                new String[] { String.valueOf(reason), String.valueOf(fromDay),
+                        String.valueOf(fromDay + spent.length - 1) });
+        try {
+            while (c.moveToNext()) {
+                // a day is either compacted or not, but add in case both are there
+                spent[(int) (c.getLong(0) - fromDay)] += c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public interface SessionVisitor {
+
+        void onSession(long start, long end, int reason);
+    }
+
+    /**
+     * Visit every session of days [fromDay, toDay] in start order, e.g. to rebuild statistics.
+     */
+    public void forEachSession(long fromDay, long toDay, SessionVisitor visitor) {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = db.query(Session.TABLE,
+                new String[] { Session.Columns.START, Session.Columns.END, Session.Columns.REASON },
+                Session.Columns.DAY + " BETWEEN ? AND ?",
+                new String[] { String.valueOf(fromDay), String.valueOf(toDay) },
+                null, null, Session.Columns.START);
+        try {
+            while (c.moveToNext()) {
+                visitor.onSession(c.getLong(0), c.getLong(1), c.getInt(2));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return cursor of every daily total ordered by date. Caller must close it.
+     */
+    public Cursor queryDaily(SQLiteDatabase db) {
+        return db.query(Daily.TABLE,
+                new String[] { Daily.Columns.DATE, Daily.Columns.SPENT_TIME },
+                null, null, null, null, Daily.Columns.DATE);
+    }
+
+    /**
+     * @return cursor of every session ordered by start time. Caller must close it.
+     */
+    public Cursor querySessions(SQLiteDatabase db) {
+        return db.query(Session.TABLE,
+                new String[] { Session.Columns.ID, Session.Columns.START, Session.Columns.END,
+                        Session.Columns.DAY, Session.Columns.REASON },
+                null, null, null, null, Session.Columns.START);
+    }
+
+    /**
+     * @return cursor of every compacted day and reason ordered by day. Caller must close it.
+     */
+    public Cursor querySessionDaily(SQLiteDatabase db) {
+        return db.query(SessionDaily.TABLE,
+                new String[] { SessionDaily.Columns.DAY, SessionDaily.Columns.REASON,
+                        SessionDaily.Columns.SESSIONS, SessionDaily.Columns.SPENT_TIME },
+                null, null, null, null, SessionDaily.Columns.DAY + ", " + SessionDaily.Columns.REASON);
+    }
+
+    /**
+     * Replace entire history with given rows in a single transaction.
+     * Arrays are expected to be parallel, days in epoch-day.
+     * Compacted rows are per day and reason, as written by compactSessions.
+     * @return false if nothing is replaced as the transaction failed
+     */
+    public boolean replaceAll(long[] days, long[] spent, int dayCount,
+            long[] starts, long[] ends, int[] reasons, int sessionCount,
+            long[] compactedDays, int[] compactedReasons, int[] compactedSessions, long[] compactedSpent,
+            int compactedCount) {
+        Log.v(TAG, "replaceAll : days " + dayCount + ", sessions " + sessionCount
+                + ", compacted " + compactedCount);
+        final long begin = beginWrite();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(Daily.TABLE, null, null);
+            db.delete(Session.TABLE, null, null);
+            db.delete(SessionDaily.TABLE, null, null);
+            // ids of the log refer to replaced rows
+            db.delete(SessionEdit.TABLE, null, null);
+
+            SQLiteStatement insertDay = db.compileStatement(
+                    "INSERT INTO " + Daily.TABLE +
+                            " (" + Daily.Columns.DATE + ", " + Daily.Columns.SPENT_TIME + ") VALUES (?, ?)");
+            for (int i = 0; i < dayCount; i++) {
+                insertDay.bindString(1, epochDayToDate(days[i]));
+                insertDay.bindLong(2, spent[i]);
+                insertDay.executeInsert();
+            }
+            insertDay.close();
+
+            SQLiteStatement insertSession = db.compileStatement(
+                    "INSERT INTO " + Session.TABLE +
+                            " (" + Session.Columns.START + ", " + Session.Columns.END + ", " +
+                            Session.Columns.DAY + ", " + Session.Columns.REASON + ") VALUES (?, ?, ?, ?)");
+            for (int i = 0; i < sessionCount; i++) {
+                insertSession.bindLong(1, starts[i]);
+                insertSession.bindLong(2, ends[i]);
+                insertSession.bindLong(3, toEpochDay(starts[i]));
+                insertSession.bindLong(4, reasons[i]);
+                insertSession.executeInsert();
+            }
+            insertSession.close();
+
+            SQLiteStatement insertCompacted = db.compileStatement(
+                    "INSERT INTO " + SessionDaily.TABLE +
+                            " (" + SessionDaily.Columns.DAY + ", " + SessionDaily.Columns.REASON + ", " +
+                            SessionDaily.Columns.SESSIONS + ", " + SessionDaily.Columns.SPENT_TIME +
+                            ") VALUES (?, ?, ?, ?)");
+            for (int i = 0; i < compactedCount; i++) {
+                insertCompacted.bindLong(1, compactedDays[i]);
+                insertCompacted.bindLong(2, compactedReasons[i]);
+                insertCompacted.bindLong(3, compactedSessions[i]);
+                insertCompacted.bindLong(4, compactedSpent[i]);
+                insertCompacted.executeInsert();
+            }
+            insertCompacted.close();
+
+            // heatmap covers raw sessions only, as after compaction
+            writeHeatmap(db, computeHeatmap(db));
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(TAG, "unable to replace history", e);
+            return false;
+        } finally {
+            db.endTransaction();
+            endWrite(TrackerMetrics.OP_DB_WRITE, begin);
+        }
+        invalidateHeatmapCache();
+        observers.firePropertyChange(HISTORY_REPLACED, null, dayCount);
+        return true;
+    }
+
+    /**
+     * Fold raw sessions of the oldest days before beforeDay into per day and reason aggregates
+     * and delete them, in one transaction covering at most maxDays days.
+     * Called repeatedly, so that a large backlog never holds the DB for long.
+     * @return number of sessions compacted, 0 when nothing is left before beforeDay
+     */
+    public int compactSessions(long beforeDay, int maxDays) {
+        SQLiteDatabase db = getWritableDatabase();
+        final long firstDay = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(" + Session.Columns.DAY + "), ?) FROM " +
+                Session.TABLE + " WHERE " + Session.Columns.DAY + " < ?",
+                new String[] { String.valueOf(beforeDay), String.valueOf(beforeDay) });
+        if (firstDay >= beforeDay) {
+            return 0;
+        }
+        final String[] range = { String.valueOf(firstDay), String.valueOf(Math.min(firstDay + maxDays, beforeDay) - 1) };
+        Log.v(TAG, "compactSessions : days " + range[0] + " ~ " + range[1]);
+
+        final long begin = beginWrite();
+        final long[] delta = new long[Heatmap.CELLS];
+        int compacted = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            // add onto aggregates already there, a day may be compacted in more than one pass
+            db.execSQL("INSERT OR REPLACE INTO " + SessionDaily.TABLE + " (" + SessionDaily.Columns.DAY + ", " +
+                    SessionDaily.Columns.REASON + ", " + SessionDaily.Columns.SESSIONS + ", " +
+                    SessionDaily.Columns.SPENT_TIME + ") SELECT s." + Session.Columns.DAY + ", s." +
+                    Session.Columns.REASON + ", COUNT(*) + IFNULL(d." + SessionDaily.Columns.SESSIONS + ", 0), SUM(s." +
+                    Session.Columns.END + " - s." + Session.Columns.START + ") + IFNULL(d." +
+                    SessionDaily.Columns.SPENT_TIME + ", 0) FROM " + Session.TABLE + " s LEFT JOIN " +
+                    SessionDaily.TABLE + " d ON d." + SessionDaily.Columns.DAY + " = s." + Session.Columns.DAY +
+                    " AND d." + SessionDaily.Columns.REASON + " = s." + Session.Columns.REASON +
+                    " WHERE s." + Session.Columns.DAY + " BETWEEN ? AND ? GROUP BY s." + Session.Columns.DAY +
+                    ", s." + Session.Columns.REASON, range);
+            // heatmap covers raw sessions only, so it can always be rebuilt from them
+            Cursor c = db.query(Session.TABLE, new String[] { Session.Columns.START, Session.Columns.END },
+                    Session.Columns.DAY + " BETWEEN ? AND ?", range, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    accumulateHeatmap(delta, c.getLong(0), c.getLong(1), -1);
+                }
+            } finally {
+                c.close();
+            }
+            addToHeatmap(db, delta);
+            compacted = db.delete(Session.TABLE, Session.Columns.DAY + " BETWEEN ? AND ?", range);
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(TAG, "unable to compact sessions", e);
+            compacted = 0;
+        } finally {
+            db.endTransaction();
+            endWrite(TrackerMetrics.OP_DB_WRITE, begin);
+        }
+        if (compacted > 0) {
+            addToHeatmapCache(delta);
+        }
+        return compacted;
+    }
+
+    /**
+     * Add a session to a past day
+     * @return id of new session, -1 if not a valid session of a past day
+     */
+    public long insertSession(long start, long end, int reason) {
+        return editSession(SessionEdit.OP_INSERT, 0, start, end, reason);
+    }
+
+    /**
+     * Change a stored session of a past day, it may move to another past day
+     * @return false if there is no such session or new one is invalid
+     */
+    public boolean updateSession(long id, long start, long end, int reason) {
+        return editSession(SessionEdit.OP_UPDATE, id, start, end, reason) > 0;
+    }
+
+    public boolean deleteSession(long id) {
+        return editSession(SessionEdit.OP_DELETE, id, 0, 0, Session.REASON_NONE) > 0;
+    }
+
+    /**
+     * Revert the latest logged edit, repeatedly up to SessionEdit.MAX_EDITS.
+     * An edit that no longer applies, e.g. its day was compacted since, is dropped from the log
+     * so that older ones can still be undone.
+     * @return one of SessionEdit.UNDO_*
+     */
+    public int undoLastEdit() {
+        final long begin = beginWrite();
+        AppliedEdit undone = null;
+        int result = SessionEdit.UNDO_FAILED;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(SessionEdit.TABLE, new String[] { SessionEdit.Columns.ID, SessionEdit.Columns.OP,
+                    SessionEdit.Columns.SESSION_ID, SessionEdit.Columns.OLD_START, SessionEdit.Columns.OLD_END,
+                    SessionEdit.Columns.OLD_REASON }, null, null, null, null, SessionEdit.Columns.ID + " DESC", "1");
+            final long editId;
+            final int op;
+            final long sessionId;
+            final long oldStart;
+            final long oldEnd;
+            final int oldReason;
+            try {
+                if (!c.moveToFirst()) {
+                    result = SessionEdit.UNDO_NONE;
+                    return result;
+                }
+                editId = c.getLong(0);
+                op = c.getInt(1);
+                sessionId = c.getLong(2);
+                oldStart = c.getLong(3);
+                oldEnd = c.getLong(4);
+                oldReason = c.getInt(5);
+            } finally {
+                c.close();
+            }
+            Log.v(TAG, "undoLastEdit : op " + op + ", session " + sessionId);
+
+            // inverse edit runs in this transaction, so log and rollups move together
+            switch (op) {
+                case SessionEdit.OP_INSERT:
+                    undone = applyEdit(db, SessionEdit.OP_DELETE, sessionId, 0, 0, Session.REASON_NONE);
+                    break;
+                case SessionEdit.OP_DELETE:
+                    undone = applyEdit(db, SessionEdit.OP_INSERT, sessionId, oldStart, oldEnd, oldReason);
+                    break;
+                default:
+                    undone = applyEdit(db, SessionEdit.OP_UPDATE, sessionId, oldStart, oldEnd, oldReason);
+                    break;
+            }
+            if (undone == null) {
+                // nothing was written, only the stale entry goes
+                Log.w(TAG, "undoLastEdit : edit " + editId + " no longer applies, dropped");
+            }
+            db.delete(SessionEdit.TABLE, SessionEdit.Columns.ID + "=" + editId, null);
+            db.setTransactionSuccessful();
+            result = undone != null ? SessionEdit.UNDO_APPLIED : SessionEdit.UNDO_DROPPED;
+        } catch (SQLException e) {
+            Log.e(TAG, "unable to undo edit", e);
+            undone = null;
+            result = SessionEdit.UNDO_FAILED;
+        } finally {
+            db.endTransaction();
+            endWrite(TrackerMetrics.OP_DB_WRITE, begin);
+            endWrite(TrackerMetrics.OP_SESSION_EDIT, begin);
+        }
+        if (undone != null) {
+            publishEdit(undone);
+        }
+        return result;
+    }
+
+    /**
+     * Apply and log one edit in a single transaction, see applyEdit
+     * @param id session to change, 0 for an insert
+     * @return id of edited session, -1 if rejected or failed
+     */
+    private long editSession(int op, long id, long start, long end, int reason) {
+        Log.v(TAG, "editSession : op " + op + ", session " + id + ", " + start + " ~ " + end);
+        final long begin = beginWrite();
+        AppliedEdit edit = null;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            edit = applyEdit(db, op, id, start, end, reason);
+            if (edit == null) {
+                return -1;
+            }
+            ContentValues log = new ContentValues(5);
+            log.put(SessionEdit.Columns.OP, op);
+            log.put(SessionEdit.Columns.SESSION_ID, edit.id);
+            log.put(SessionEdit.Columns.OLD_START, edit.oldStart);
+            log.put(SessionEdit.Columns.OLD_END, edit.oldEnd);
+            log.put(SessionEdit.Columns.OLD_REASON, edit.oldReason);
+            final long editId = db.insertOrThrow(SessionEdit.TABLE, null, log);
+            db.delete(SessionEdit.TABLE, SessionEdit.Columns.ID + "<=" + (editId - SessionEdit.MAX_EDITS), null);
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(TAG, "unable to edit session", e);
+            edit = null;
+        } finally {
+            db.endTransaction();
+            endWrite(TrackerMetrics.OP_DB_WRITE, begin);
+            endWrite(TrackerMetrics.OP_SESSION_EDIT, begin);
+        }
+        if (edit == null) {
+            return -1;
+        }
+        publishEdit(edit);
+        return edit.id;
+    }
+
+    /**
+     * An edit written to DB, with what it changes in memory once committed
+     */
+    private static class AppliedEdit {
+
+        long id;
+        boolean hasOld;
+        long oldStart;
+        long oldEnd;
+        int oldReason = Session.REASON_NONE;
+        boolean hasNew;
+        long newStart;
+        final long[] heatmapDelta = new long[Heatmap.CELLS];
+    }
+
+    /**
+     * Apply one edit within caller's transaction and move every rollup it touches by exactly what changed :
+     * the daily total of the old and new day of the session, and the heatmap cells of both ranges.
+     * Nothing else is read, so cost does not depend on history size.
+     * Every check is done before the first write, so a rejected edit leaves the transaction clean.
+     * Days up to today are left to the tracker, whose running total would overwrite the change,
+     * and an edit taking more from a day than its total is rejected, so undo is an exact inverse.
+     * @param id session to change, or for an insert the id to reuse, 0 for a new one
+     * @return applied edit, null if rejected
+     */
+    private static AppliedEdit applyEdit(SQLiteDatabase db, int op, long id, long start, long end, int reason) {
+        final long today = todayEpochDay();
+        AppliedEdit edit = new AppliedEdit();
+        edit.hasOld = op != SessionEdit.OP_INSERT;
+        edit.hasNew = op != SessionEdit.OP_DELETE;
+        if (edit.hasNew && (end <= start || toEpochDay(start) != toEpochDay(end - 1)
+                || toEpochDay(start) >= today)) {
+            Log.w(TAG, "applyEdit : not a session of a past day");
+            return null;
+        }
+
+        Cursor c = db.query(Session.TABLE,
+                new String[] { Session.Columns.START, Session.Columns.END, Session.Columns.REASON },
+                Session.Columns.ID + "=" + id, null, null, null, null);
+        try {
+            final boolean exists = c.moveToFirst();
+            if (exists != edit.hasOld) {
+                // edited session is gone, or the one to restore is back
+                Log.w(TAG, "applyEdit : session " + id + (exists ? " exists" : " not found"));
+                return null;
+            }
+            if (exists) {
+                edit.oldStart = c.getLong(0);
+                edit.oldEnd = c.getLong(1);
+                edit.oldReason = c.getInt(2);
+            }
+        } finally {
+            c.close();
+        }
+        if (edit.hasOld && toEpochDay(edit.oldStart) >= today) {
+            return null;
+        }
+
+        final long oldDay = toEpochDay(edit.oldStart);
+        final long newDay = toEpochDay(start);
+        long oldChange = edit.hasOld ? edit.oldStart - edit.oldEnd : 0;
+        long newChange = edit.hasNew ? end - start : 0;
+        if (edit.hasOld && edit.hasNew && oldDay == newDay) {
+            newChange += oldChange;
+            oldChange = 0;
+        }
+        if (oldChange < 0 && getDailyTotal(db, oldDay) + oldChange < 0
+                || newChange < 0 && getDailyTotal(db, newDay) + newChange < 0) {
+            Log.w(TAG, "applyEdit : daily total would go below zero");
+            return null;
+        }
+
+        ContentValues cv = new ContentValues(5);
+        cv.put(Session.Columns.START, start);
+        cv.put(Session.Columns.END, end);
+        cv.put(Session.Columns.DAY, newDay);
+        cv.put(Session.Columns.REASON, reason);
+        switch (op) {
+            case SessionEdit.OP_INSERT:
+                if (id > 0) {
+                    cv.put(Session.Columns.ID, id);
+                }
+                id = db.insertOrThrow(Session.TABLE, null, cv);
+                break;
+            case SessionEdit.OP_UPDATE:
+                db.update(Session.TABLE, cv, Session.Columns.ID + "=" + id, null);
+                break;
+            case SessionEdit.OP_DELETE:
+                db.delete(Session.TABLE, Session.Columns.ID + "=" + id, null);
+                break;
+        }
+        edit.id = id;
+        edit.newStart = start;
+
+        if (edit.hasOld) {
+            moveDailyTotal(db, oldDay, oldChange);
+            accumulateHeatmap(edit.heatmapDelta, edit.oldStart, edit.oldEnd, -1);
+        }
+        if (edit.hasNew) {
+            moveDailyTotal(db, newDay, newChange);
+            accumulateHeatmap(edit.heatmapDelta, start, end, 1);
+        }
+        addToHeatmap(db, edit.heatmapDelta);
+        return edit;
+    }
+
+    /**
+     * Update what is kept outside DB, only once the edit is committed
+     */
+    private void publishEdit(AppliedEdit edit) {
+        addToHeatmapCache(edit.heatmapDelta);
+        if (edit.hasOld) {
+            observers.firePropertyChange(DAY_UPDATED, null, toEpochDay(edit.oldStart));
+        }
+        if (edit.hasNew) {
+            observers.firePropertyChange(DAY_UPDATED, null, toEpochDay(edit.newStart));
+        }
+    }
+
+    private static long getDailyTotal(SQLiteDatabase db, long day) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + Daily.Columns.SPENT_TIME + "), 0) FROM " +
+                Daily.TABLE + " WHERE " + Daily.Columns.DATE + "=?", new String[] { epochDayToDate(day) });
+    }
+
+    /**
+     * Add change to total of given day, within caller's transaction
+     */
+    private static void moveDailyTotal(SQLiteDatabase db, long day, long change) {
+        if (change == 0) {
+            return;
+        }
+        final String date = epochDayToDate(day);
+        SQLiteStatement update = db.compileStatement("UPDATE " + Daily.TABLE + " SET " + Daily.Columns.SPENT_TIME +
+                "=" + Daily.Columns.SPENT_TIME + "+? WHERE " + Daily.Columns.DATE + "=?");
+        try {
+            update.bindLong(1, change);
+            update.bindString(2, date);
+            if (update.executeUpdateDelete() == 0 && change > 0) {
+                db.execSQL(String.format(Locale.US, INSERT_DAY_TIME, date, change));
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Copy heatmap into given array of Heatmap.CELLS, from memory once loaded
+     */
+    public void loadHeatmap(long[] out) {
+        final long generation;
+        synchronized (mHeatmap) {
+            if (mHeatmapLoaded) {
+                System.arraycopy(mHeatmap, 0, out, 0, Heatmap.CELLS);
+                return;
+            }
+            generation = mHeatmapGeneration;
+        }
+        // read outside of lock, tracker writes never wait on it
+        readHeatmap(getReadableDatabase(), out);
+        synchronized (mHeatmap) {
+            if (!mHeatmapLoaded && generation == mHeatmapGeneration) {
+                System.arraycopy(out, 0, mHeatmap, 0, Heatmap.CELLS);
+                mHeatmapLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * @return true if stored heatmap equals one computed from every raw session
+     */
+    public boolean verifyHeatmap() {
+        SQLiteDatabase db = getReadableDatabase();
+        final long[] stored = new long[Heatmap.CELLS];
+        readHeatmap(db, stored);
+        final long[] computed = computeHeatmap(db);
+        for (int cell = 0; cell < Heatmap.CELLS; cell++) {
+            if (stored[cell] != computed[cell]) {
+                Log.w(TAG, "heatmap cell " + cell + " : stored " + stored[cell] + ", sessions " + computed[cell]);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replace heatmap with one computed from every raw session
+     */
+    public void rebuildHeatmap() {
+        Log.v(TAG, "rebuildHeatmap");
+        final long begin = beginWrite();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            writeHeatmap(db, computeHeatmap(db));
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(TAG, "unable to rebuild heatmap", e);
+        } finally {
+            db.endTransaction();
+            endWrite(TrackerMetrics.OP_DB_WRITE, begin);
+        }
+        invalidateHeatmapCache();
+    }
+
+    private static long[] heatmapDelta(long start, long end, int sign) {
+        final long[] delta = new long[Heatmap.CELLS];
+        accumulateHeatmap(delta, start, end, sign);
+        return delta;
+    }
+
+    private static void accumulateHeatmap(final long[] cells, long start, long end, final int sign) {
+        HourBuckets.split(start, end, new HourBuckets.Sink() {
+
+            @Override
+            public void onBucket(int dayOfWeek, int hour, long millis) {
+                cells[dayOfWeek * HourBuckets.HOURS + hour] += sign * millis;
+            }
+        });
+    }
+
+    private static long[] computeHeatmap(SQLiteDatabase db) {
+        final long[] cells = new long[Heatmap.CELLS];
+        Cursor c = db.query(Session.TABLE, new String[] { Session.Columns.START, Session.Columns.END },
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                accumulateHeatmap(cells, c.getLong(0), c.getLong(1), 1);
+            }
+        } finally {
+            c.close();
+        }
+        return cells;
+    }
+
+    private static void readHeatmap(SQLiteDatabase db, long[] cells) {
+        Cursor c = db.query(Heatmap.TABLE, new String[] { Heatmap.Columns.DAY_OF_WEEK, Heatmap.Columns.HOUR,
+                Heatmap.Columns.SPENT_TIME }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                cells[c.getInt(0) * HourBuckets.HOURS + c.getInt(1)] = c.getLong(2);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Add to cells touched by delta, within caller's transaction
+     */
+    private static void addToHeatmap(SQLiteDatabase db, long[] delta) {
+        SQLiteStatement update = null;
+        try {
+            for (int cell = 0; cell < Heatmap.CELLS; cell++) {
+                if (delta[cell] == 0) {
+                    continue;
+                }
+                if (update == null) {
+                    update = db.compileStatement("UPDATE " + Heatmap.TABLE + " SET " + Heatmap.Columns.SPENT_TIME +
+                            "=" + Heatmap.Columns.SPENT_TIME + "+? WHERE " + Heatmap.Columns.DAY_OF_WEEK +
+                            "=? AND " + Heatmap.Columns.HOUR + "=?");
+                }
+                update.bindLong(1, delta[cell]);
+                update.bindLong(2, cell / HourBuckets.HOURS);
+                update.bindLong(3, cell % HourBuckets.HOURS);
+                update.executeUpdateDelete();
+            }
+        } finally {
+            if (update != null) {
+                update.close();
+            }
+        }
+    }
+
+    private static void writeHeatmap(SQLiteDatabase db, long[] cells) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + Heatmap.TABLE + " SET " +
+                Heatmap.Columns.SPENT_TIME + "=? WHERE " + Heatmap.Columns.DAY_OF_WEEK + "=? AND " +
+                Heatmap.Columns.HOUR + "=?");
+        try {
+            for (int cell = 0; cell < Heatmap.CELLS; cell++) {
+                update.bindLong(1, cells[cell]);
+                update.bindLong(2, cell / HourBuckets.HOURS);
+                update.bindLong(3, cell % HourBuckets.HOURS);
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Apply a committed delta to memory copy, if loaded
+     */
+    private void addToHeatmapCache(long[] delta) {
+        synchronized (mHeatmap) {
+            mHeatmapGeneration++;
+            if (!mHeatmapLoaded) {
+                return;
+            }
+            for (int cell = 0; cell < Heatmap.CELLS; cell++) {
+                mHeatmap[cell] += delta[cell];
+            }
+        }
+    }
+
+    private void invalidateHeatmapCache() {
+        synchronized (mHeatmap) {
+            mHeatmapGeneration++;
+            mHeatmapLoaded = false;
+        }
+    }
+
+    /**
+     * Make sure no past day in [fromDay, toDay] totals less than its sessions, compacted ones included.
+     * Days recorded before sessions existed have a total but no session, they are left as is.
+     * Caller must keep toDay before today, whose total is still counted by the tracker.
+     * @return number of days repaired
+     */
+    public int repairDailyTotals(long fromDay, long toDay) {
+        SQLiteDatabase db = getWritableDatabase();
+        final String[] range = { String.valueOf(fromDay), String.valueOf(toDay) };
+        Cursor c = db.rawQuery("SELECT " + Session.Columns.DAY + ", SUM(" + Session.Columns.END + "-" +
+                Session.Columns.START + ") FROM " + Session.TABLE + " WHERE " + Session.Columns.DAY +
+                " BETWEEN ?1 AND ?2 GROUP BY " + Session.Columns.DAY +
+                " UNION ALL SELECT " + SessionDaily.Columns.DAY + ", SUM(" + SessionDaily.Columns.SPENT_TIME +
+                ") FROM " + SessionDaily.TABLE + " WHERE " + SessionDaily.Columns.DAY + " BETWEEN ?1 AND ?2" +
+                " GROUP BY " + SessionDaily.Columns.DAY, range);
+        final long[] sessionTotals = new long[(int) (toDay - fromDay + 1)];
+        try {
+            while (c.moveToNext()) {
+                sessionTotals[(int) (c.getLong(0) - fromDay)] += c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+        final long[] dailyTotals = new long[sessionTotals.length];
+        loadDays(fromDay, dailyTotals, null);
+
+        int repaired = 0;
+        for (int i = 0; i < sessionTotals.length; i++) {
+            if (sessionTotals[i] > dailyTotals[i]) {
+                Log.w(TAG, "repair day " + (fromDay + i) + " : " + dailyTotals[i] + " -> " + sessionTotals[i]);
+                addOrUpdateTime(fromDay + i, sessionTotals[i]);
+                repaired++;
+            }
+        }
+        return repaired;
+    }
+
+    /**
+     * @return true if free pages are reclaimed by incrementalVacuum, instead of only by a full VACUUM
+     */
+    public boolean isIncrementalVacuum() {
+        // 0 none, 1 full, 2 incremental
+        return DatabaseUtils.longForQuery(getReadableDatabase(), "PRAGMA auto_vacuum", null) == 2;
+    }
+
+    /**
+     * Switch a DB created before incremental vacuum. This rebuilds the whole file once,
+     * so it is only run from maintenance and never again afterwards.
+     * VACUUM cannot run inside onUpgrade's transaction, and it holds the write connection
+     * for as long as the rebuild takes, about a second per few MB. Any write meanwhile waits,
+     * so callers only run it while no session is running and closeSession cannot be pending.
+     */
+    public void enableIncrementalVacuum() {
+        Log.v(TAG, "enableIncrementalVacuum");
+        SQLiteDatabase db = getWritableDatabase();
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+    }
+
+    /**
+     * Return up to given number of free pages to the file system
+     * @return free pages left
+     */
+    public long incrementalVacuum(int pages) {
+        SQLiteDatabase db = getWritableDatabase();
+        // each row stepped frees a page
+        Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        try {
+            while (c.moveToNext()) {
+                // keep stepping
+            }
+        } finally {
+            c.close();
+        }
+        return getFreePages();
+    }
+
+    /**
+     * @return size of DB file in bytes
+     */
+    public long getDatabaseSize() {
+        SQLiteDatabase db = getReadableDatabase();
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    public long getFreePages() {
+        return DatabaseUtils.longForQuery(getReadableDatabase(), "PRAGMA freelist_count", null);
+    }
+
+    /**
+     * Count a write transaction, each commit costs a journal fsync
+     * @return mark for endWrite
+     */
+    private long beginWrite() {
+        if (!mRecordMetrics) {
+            return 0;
+        }
+        TrackerMetrics.increment(TrackerMetrics.COUNTER_DB_TRANSACTION);
+        TrackerMetrics.increment(TrackerMetrics.COUNTER_FSYNC);
+        return TrackerMetrics.begin();
+    }
+
+    private void endWrite(int op, long begin) {
+        if (mRecordMetrics) {
+            TrackerMetrics.end(op, begin);
+        }
+    }
+
+    /**
+     * @return earliest local epoch-day having any record, today if nothing recorded
+     */
+    public long getFirstEpochDay() {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = db.rawQuery("SELECT MIN(" + Daily.Columns.DATE + ") FROM " + Daily.TABLE, null);
+        try {
+            if (c.moveToFirst() && !c.isNull(0)) {
+                return Math.min(dateToEpochDay(c.getString(0)), todayEpochDay());
+            }
+            return todayEpochDay();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Load daily totals and session counts of days [fromDay, fromDay + spent.length).
+     * Days without record are left as 0.
+     * @param sessionCounts null to skip counting sessions
+     */
+    public void loadDays(long fromDay, long[] spent, int[] sessionCounts) {
+        final long toDay = fromDay + spent.length - 1;
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = db.query(Daily.TABLE,
+                new String[] { Daily.Columns.DATE, Daily.Columns.SPENT_TIME },
+                Daily.Columns.DATE + " BETWEEN ? AND ?",
+                new String[] { epochDayToDate(fromDay), epochDayToDate(toDay) },
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final long day = dateToEpochDay(c.getString(Daily.Index.DATE));
+                spent[(int) (day - fromDay)] = c.getLong(Daily.Index.SPENT_TIME);
+            }
+        } finally {
+            c.close();
+        }
+
+        if (sessionCounts == null) {
+            return;
+        }
+        c = db.rawQuery("SELECT " + Session.Columns.DAY + ", COUNT(*) FROM " + Session.TABLE +
+                " WHERE " + Session.Columns.DAY + " BETWEEN ?1 AND ?2" +
+                " GROUP BY " + Session.Columns.DAY +
+                " UNION ALL SELECT " + SessionDaily.Columns.DAY + ", SUM(" + SessionDaily.Columns.SESSIONS +
+                ") FROM " + SessionDaily.TABLE + " WHERE " + SessionDaily.Columns.DAY + " BETWEEN ?1 AND ?2" +
+                " GROUP BY " + SessionDaily.Columns.DAY,
+                new String[] { Long.toString(fromDay), Long.toString(toDay) });
+        try {
+            while (c.moveToNext()) {
+                sessionCounts[(int) (c.getLong(0) - fromDay)] += c.getInt(1);
+            }
+        } finally {
+            c.close();
         }
     }
 
@@ -110,6 +1359,7 @@ public class TimeStorage extends SQLiteOpenHelper {
         Log.v(TAG, "setLongToPreference : " + "key : " + key + ", " + value);
         SharedPreferences pref = ctx.getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME,
                 Context.MODE_PRIVATE);
+        TrackerMetrics.increment(TrackerMetrics.COUNTER_FSYNC);
         return pref.edit()
                 .putLong(key, value)
                 .commit();
@@ -126,6 +1376,7 @@ public class TimeStorage extends SQLiteOpenHelper {
         Log.v(TAG, "setLongToPreference : " + "key : " + key + ", " + value);
         SharedPreferences pref = ctx.getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME,
                 Context.MODE_PRIVATE);
+        TrackerMetrics.increment(TrackerMetrics.COUNTER_FSYNC);
         return pref.edit()
                 .putBoolean(key, value)
                 .commit();
@@ -184,6 +1435,65 @@ public class TimeStorage extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * @return local epoch-day of given wall clock time
+     */
+    public static long toEpochDay(long millis) {
+        final long local = millis + TimeZone.getDefault().getOffset(millis);
+        final long day = local / DAY_IN_MILLIS;
+        return local < 0 && local % DAY_IN_MILLIS != 0 ? day - 1 : day;
+    }
+
+    public static long todayEpochDay() {
+        return toEpochDay(TimeStatus.getInstance().now());
+    }
+
+    /**
+     * @return wall clock time of local midnight starting given epoch-day
+     */
+    public static long startOfEpochDay(long epochDay) {
+        final TimeZone tz = TimeZone.getDefault();
+        final long utcMidnight = epochDay * DAY_IN_MILLIS;
+        // offset may differ around the midnight due to daylight saving, so apply it twice
+        return utcMidnight - tz.getOffset(utcMidnight - tz.getOffset(utcMidnight));
+    }
+
+    /**
+     * @param dateStr date in DB format, yyyy-MM-dd
+     * @return days since 1970-01-01, independent of timezone
+     */
+    public static long dateToEpochDay(String dateStr) {
+        final int year = Integer.parseInt(dateStr.substring(0, 4));
+        final int month = Integer.parseInt(dateStr.substring(5, 7));
+        final int day = Integer.parseInt(dateStr.substring(8, 10));
+
+        // days from civil, proleptic gregorian
+        final long y = month <= 2 ? year - 1 : year;
+        final long era = (y >= 0 ? y : y - 399) / 400;
+        final long yoe = y - era * 400;
+        final long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * @param epochDay days since 1970-01-01
+     * @return date in DB format, yyyy-MM-dd
+     */
+    public static String epochDayToDate(long epochDay) {
+        // civil from days, proleptic gregorian
+        final long z = epochDay + 719468;
+        final long era = (z >= 0 ? z : z - 146096) / 146097;
+        final long doe = z - era * 146097;
+        final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        final long mp = (5 * doy + 2) / 153;
+        final long day = doy - (153 * mp + 2) / 5 + 1;
+        final long month = mp < 10 ? mp + 3 : mp - 9;
+        final long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return String.format(Locale.US, "%04d-%02d-%02d", year, month, day);
+    }
+
     /**
      * get date object of given String
      * @param dateStr if null or any error, then return today
@@ -0,0 +1,96 @@
+package com.extra.invisalign.model;
+
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Guesses start/stop transitions the user forgot to tap, from batches of WearSignal.
+ * Aligners come out to eat, so an unlock right after picking up the phone at meal time
+ * suggests start, and an unlock long after a session started outside meal time suggests stop.
+ * Pure Java, nothing but the batch and current state is read.
+ */
+public class WearDetector {
+
+    public static final int SUGGEST_NONE = 0;
+    public static final int SUGGEST_START = 1;
+    public static final int SUGGEST_STOP = 2;
+
+    private static final long MINUTE = 1000 * 60;
+
+    /**
+     * unlock counts as picking up the phone if motion was seen within this before
+     */
+    private static final long MOTION_WINDOW = 2 * MINUTE;
+
+    /**
+     * session running longer than this outside meal time is likely forgotten
+     */
+    private static final long FORGOTTEN_SESSION = 45 * MINUTE;
+
+    /**
+     * no further suggestion within this after a suggestion or an explicit tap
+     */
+    private static final long COOLDOWN = 30 * MINUTE;
+
+    /**
+     * local hours [from, to) of breakfast, lunch and dinner
+     */
+    private static final int[][] MEAL_HOURS = {
+            {6, 10},
+            {11, 14},
+            {17, 21},
+    };
+
+    private final Calendar mCalendar = Calendar.getInstance();
+    private long mLastMotion = 0;
+    private long mQuietUntil = 0;
+
+    /**
+     * @param batch signals in time order
+     * @param running true if a session is running
+     * @param sessionStart start of the running session
+     * @return one of SUGGEST_*
+     */
+    public int onBatch(List<WearSignal> batch, boolean running, long sessionStart) {
+        int suggestion = SUGGEST_NONE;
+        for (int i = 0; i < batch.size(); i++) {
+            final WearSignal signal = batch.get(i);
+            switch (signal.type) {
+                case WearSignal.TYPE_MOTION:
+                    mLastMotion = signal.time;
+                    break;
+                case WearSignal.TYPE_TILE:
+                    // user is taking care of it
+                    mQuietUntil = signal.time + COOLDOWN;
+                    suggestion = SUGGEST_NONE;
+                    break;
+                case WearSignal.TYPE_UNLOCK:
+                    if (signal.time < mQuietUntil) {
+                        break;
+                    }
+                    final boolean mealTime = isMealTime(signal.time);
+                    if (!running && mealTime && signal.time - mLastMotion <= MOTION_WINDOW) {
+                        suggestion = SUGGEST_START;
+                    } else if (running && !mealTime && signal.time - sessionStart > FORGOTTEN_SESSION) {
+                        suggestion = SUGGEST_STOP;
+                    }
+                    if (suggestion != SUGGEST_NONE) {
+                        mQuietUntil = signal.time + COOLDOWN;
+                    }
+                    break;
+            }
+        }
+        return suggestion;
+    }
+
+    private boolean isMealTime(long time) {
+        mCalendar.setTimeInMillis(time);
+        final int hour = mCalendar.get(Calendar.HOUR_OF_DAY);
+        for (int[] meal : MEAL_HOURS) {
+            if (hour >= meal[0] && hour < meal[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,67 @@
+package com.extra.invisalign.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cheap hint that aligners may have been taken out or put back, e.g. phone unlocked.
+ * One line per signal as "time type" in recorded traces, so traces dumped
+ * on device can be replayed through WearDetector on JVM.
+ */
+public final class WearSignal {
+
+    public static final int TYPE_UNLOCK = 0;
+    public static final int TYPE_MOTION = 1;
+    public static final int TYPE_TILE = 2;
+    public static final int TYPE_COUNT = 3;
+
+    private static final String[] NAMES = {
+            "UNLOCK",
+            "MOTION",
+            "TILE",
+    };
+
+    public final int type;
+
+    /**
+     * wall clock time the signal was seen at
+     */
+    public final long time;
+
+    public WearSignal(int type, long time) {
+        this.type = type;
+        this.time = time;
+    }
+
+    @Override
+    public String toString() {
+        return time + " " + NAMES[type];
+    }
+
+    /**
+     * @return signals of a trace written by toString, unknown lines are skipped
+     */
+    public static List<WearSignal> parseTrace(BufferedReader reader) throws IOException {
+        List<WearSignal> trace = new ArrayList<WearSignal>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String[] fields = line.trim().split(" ");
+            if (fields.length != 2) {
+                continue;
+            }
+            for (int type = 0; type < NAMES.length; type++) {
+                if (NAMES[type].equals(fields[1])) {
+                    try {
+                        trace.add(new WearSignal(type, Long.parseLong(fields[0])));
+                    } catch (NumberFormatException e) {
+                        // not a signal line
+                    }
+                    break;
+                }
+            }
+        }
+        return trace;
+    }
+}
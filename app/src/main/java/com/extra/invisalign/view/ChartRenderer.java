@@ -0,0 +1,240 @@
+package com.extra.invisalign.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.extra.invisalign.model.TimeStorage;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Map;
+
+/**
+ * Renders daily totals of a day range into a bitmap no wider than the screen.
+ * Days are downsampled into one min/max/sum bucket per pixel column, so cost depends on
+ * width rather than range length. Bitmaps are cached per range, zoom and time cap, and only
+ * those covering a day written by TimeStorage are dropped.
+ * Rendering runs off the UI thread and is timed apart from the frames that draw its bitmaps.
+ */
+public class ChartRenderer implements PropertyChangeListener {
+
+    private static final String TAG = "Invisalign::ChartRenderer";
+
+    /**
+     * a frame must be drawn within this to keep 60fps
+     */
+    public static final long FRAME_BUDGET_NANOS = 16 * 1000 * 1000;
+
+    private static final int CACHE_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private static ChartRenderer sInstance;
+
+    /**
+     * Key of a rendered bitmap. Zoom is expressed by days per bucket.
+     * Time cap sets both the scale and the cap line, so a new cap never hits an old bitmap.
+     */
+    public static final class RangeKey {
+
+        public final long fromDay;
+        public final long toDay;
+        public final int width;
+        public final int height;
+        public final long timeCap;
+
+        public RangeKey(long fromDay, long toDay, int width, int height, long timeCap) {
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+            this.width = width;
+            this.height = height;
+            this.timeCap = timeCap;
+        }
+
+        public int getDayCount() {
+            return (int) (toDay - fromDay + 1);
+        }
+
+        boolean contains(long day) {
+            return day >= fromDay && day <= toDay;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RangeKey)) {
+                return false;
+            }
+            RangeKey other = (RangeKey) o;
+            return fromDay == other.fromDay && toDay == other.toDay
+                    && width == other.width && height == other.height && timeCap == other.timeCap;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (fromDay ^ (fromDay >>> 32));
+            result = 31 * result + (int) (toDay ^ (toDay >>> 32));
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return 31 * result + (int) (timeCap ^ (timeCap >>> 32));
+        }
+    }
+
+    private final LruCache<RangeKey, Bitmap> mCache = new LruCache<RangeKey, Bitmap>(CACHE_SIZE_BYTES) {
+
+        @Override
+        protected int sizeOf(RangeKey key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    private final Paint mSumPaint = new Paint();
+    private final Paint mRangePaint = new Paint();
+    private final Paint mCapPaint = new Paint();
+
+    private long mFrameCount;
+    private long mSlowFrameCount;
+    private long mMaxFrameNanos;
+
+    private long mRenderCount;
+    private long mSlowRenderCount;
+    private long mMaxRenderNanos;
+
+    public static synchronized ChartRenderer getInstance(TimeStorage storage) {
+        if (sInstance == null) {
+            sInstance = new ChartRenderer();
+            storage.addObserver(sInstance);
+        }
+        return sInstance;
+    }
+
+    private ChartRenderer() {
+        mSumPaint.setColor(Color.rgb(0x4c, 0xaf, 0x50));
+        mRangePaint.setColor(Color.argb(0x60, 0x4c, 0xaf, 0x50));
+        mCapPaint.setColor(Color.RED);
+        mCapPaint.setStrokeWidth(2f);
+    }
+
+    /**
+     * @return cached bitmap of given range, or null if it needs to be rendered
+     */
+    public Bitmap getCached(RangeKey key) {
+        return mCache.get(key);
+    }
+
+    /**
+     * Load rollups and render given range. It hits DB, so call it off UI thread.
+     */
+    public Bitmap render(TimeStorage storage, RangeKey key) {
+        Bitmap cached = mCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final long begin = System.nanoTime();
+        final long timeCap = key.timeCap;
+
+        final long[] days = new long[key.getDayCount()];
+        storage.loadDays(key.fromDay, days, null);
+
+        // downsample into at most one bucket per pixel column
+        final int bucketCount = Math.min(key.width, days.length);
+        final long[] min = new long[bucketCount];
+        final long[] max = new long[bucketCount];
+        final long[] sum = new long[bucketCount];
+        final int[] size = new int[bucketCount];
+        long peak = timeCap;
+        for (int i = 0; i < days.length; i++) {
+            final int b = (int) ((long) i * bucketCount / days.length);
+            final long v = days[i];
+            if (size[b] == 0 || v < min[b]) {
+                min[b] = v;
+            }
+            if (v > max[b]) {
+                max[b] = v;
+            }
+            sum[b] += v;
+            size[b]++;
+            if (v > peak) {
+                peak = v;
+            }
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(key.width, key.height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        final float columnWidth = (float) key.width / bucketCount;
+        final float scale = key.height / (float) peak;
+        for (int b = 0; b < bucketCount; b++) {
+            if (size[b] == 0) {
+                continue;
+            }
+            final float left = b * columnWidth;
+            final float right = left + Math.max(1f, columnWidth - 1f);
+            canvas.drawRect(left, key.height - max[b] * scale, right, key.height - min[b] * scale, mRangePaint);
+            canvas.drawRect(left, key.height - (sum[b] / size[b]) * scale, right, key.height, mSumPaint);
+        }
+        final float capY = key.height - timeCap * scale;
+        canvas.drawLine(0, capY, key.width, capY, mCapPaint);
+
+        mCache.put(key, bitmap);
+        final long nanos = System.nanoTime() - begin;
+        recordRender(nanos);
+        Log.v(TAG, "render " + days.length + " days into " + bucketCount + " buckets in "
+                + nanos / 1000 + "us");
+        return bitmap;
+    }
+
+    /**
+     * Record time spent loading and rendering a range, the whole cost of a cache miss.
+     * Over FRAME_BUDGET_NANOS it would have dropped frames if done while drawing.
+     */
+    private synchronized void recordRender(long nanos) {
+        mRenderCount++;
+        if (nanos > FRAME_BUDGET_NANOS) {
+            mSlowRenderCount++;
+        }
+        if (nanos > mMaxRenderNanos) {
+            mMaxRenderNanos = nanos;
+        }
+    }
+
+    /**
+     * Record time spent drawing a frame of the chart, only blitting a rendered bitmap.
+     */
+    public synchronized void recordFrame(long nanos) {
+        mFrameCount++;
+        if (nanos > FRAME_BUDGET_NANOS) {
+            mSlowFrameCount++;
+            Log.w(TAG, "slow chart frame : " + nanos / 1000 + "us");
+        }
+        if (nanos > mMaxFrameNanos) {
+            mMaxFrameNanos = nanos;
+        }
+    }
+
+    public synchronized String getFrameStats() {
+        return "Chart frames=" + mFrameCount + ", slow=" + mSlowFrameCount + ", maxUs=" + mMaxFrameNanos / 1000
+                + "; renders=" + mRenderCount + ", slow=" + mSlowRenderCount + ", maxUs=" + mMaxRenderNanos / 1000;
+    }
+
+    public void invalidate(long day) {
+        for (Map.Entry<RangeKey, Bitmap> entry : mCache.snapshot().entrySet()) {
+            if (entry.getKey().contains(day)) {
+                mCache.remove(entry.getKey());
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent event) {
+        if (TimeStorage.DAY_UPDATED.equals(event.getPropertyName())) {
+            invalidate((Long) event.getNewValue());
+        } else if (TimeStorage.HISTORY_REPLACED.equals(event.getPropertyName())) {
+            invalidateAll();
+        }
+    }
+}
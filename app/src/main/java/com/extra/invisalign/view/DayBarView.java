@@ -0,0 +1,60 @@
+package com.extra.invisalign.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Horizontal bar of a day total scaled against time cap.
+ * Values are precomputed by the adapter, drawing allocates nothing.
+ */
+public class DayBarView extends View {
+
+    /**
+     * bar is full width at this many time caps
+     */
+    private static final float SCALE_IN_CAPS = 2f;
+
+    private final Paint mBarPaint = new Paint();
+    private final Paint mCapPaint = new Paint();
+
+    private long mValue;
+    private long mCap = TimeLimitPreference.DEFAULT_TIME_CAP_VALUE;
+
+    public DayBarView(Context context) {
+        this(context, null);
+    }
+
+    public DayBarView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mCapPaint.setColor(Color.DKGRAY);
+        mCapPaint.setStrokeWidth(2f);
+    }
+
+    public void setValue(long value, long cap) {
+        if (value == mValue && cap == mCap) {
+            return;
+        }
+        mValue = value;
+        mCap = cap;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final float top = getPaddingTop();
+        final float bottom = getHeight() - getPaddingBottom();
+        final float left = getPaddingLeft();
+        final float full = mCap * SCALE_IN_CAPS;
+
+        mBarPaint.setColor(mValue > mCap ? Color.RED : Color.rgb(0x4c, 0xaf, 0x50));
+        canvas.drawRect(left, top, left + width * Math.min(1f, mValue / full), bottom, mBarPaint);
+
+        final float capX = left + width / SCALE_IN_CAPS;
+        canvas.drawLine(capX, top, capX, bottom, mCapPaint);
+    }
+}
@@ -0,0 +1,67 @@
+package com.extra.invisalign.view;
+
+import gil.extra.invisaligntracker.R;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.extra.invisalign.control.MaintenanceTasks;
+import com.extra.invisalign.control.TrackerMetrics;
+import com.extra.invisalign.model.TimeStatus;
+import com.extra.invisalign.model.TimeStorage;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Shows tracker counters, same as dumpsys of TimeTrackerService. Tap to refresh.
+ */
+public class DebugFragment extends Fragment implements View.OnClickListener {
+
+    private TextView mMetricsView;
+
+    public DebugFragment() {
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+            Bundle savedInstanceState) {
+        View rootView = inflater.inflate(R.layout.fragment_debug, container, false);
+        mMetricsView = (TextView) rootView.findViewById(R.id.tv_debug_metrics);
+        mMetricsView.setOnClickListener(this);
+        return rootView;
+    }
+
+    @Override
+    public void onAttach(Activity activity) {
+        super.onAttach(activity);
+        ((Starter) activity).onSectionAttached(Starter.POSITION_DEBUG_FRAGMENT);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    public void onClick(View v) {
+        refresh();
+    }
+
+    private void refresh() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        pw.println("State: " + TimeStatus.getInstance().getSnapshot());
+        pw.println(MaintenanceTasks.getStatus(getActivity()));
+        pw.println(ChartRenderer.getInstance(TimeStorage.getInstance(getActivity())).getFrameStats());
+        TrackerMetrics.dump(pw);
+        pw.flush();
+        mMetricsView.setText(sw.toString());
+    }
+}
@@ -0,0 +1,69 @@
+package com.extra.invisalign.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+import com.extra.invisalign.model.HourBuckets;
+import com.extra.invisalign.model.TimeStorage;
+
+/**
+ * Grid of weekdays by hours of day, each cell shaded by time out of mouth in it
+ * relative to the busiest cell. Values are handed in as a TimeStorage.Heatmap array.
+ */
+public class HeatmapView extends View {
+
+    private static final String[] DAY_LABELS = { "S", "M", "T", "W", "T", "F", "S" };
+
+    private final long[] mCells = new long[TimeStorage.Heatmap.CELLS];
+    private long mMax = 0;
+
+    private final Paint mCellPaint = new Paint();
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float mLabelWidth;
+
+    public HeatmapView(Context context) {
+        this(context, null);
+    }
+
+    public HeatmapView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mLabelPaint.setColor(Color.DKGRAY);
+        mLabelPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 10,
+                getResources().getDisplayMetrics()));
+        mLabelWidth = mLabelPaint.measureText("W ");
+    }
+
+    public void setCells(long[] cells) {
+        System.arraycopy(cells, 0, mCells, 0, mCells.length);
+        mMax = 0;
+        for (long cell : mCells) {
+            mMax = Math.max(mMax, cell);
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final float left = getPaddingLeft() + mLabelWidth;
+        final float top = getPaddingTop();
+        final float cellWidth = (getWidth() - getPaddingRight() - left) / HourBuckets.HOURS;
+        final float cellHeight = (getHeight() - getPaddingBottom() - top) / TimeStorage.Heatmap.DAYS_OF_WEEK;
+
+        for (int day = 0; day < TimeStorage.Heatmap.DAYS_OF_WEEK; day++) {
+            final float y = top + day * cellHeight;
+            canvas.drawText(DAY_LABELS[day], getPaddingLeft(), y + cellHeight - mLabelPaint.descent(), mLabelPaint);
+            for (int hour = 0; hour < HourBuckets.HOURS; hour++) {
+                final long value = mCells[day * HourBuckets.HOURS + hour];
+                final int alpha = mMax == 0 ? 0 : (int) (255 * value / mMax);
+                mCellPaint.setColor(Color.argb(Math.max(alpha, 16), 0xf4, 0x43, 0x36));
+                final float x = left + hour * cellWidth;
+                canvas.drawRect(x + 1, y + 1, x + cellWidth - 1, y + cellHeight - 1, mCellPaint);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.extra.invisalign.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.AsyncTask;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.extra.invisalign.model.TimeStorage;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+
+/**
+ * Chart of daily totals up to today. Tap to switch zoom between ranges.
+ * Drawing only blits a bitmap prepared by ChartRenderer off the UI thread.
+ */
+public class HistoryChartView extends View implements PropertyChangeListener, View.OnClickListener {
+
+    private static final int[] ZOOM_DAYS = { 30, 90, 365, 730 };
+
+    private final TimeStorage mStorage;
+    private final ChartRenderer mRenderer;
+
+    private int mZoom = 0;
+    private long mTimeCap = TimeLimitPreference.DEFAULT_TIME_CAP_VALUE;
+
+    /**
+     * last rendered bitmap, kept on screen while a newer one is being rendered
+     */
+    private Bitmap mBitmap;
+    private ChartRenderer.RangeKey mPendingKey;
+
+    public HistoryChartView(Context context) {
+        this(context, null);
+    }
+
+    public HistoryChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mStorage = TimeStorage.getInstance(context);
+        mRenderer = ChartRenderer.getInstance(mStorage);
+        mTimeCap = TimeStorage.getLongFromPreference(context, SettingFragment.KEY_TIMECAP,
+                TimeLimitPreference.DEFAULT_TIME_CAP_VALUE);
+        setOnClickListener(this);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mTimeCap = TimeStorage.getLongFromPreference(getContext(), SettingFragment.KEY_TIMECAP,
+                TimeLimitPreference.DEFAULT_TIME_CAP_VALUE);
+        mStorage.addObserver(this);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mStorage.removeObserver(this);
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    public void onClick(View v) {
+        mZoom = (mZoom + 1) % ZOOM_DAYS.length;
+        invalidate();
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent event) {
+        // renderer dropped affected bitmaps already, redraw to pick up new one
+        postInvalidate();
+    }
+
+    private ChartRenderer.RangeKey currentKey() {
+        final long today = TimeStorage.todayEpochDay();
+        return new ChartRenderer.RangeKey(today - ZOOM_DAYS[mZoom] + 1, today, getWidth(), getHeight(), mTimeCap);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final long begin = System.nanoTime();
+        if (getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        final ChartRenderer.RangeKey key = currentKey();
+        Bitmap bitmap = mRenderer.getCached(key);
+        if (bitmap != null) {
+            mBitmap = bitmap;
+        } else {
+            requestRender(key);
+        }
+        if (mBitmap != null) {
+            canvas.drawBitmap(mBitmap, 0, 0, null);
+        }
+        mRenderer.recordFrame(System.nanoTime() - begin);
+    }
+
+    private void requestRender(final ChartRenderer.RangeKey key) {
+        if (key.equals(mPendingKey)) {
+            return;
+        }
+        mPendingKey = key;
+        new AsyncTask<Void, Void, Bitmap>() {
+
+            @Override
+            protected Bitmap doInBackground(Void... params) {
+                return mRenderer.render(mStorage, key);
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap bitmap) {
+                if (key.equals(mPendingKey)) {
+                    mPendingKey = null;
+                }
+                invalidate();
+            }
+        }.execute();
+    }
+}
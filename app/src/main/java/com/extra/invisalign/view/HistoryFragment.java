@@ -0,0 +1,375 @@
+package com.extra.invisalign.view;
+
+import gil.extra.invisaligntracker.R;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.extra.invisalign.model.TimeStatus;
+import com.extra.invisalign.model.TimeStorage;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Daily history, newest first.
+ * Rows are paged from DB by fixed windows of epoch-day, only a few pages are kept in memory.
+ * Pages covering a day written by TimeStorage are dropped and reloaded when shown again.
+ */
+public class HistoryFragment extends Fragment {
+
+    private static final String TAG = "Invisalign::HistoryFragment";
+
+    /**
+     * days per page loaded at once
+     */
+    private static final int PAGE_SIZE = 32;
+
+    /**
+     * pages kept in memory, older ones are evicted
+     */
+    private static final int MAX_PAGES_IN_MEMORY = 6;
+
+    /**
+     * start loading next page once scrolled within this many rows of it
+     */
+    private static final int PREFETCH_DISTANCE = 10;
+
+    /**
+     * days summed up by reason above the list
+     */
+    private static final int REASON_WINDOW_DAYS = 30;
+
+    private HistoryAdapter mAdapter;
+
+    public HistoryFragment() {
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+            Bundle savedInstanceState) {
+        ListView listView = (ListView) inflater.inflate(R.layout.fragment_history, container, false);
+        mAdapter = new HistoryAdapter(getActivity());
+        listView.addHeaderView(inflater.inflate(R.layout.history_chart, listView, false), null, false);
+        TextView reasonsView = (TextView) inflater.inflate(R.layout.history_reasons, listView, false);
+        listView.addHeaderView(reasonsView, null, false);
+        loadReasons(reasonsView);
+        HeatmapView heatmapView = (HeatmapView) inflater.inflate(R.layout.history_heatmap, listView, false);
+        listView.addHeaderView(heatmapView, null, false);
+        loadHeatmap(heatmapView);
+        listView.setAdapter(mAdapter);
+        listView.setOnScrollListener(mAdapter);
+        return listView;
+    }
+
+    @Override
+    public void onAttach(Activity activity) {
+        super.onAttach(activity);
+        ((Starter) activity).onSectionAttached(Starter.POSITION_HISTORY_FRAGMENT);
+    }
+
+    @Override
+    public void onDestroyView() {
+        mAdapter.release();
+        super.onDestroyView();
+    }
+
+    private void loadReasons(final TextView view) {
+        final TimeStorage storage = TimeStorage.getInstance(getActivity());
+        new AsyncTask<Void, Void, long[]>() {
+
+            @Override
+            protected long[] doInBackground(Void... params) {
+                final long today = TimeStorage.todayEpochDay();
+                long[] totals = new long[TimeStorage.Session.REASON_COUNT];
+                storage.loadReasonTotals(today - REASON_WINDOW_DAYS + 1, today, totals);
+                return totals;
+            }
+
+            @Override
+            protected void onPostExecute(long[] totals) {
+                if (!isAdded()) {
+                    return;
+                }
+                view.setText(getString(R.string.history_reasons, REASON_WINDOW_DAYS,
+                        TimeStatus.msToHourMin(totals[TimeStorage.Session.REASON_MEAL]),
+                        TimeStatus.msToHourMin(totals[TimeStorage.Session.REASON_CLEANING]),
+                        TimeStatus.msToHourMin(totals[TimeStorage.Session.REASON_FORGOT]),
+                        TimeStatus.msToHourMin(totals[TimeStorage.Session.REASON_NONE])));
+            }
+        }.execute();
+    }
+
+    /**
+     * Kept up to date by storage on every session write, nothing is scanned here
+     */
+    private void loadHeatmap(final HeatmapView view) {
+        final TimeStorage storage = TimeStorage.getInstance(getActivity());
+        new AsyncTask<Void, Void, long[]>() {
+
+            @Override
+            protected long[] doInBackground(Void... params) {
+                long[] cells = new long[TimeStorage.Heatmap.CELLS];
+                storage.loadHeatmap(cells);
+                return cells;
+            }
+
+            @Override
+            protected void onPostExecute(long[] cells) {
+                if (isAdded()) {
+                    view.setCells(cells);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Loaded window of days [fromDay, fromDay + PAGE_SIZE)
+     */
+    private static class Page {
+
+        final long fromDay;
+        final long[] spent = new long[PAGE_SIZE];
+        final int[] sessionCounts = new int[PAGE_SIZE];
+
+        Page(long fromDay) {
+            this.fromDay = fromDay;
+        }
+    }
+
+    private static class ViewHolder {
+
+        TextView date;
+        TextView total;
+        TextView sessions;
+        DayBarView bar;
+    }
+
+    private static class HistoryAdapter extends BaseAdapter
+            implements AbsListView.OnScrollListener, PropertyChangeListener {
+
+        private final Context mContext;
+        private final LayoutInflater mInflater;
+        private final TimeStorage mStorage;
+
+        private long mToday;
+        private long mFirstDay;
+        private final long mTimeCap;
+
+        private final LruCache<Long, Page> mPages = new LruCache<Long, Page>(MAX_PAGES_IN_MEMORY);
+        private final Set<Long> mLoading = new HashSet<Long>();
+
+        /**
+         * bumped on every eviction, so a page loaded before a write is not kept
+         */
+        private int mGeneration = 0;
+
+        /**
+         * storage writes from tracker and maintenance threads, adapter changes on UI thread only
+         */
+        private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+        private boolean mReleased = false;
+
+        HistoryAdapter(Context context) {
+            mContext = context;
+            mInflater = LayoutInflater.from(context);
+            mStorage = TimeStorage.getInstance(context);
+            mToday = TimeStorage.todayEpochDay();
+            mFirstDay = mStorage.getFirstEpochDay();
+            mTimeCap = TimeStorage.getLongFromPreference(context, SettingFragment.KEY_TIMECAP,
+                    TimeLimitPreference.DEFAULT_TIME_CAP_VALUE);
+            mStorage.addObserver(this);
+        }
+
+        void release() {
+            mReleased = true;
+            mStorage.removeObserver(this);
+            mUiHandler.removeCallbacksAndMessages(null);
+            mPages.evictAll();
+        }
+
+        @Override
+        public void propertyChange(final PropertyChangeEvent event) {
+            mUiHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (mReleased) {
+                        return;
+                    }
+                    if (TimeStorage.DAY_UPDATED.equals(event.getPropertyName())) {
+                        onDayUpdated((Long) event.getNewValue());
+                    } else if (TimeStorage.HISTORY_REPLACED.equals(event.getPropertyName())) {
+                        onHistoryReplaced();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Only the page of the written day is dropped, pages are keyed by epoch-day so
+         * moving past midnight just shifts positions by a day.
+         */
+        private void onDayUpdated(long day) {
+            mPages.remove(pageKeyOf(day));
+            mGeneration++;
+            final long today = TimeStorage.todayEpochDay();
+            if (today != mToday) {
+                Log.v(TAG, "today moved to " + today);
+                mToday = today;
+            }
+            mFirstDay = Math.min(mFirstDay, day);
+            notifyDataSetChanged();
+        }
+
+        private void onHistoryReplaced() {
+            mPages.evictAll();
+            mGeneration++;
+            mToday = TimeStorage.todayEpochDay();
+            mFirstDay = mStorage.getFirstEpochDay();
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return (int) (mToday - mFirstDay + 1);
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return dayOf(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return dayOf(position);
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        private long dayOf(int position) {
+            return mToday - position;
+        }
+
+        /**
+         * pages are aligned to epoch-day so that a key always covers the same days
+         */
+        private static long pageKeyOf(long day) {
+            return day >= 0 ? day / PAGE_SIZE : (day + 1) / PAGE_SIZE - 1;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            ViewHolder holder;
+            if (convertView == null) {
+                convertView = mInflater.inflate(R.layout.history_item, parent, false);
+                holder = new ViewHolder();
+                holder.date = (TextView) convertView.findViewById(R.id.tv_history_date);
+                holder.total = (TextView) convertView.findViewById(R.id.tv_history_total);
+                holder.sessions = (TextView) convertView.findViewById(R.id.tv_history_sessions);
+                holder.bar = (DayBarView) convertView.findViewById(R.id.bar_history_total);
+                convertView.setTag(holder);
+            } else {
+                holder = (ViewHolder) convertView.getTag();
+            }
+
+            final long day = dayOf(position);
+            holder.date.setText(TimeStorage.epochDayToDate(day));
+
+            final long key = pageKeyOf(day);
+            Page page = mPages.get(key);
+            if (page == null) {
+                holder.total.setText(null);
+                holder.sessions.setText(null);
+                holder.bar.setValue(0, mTimeCap);
+                requestPage(key);
+            } else {
+                final int index = (int) (day - page.fromDay);
+                holder.total.setText(TimeStatus.msToHourMinSec(page.spent[index]));
+                holder.sessions.setText(mContext.getResources().getQuantityString(
+                        R.plurals.history_sessions, page.sessionCounts[index], page.sessionCounts[index]));
+                holder.bar.setValue(page.spent[index], mTimeCap);
+            }
+            return convertView;
+        }
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+            // positions here include the chart header
+            final int headerCount = ((ListView) view).getHeaderViewsCount();
+            firstVisibleItem = Math.max(0, firstVisibleItem - headerCount);
+            totalItemCount -= headerCount;
+            if (totalItemCount <= 0) {
+                return;
+            }
+            // list runs backward in time, so prefetch older days below and newer days above
+            final int lastPosition = Math.min(totalItemCount - 1,
+                    firstVisibleItem + visibleItemCount - 1 + PREFETCH_DISTANCE);
+            final int firstPosition = Math.max(0, firstVisibleItem - PREFETCH_DISTANCE);
+            requestPageIfAbsent(pageKeyOf(dayOf(lastPosition)));
+            requestPageIfAbsent(pageKeyOf(dayOf(firstPosition)));
+        }
+
+        private void requestPageIfAbsent(long key) {
+            if (mPages.get(key) == null) {
+                requestPage(key);
+            }
+        }
+
+        private void requestPage(final long key) {
+            if (mReleased || !mLoading.add(key)) {
+                return;
+            }
+            final int generation = mGeneration;
+            new AsyncTask<Void, Void, Page>() {
+
+                @Override
+                protected Page doInBackground(Void... params) {
+                    Page page = new Page(key * PAGE_SIZE);
+                    mStorage.loadDays(page.fromDay, page.spent, page.sessionCounts);
+                    return page;
+                }
+
+                @Override
+                protected void onPostExecute(Page page) {
+                    mLoading.remove(key);
+                    if (mReleased) {
+                        return;
+                    }
+                    if (generation != mGeneration) {
+                        // may miss a write done while loading, shown rows ask again
+                        notifyDataSetChanged();
+                        return;
+                    }
+                    Log.v(TAG, "page loaded : " + page.fromDay);
+                    mPages.put(key, page);
+                    notifyDataSetChanged();
+                }
+            }.execute();
+        }
+    }
+}
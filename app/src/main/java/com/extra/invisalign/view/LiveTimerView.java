@@ -0,0 +1,243 @@
+package com.extra.invisalign.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.os.Debug;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.Choreographer;
+import android.view.View;
+
+import com.extra.invisalign.control.TrackerMetrics;
+import com.extra.invisalign.model.StateSnapshot;
+import com.extra.invisalign.model.TimeStatus;
+
+/**
+ * Current session above today's total, computed from a snapshot on display frames.
+ * While running, a frame callback is posted for the next displayed second only,
+ * so it neither loops on a handler nor redraws on frames where text stays the same.
+ * Text is formatted into preallocated buffers, nothing is allocated per frame.
+ */
+public class LiveTimerView extends View {
+
+    private static final String TAG = "Invisalign::LiveTimerView";
+
+    private static final long SECOND = 1000;
+
+    /**
+     * frame arriving this long after its second boundary is counted late
+     */
+    private static final long LATE_FRAME_MILLIS = 17;
+
+    /**
+     * enough for hours of any realistic length, "hhhh:mm:ss"
+     */
+    private static final int BUFFER_SIZE = 16;
+
+    private final Paint mSessionPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTotalPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint.FontMetrics mFontMetrics = new Paint.FontMetrics();
+
+    private final char[] mSessionText = new char[BUFFER_SIZE];
+    private final char[] mTotalText = new char[BUFFER_SIZE];
+    private int mSessionLength = 0;
+    private int mTotalLength = 0;
+
+    private StateSnapshot mSnapshot = StateSnapshot.EMPTY;
+
+    /**
+     * second of session shown now, -1 to force next update
+     */
+    private long mShownSecond = -1;
+    private long mShownTotalSecond = -1;
+
+    private boolean mFramePosted = false;
+
+    /**
+     * wall clock time the posted frame is for
+     */
+    private long mFrameTarget = 0;
+
+    /**
+     * runtime GC count on attach, to report collections while visible
+     */
+    private long mGcCountOnAttach = -1;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePosted = false;
+            final long now = TimeStatus.getInstance().now();
+            if (mFrameTarget != 0 && now - mFrameTarget > LATE_FRAME_MILLIS) {
+                TrackerMetrics.increment(TrackerMetrics.COUNTER_TIMER_LATE_FRAME);
+            }
+            if (updateText(now)) {
+                invalidate();
+            }
+            scheduleFrame(now);
+        }
+    };
+
+    public LiveTimerView(Context context) {
+        this(context, null);
+    }
+
+    public LiveTimerView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mSessionPaint.setColor(Color.BLACK);
+        mSessionPaint.setTextAlign(Paint.Align.CENTER);
+        mSessionPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 48,
+                getResources().getDisplayMetrics()));
+        mTotalPaint.setColor(Color.DKGRAY);
+        mTotalPaint.setTextAlign(Paint.Align.CENTER);
+        mTotalPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 18,
+                getResources().getDisplayMetrics()));
+    }
+
+    /**
+     * Show given state, e.g. on each state change pushed by tracker
+     */
+    public void setSnapshot(StateSnapshot snapshot) {
+        mSnapshot = snapshot;
+        mShownSecond = -1;
+        mShownTotalSecond = -1;
+        final long now = TimeStatus.getInstance().now();
+        updateText(now);
+        invalidate();
+        scheduleFrame(now);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mGcCountOnAttach = getGcCount();
+        scheduleFrame(TimeStatus.getInstance().now());
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        cancelFrame();
+        final long gcCount = getGcCount();
+        if (mGcCountOnAttach >= 0 && gcCount >= 0) {
+            Log.d(TAG, "GC while attached : " + (gcCount - mGcCountOnAttach));
+        }
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        if (isShown()) {
+            scheduleFrame(TimeStatus.getInstance().now());
+        } else {
+            cancelFrame();
+        }
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final int width = (int) Math.ceil(mSessionPaint.measureText("00:00:00"))
+                + getPaddingLeft() + getPaddingRight();
+        final int height = (int) Math.ceil(mSessionPaint.getFontSpacing() + mTotalPaint.getFontSpacing())
+                + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(resolveSize(width, widthMeasureSpec), resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final long begin = TrackerMetrics.begin();
+        final float x = getPaddingLeft() + (getWidth() - getPaddingLeft() - getPaddingRight()) / 2f;
+
+        mSessionPaint.getFontMetrics(mFontMetrics);
+        float y = getPaddingTop() - mFontMetrics.ascent;
+        canvas.drawText(mSessionText, 0, mSessionLength, x, y, mSessionPaint);
+
+        y += mFontMetrics.descent;
+        mTotalPaint.getFontMetrics(mFontMetrics);
+        y -= mFontMetrics.ascent;
+        canvas.drawText(mTotalText, 0, mTotalLength, x, y, mTotalPaint);
+        TrackerMetrics.end(TrackerMetrics.OP_TIMER_FRAME, begin);
+    }
+
+    /**
+     * @return true if displayed text changed
+     */
+    private boolean updateText(long now) {
+        final long session = mSnapshot.getSessionTime(now) / SECOND;
+        final long total = mSnapshot.getDayTotal(now) / SECOND;
+        if (session == mShownSecond && total == mShownTotalSecond) {
+            return false;
+        }
+        mShownSecond = session;
+        mShownTotalSecond = total;
+        mSessionLength = format(session, mSessionText);
+        mTotalLength = format(total, mTotalText);
+        return true;
+    }
+
+    private void scheduleFrame(long now) {
+        if (mFramePosted || !mSnapshot.isRunning() || !isAttachedToWindow() || !isShown()) {
+            return;
+        }
+        // session and total seconds may turn over at different moments
+        final long delay = Math.min(SECOND - (mSnapshot.getSessionTime(now) % SECOND),
+                SECOND - (mSnapshot.getDayTotal(now) % SECOND));
+        mFrameTarget = now + delay;
+        mFramePosted = true;
+        Choreographer.getInstance().postFrameCallbackDelayed(mFrameCallback, delay);
+    }
+
+    private void cancelFrame() {
+        if (mFramePosted) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFramePosted = false;
+        }
+    }
+
+    /**
+     * @return collections run by this process so far, -1 if runtime does not tell
+     */
+    private static long getGcCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(Debug.getRuntimeStat("art.gc.gc-count"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Write seconds as h:mm:ss at the start of buffer
+     * @return number of chars written
+     */
+    static int format(long seconds, char[] buffer) {
+        final long hours = seconds / 3600;
+        final int minutes = (int) (seconds / 60 % 60);
+        final int secs = (int) (seconds % 60);
+
+        // hours, written backwards into the tail then moved to the front
+        int tail = buffer.length;
+        long h = hours;
+        do {
+            buffer[--tail] = (char) ('0' + h % 10);
+            h /= 10;
+        } while (h > 0 && tail > 0);
+        int length = buffer.length - tail;
+        System.arraycopy(buffer, tail, buffer, 0, length);
+
+        buffer[length++] = ':';
+        buffer[length++] = (char) ('0' + minutes / 10);
+        buffer[length++] = (char) ('0' + minutes % 10);
+        buffer[length++] = ':';
+        buffer[length++] = (char) ('0' + secs / 10);
+        buffer[length++] = (char) ('0' + secs % 10);
+        return length;
+    }
+}
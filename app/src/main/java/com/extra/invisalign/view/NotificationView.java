@@ -12,8 +12,12 @@ import android.content.Intent;
 import android.content.res.Resources;
 import android.graphics.Color;
 import android.util.Log;
+import android.view.View;
 import android.widget.RemoteViews;
 
+import com.extra.invisalign.control.TickScheduler;
+import com.extra.invisalign.control.TrackerMetrics;
+import com.extra.invisalign.control.TrackerCommand;
 import com.extra.invisalign.model.TimeStatus;
 import com.extra.invisalign.model.TimeStorage;
 
@@ -24,6 +28,16 @@ public class NotificationView {
     public static final int ID_NOTI_UPDATE = 576;
     public static final int ID_NOTI_INIT = ID_NOTI_UPDATE + 1;
     public static final int ID_NOTI_FINAL = ID_NOTI_UPDATE + 2;
+    public static final int ID_NOTI_SUGGEST = ID_NOTI_UPDATE + 3;
+    public static final int ID_NOTI_FORECAST = ID_NOTI_UPDATE + 4;
+    public static final int ID_NOTI_FORGOTTEN = ID_NOTI_UPDATE + 5;
+
+    /**
+     * request code of tag actions, plus reason
+     */
+    private static final int REQUEST_TAG = 100;
+
+    private static final int REQUEST_TRIM = 200;
 
     private Context ctx;
 
@@ -32,6 +46,11 @@ public class NotificationView {
      */
     private Builder mBuilderTimeClock;
 
+    /**
+     * Same as mBuilderTimeClock with actions to tag reason of running session
+     */
+    private Builder mBuilderTimeClockRunning;
+
     /**
      * Notification Messnage to warn user
      */
@@ -57,8 +76,23 @@ public class NotificationView {
      */
     private long mTimeCap = TimeLimitPreference.DEFAULT_TIME_CAP_VALUE;
 
+    /**
+     * set by tracker when total time crosses time cap, instead of comparing every update
+     */
+    private boolean mOverCap = false;
+
+    /**
+     * projected total of today set by tracker on transitions, negative if unknown
+     */
+    private long mProjection = -1;
+
     private NotificationManager mNotiManager;
 
+    /**
+     * opens the app, shared by notifications
+     */
+    private PendingIntent mContentIntent;
+
     public NotificationView(Context context) {
         ctx = context;
         init();
@@ -80,6 +114,7 @@ public class NotificationView {
                         PendingIntent.FLAG_UPDATE_CURRENT,
                         notificationIntent,
                         PendingIntent.FLAG_CANCEL_CURRENT);
+        mContentIntent = contentIntent;
 
         mBuilderTimeClock = new Notification.Builder(ctx)
                 .setVisibility(Notification.VISIBILITY_PUBLIC)
@@ -88,6 +123,21 @@ public class NotificationView {
                 .setCategory(Notification.CATEGORY_STATUS)
                 .setOnlyAlertOnce(true);
 
+        mBuilderTimeClockRunning = new Notification.Builder(ctx)
+                .setVisibility(Notification.VISIBILITY_PUBLIC)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentIntent(contentIntent)
+                .setCategory(Notification.CATEGORY_STATUS)
+                .setOnlyAlertOnce(true)
+                .setContentTitle(ctx.getString(R.string.app_name))
+                .setContentText(ctx.getString(R.string.noti_tag_text))
+                .addAction(0, ctx.getString(R.string.reason_meal),
+                        createTagPendingIntent(ctx, TimeStorage.Session.REASON_MEAL))
+                .addAction(0, ctx.getString(R.string.reason_cleaning),
+                        createTagPendingIntent(ctx, TimeStorage.Session.REASON_CLEANING))
+                .addAction(0, ctx.getString(R.string.reason_forgot),
+                        createTagPendingIntent(ctx, TimeStorage.Session.REASON_FORGOT));
+
         mBuilderAlarm = new Notification.Builder(ctx)
                 .setVisibility(Notification.VISIBILITY_PUBLIC)
                 .setPriority(Notification.PRIORITY_MAX)
@@ -97,11 +147,30 @@ public class NotificationView {
                 .setOnlyAlertOnce(false)
                 .setAutoCancel(true);
 
-        changeStatePendingIntent =
-                PendingIntent.getBroadcast(ctx,
-                        TimeStatus.REQUEST_STATE_CHANGED,
-                        new Intent(TimeStatus.ACTION_STATE_CHANGED),
-                        PendingIntent.FLAG_CANCEL_CURRENT);
+        changeStatePendingIntent = createChangeStatePendingIntent(ctx, TrackerCommand.SOURCE_NOTIFICATION);
+    }
+
+    /**
+     * Intent fired by play/stop buttons, shared by notification and widget.
+     * It targets tracker service directly instead of a broadcast nobody receives.
+     * @param source TrackerCommand source, each source gets its own PendingIntent
+     */
+    public static PendingIntent createChangeStatePendingIntent(Context ctx, int source) {
+        return PendingIntent.getService(ctx,
+                TimeStatus.REQUEST_STATE_CHANGED + source,
+                new TrackerCommand(TrackerCommand.TYPE_TOGGLE, source).pending().toIntent(ctx),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Intent tagging reason of running session, or of the latest one if stopped
+     */
+    private static PendingIntent createTagPendingIntent(Context ctx, int reason) {
+        return PendingIntent.getService(ctx,
+                REQUEST_TAG + reason,
+                new TrackerCommand(TrackerCommand.TYPE_TAG, TrackerCommand.SOURCE_NOTIFICATION, reason).pending()
+                        .toIntent(ctx),
+                PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
     public synchronized void updateNotification() {
@@ -109,6 +178,7 @@ public class NotificationView {
         if (!mEnable) {
             return;
         }
+        final long begin = TrackerMetrics.begin();
         RemoteViews contentView = new RemoteViews(ctx.getPackageName(), R.layout.notification_layout);
         final int status = TimeStatus.getInstance().getCurrentState();
 
@@ -117,7 +187,11 @@ public class NotificationView {
         String time = null;
         if (status == TimeStatus.STATE_RUNNING) {
             contentView.setImageViewResource(R.id.btn_notification_changestate, R.drawable.pause_button_img);
-            time = TimeStatus.msToHourMinSec(TimeStatus.getInstance().getElapsedTime());
+            // ticks are minute aligned for long sessions, so drop seconds
+            final long elapsed = TimeStatus.getInstance().getElapsedTime();
+            time = TickScheduler.isCoarse(elapsed)
+                    ? TimeStatus.msToHourMin(elapsed)
+                    : TimeStatus.msToHourMinSec(elapsed);
         } else {
             contentView.setImageViewResource(R.id.btn_notification_changestate, R.drawable.play_button_img);
             time = TimeStatus.msToHourMinSec(totalTimeInLong);
@@ -125,23 +199,35 @@ public class NotificationView {
         contentView.setTextViewText(R.id.tv_notification_time, time);
 
         // color time to red if over time cap
-        if (totalTimeInLong > mTimeCap) {
+        if (mOverCap) {
             contentView.setTextColor(R.id.tv_notification_time, Color.RED);
         }
 
+        // projection is only recomputed on transitions, shown as is between them
+        if (mProjection >= 0) {
+            contentView.setTextViewText(R.id.tv_notification_projection,
+                    ctx.getString(R.string.noti_projection, TimeStatus.msToHourMin(mProjection)));
+            contentView.setViewVisibility(R.id.tv_notification_projection, View.VISIBLE);
+        } else {
+            contentView.setViewVisibility(R.id.tv_notification_projection, View.GONE);
+        }
+
         // Register onClick event
         contentView.setOnClickPendingIntent(R.id.btn_notification_changestate, changeStatePendingIntent);
 
-        // Add Remoteview to builder
-        mBuilderTimeClock.setContent(contentView);
+        // Add Remoteview to builder, running one carries tag actions in its expanded view
+        final Builder builder = status == TimeStatus.STATE_RUNNING ? mBuilderTimeClockRunning : mBuilderTimeClock;
+        builder.setContent(contentView);
 
         // update or add new one
         if (isTimeNotiShowing) {
-            mNotiManager.notify(ID_NOTI_UPDATE, mBuilderTimeClock.build());
+            mNotiManager.notify(ID_NOTI_UPDATE, builder.build());
         } else {
             isTimeNotiShowing = true;
-            ((Service) ctx).startForeground(ID_NOTI_UPDATE, mBuilderTimeClock.build());
+            ((Service) ctx).startForeground(ID_NOTI_UPDATE, builder.build());
         }
+        TrackerMetrics.increment(TrackerMetrics.COUNTER_NOTIFY);
+        TrackerMetrics.end(TrackerMetrics.OP_NOTIFY, begin);
     }
 
     public void alarmNotification(final int id, int title, int text) {
@@ -150,6 +236,50 @@ public class NotificationView {
         final String textStr = rs.getString(text);
         mBuilderAlarm.setContentTitle(titleStr).setContentText(textStr);
         mNotiManager.notify(id, mBuilderAlarm.build());
+        TrackerMetrics.increment(TrackerMetrics.COUNTER_NOTIFY);
+    }
+
+    /**
+     * Ask user to confirm a transition guessed by wear detection, tap toggles state
+     */
+    public void suggestNotification(int title, int text) {
+        Resources rs = ctx.getResources();
+        Notification notification = new Notification.Builder(ctx)
+                .setVisibility(Notification.VISIBILITY_PUBLIC)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setCategory(Notification.CATEGORY_RECOMMENDATION)
+                .setContentTitle(rs.getString(title))
+                .setContentText(rs.getString(text))
+                .setContentIntent(createChangeStatePendingIntent(ctx, TrackerCommand.SOURCE_DETECTOR))
+                .setAutoCancel(true)
+                .build();
+        mNotiManager.notify(ID_NOTI_SUGGEST, notification);
+        TrackerMetrics.increment(TrackerMetrics.COUNTER_NOTIFY);
+    }
+
+    /**
+     * Running session is far longer than usual for its reason and hour,
+     * offer to end it at its usual length
+     */
+    public void forgottenNotification(long sessionTime, long trimmedTime) {
+        Notification notification = new Notification.Builder(ctx)
+                .setVisibility(Notification.VISIBILITY_PUBLIC)
+                .setPriority(Notification.PRIORITY_HIGH)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setCategory(Notification.CATEGORY_REMINDER)
+                .setContentTitle(ctx.getString(R.string.noti_message_forgotten_title))
+                .setContentText(ctx.getString(R.string.noti_message_forgotten_text,
+                        TimeStatus.msToHourMin(sessionTime)))
+                .setContentIntent(mContentIntent)
+                .addAction(0, ctx.getString(R.string.noti_action_trim, TimeStatus.msToHourMin(trimmedTime)),
+                        PendingIntent.getService(ctx, REQUEST_TRIM,
+                                new TrackerCommand(TrackerCommand.TYPE_TRIM, TrackerCommand.SOURCE_NOTIFICATION)
+                                        .pending().toIntent(ctx),
+                                PendingIntent.FLAG_UPDATE_CURRENT))
+                .setAutoCancel(true)
+                .build();
+        mNotiManager.notify(ID_NOTI_FORGOTTEN, notification);
+        TrackerMetrics.increment(TrackerMetrics.COUNTER_NOTIFY);
     }
 
     public void cancelAlarmNotification(final int id) {
@@ -176,4 +306,26 @@ public class NotificationView {
     public void setTimeCap(long time) {
         mTimeCap = time;
     }
+
+    public long getTimeCap() {
+        return mTimeCap;
+    }
+
+    /**
+     * set projected total of today, shown from next update
+     */
+    public void setProjection(long projection) {
+        mProjection = projection;
+    }
+
+    /**
+     * @return true if changed
+     */
+    public boolean setOverCap(boolean overCap) {
+        if (mOverCap == overCap) {
+            return false;
+        }
+        mOverCap = overCap;
+        return true;
+    }
 }
\ No newline at end of file
@@ -1,14 +1,25 @@
 package com.extra.invisalign.view;
 
 import gil.extra.invisaligntracker.R;
-import android.content.Intent;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Date;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.Preference;
-import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
+import android.widget.Toast;
+
+import com.extra.invisalign.control.MaintenanceTasks;
+import com.extra.invisalign.model.TimeBackup;
 
 public class SettingFragment extends PreferenceFragment {
 
@@ -18,13 +29,24 @@ public class SettingFragment extends PreferenceFragment {
     public static final String KEY_INITIAL_ALARM = "initial_alarm";
     public static final String KEY_TIMECAP = "timecap_aday";
     public static final String KEY_CLOCK_NOTIFICATION = "clock_notification";
+    public static final String KEY_WEAR_DETECTION = "wear_detection";
+    public static final String KEY_HISTORY_RETENTION = "history_retention";
+    public static final String KEY_HISTORY_RESTORE = "history_restore";
+
+    public static final String WEAR_DETECTION_OFF = "off";
+    public static final String WEAR_DETECTION_SUGGEST = "suggest";
+    public static final String WEAR_DETECTION_AUTO = "auto";
+
+    /**
+     * days of raw sessions kept, older ones are compacted to daily aggregates
+     */
+    public static final String DEFAULT_HISTORY_RETENTION = "365";
 
     public static final int STATE_FINAL_ALARM = 0;
     public static final int STATE_INITIAL_ALARM = 1;
     public static final int STATE_TIMECAP = 2;
     public static final int STATE_CLOCK_NOTIFICATION = 3;
-
-    public static final String KEY_CHANGE_UPDATE = "key";
+    public static final int STATE_WEAR_DETECTION = 4;
 
     public static final String SETTINGS_SHARED_PREFERENCES_FILE_NAME = "setting_preference";
 
@@ -44,21 +66,87 @@ public class SettingFragment extends PreferenceFragment {
         // Load the preferences from an XML resource
         addPreferencesFromResource(R.layout.fragment_setting);
 
-        registerChangeListener();
-    }
+        // Tracker listens to the shared preferences itself, see TimeTrackerService
 
-    private void registerChangeListener() {
-        setOnPreferenceChangeListener(KEY_FINAL_ALARM, this);
-        setOnPreferenceChangeListener(KEY_INITIAL_ALARM, this);
-        setOnPreferenceChangeListener(KEY_TIMECAP, this);
-        setOnPreferenceChangeListener(KEY_CLOCK_NOTIFICATION, this);
+        findPreference(KEY_HISTORY_RESTORE).setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                pickRestore();
+                return true;
+            }
+        });
     }
 
-    public void setOnPreferenceChangeListener(String key,
-            Preference.OnPreferenceChangeListener onPreferenceChangeListener) {
-        Preference pref = findPreference(key);
-        if (pref != null) {
-            pref.setOnPreferenceChangeListener(onPreferenceChangeListener);
+    /**
+     * Restore from a file user picks among the nightly exports and backups copied over from another device,
+     * so an export of an already broken state is not the only way back
+     */
+    private void pickRestore() {
+        final File[] files = MaintenanceTasks.getExportFiles(getActivity());
+        if (files.length == 0) {
+            Toast.makeText(getActivity(), getString(R.string.setting_history_restore_missing,
+                    MaintenanceTasks.getExportDir(getActivity())), Toast.LENGTH_LONG).show();
+            return;
+        }
+        final DateFormat format = android.text.format.DateFormat.getDateFormat(getActivity());
+        final String[] items = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            items[i] = getString(R.string.setting_history_restore_item, files[i].getName(),
+                    format.format(new Date(files[i].lastModified())));
         }
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.setting_history_restore_pick)
+                .setItems(items, new DialogInterface.OnClickListener() {
+
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        confirmRestore(files[which]);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void confirmRestore(final File file) {
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.setting_history_restore_title)
+                .setMessage(getString(R.string.setting_history_restore_confirm, file.getName()))
+                .setNegativeButton(android.R.string.cancel, null)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        restore(getActivity().getApplicationContext(), file);
+                    }
+                })
+                .show();
+    }
+
+    private static void restore(final Context context, final File file) {
+        new AsyncTask<Void, Void, String>() {
+
+            /**
+             * @return null if restored, otherwise why not
+             */
+            @Override
+            protected String doInBackground(Void... params) {
+                try {
+                    TimeBackup.restore(context, file);
+                    return null;
+                } catch (IOException e) {
+                    Log.e(TAG, "restore failed", e);
+                    return e.getMessage();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(String error) {
+                Toast.makeText(context, error == null
+                        ? context.getString(R.string.setting_history_restore_done)
+                        : context.getString(R.string.setting_history_restore_failed, error),
+                        Toast.LENGTH_LONG).show();
+            }
+        }.execute();
     }
 }
@@ -19,7 +19,10 @@ import com.extra.invisalign.control.TimeTrackerService;
 public class Starter extends Activity
         implements NavigationDrawerFragment.NavigationDrawerCallbacks {
 
+    static final int POSITION_TRACKER_FRAGMENT = 1;
+    static final int POSITION_HISTORY_FRAGMENT = 2;
     private static final int POSITION_SETTING_FRAGMENT = 3;
+    static final int POSITION_DEBUG_FRAGMENT = 4;
 
     /**
      * Fragment managing the behaviors, interactions and presentation of the navigation drawer.
@@ -69,6 +72,9 @@ public class Starter extends Activity
             case 3:
                 mTitle = getString(R.string.title_setting);
                 break;
+            case 4:
+                mTitle = getString(R.string.title_debug);
+                break;
         }
     }
 
@@ -122,9 +128,18 @@ public class Starter extends Activity
         public static Fragment newInstance(int sectionNumber) {
             Fragment fragment;
             switch (sectionNumber) {
+                case POSITION_TRACKER_FRAGMENT:
+                    fragment = new TrackerFragment();
+                    break;
+                case POSITION_HISTORY_FRAGMENT:
+                    fragment = new HistoryFragment();
+                    break;
                 case POSITION_SETTING_FRAGMENT:
                     fragment = new SettingFragment();
                     break;
+                case POSITION_DEBUG_FRAGMENT:
+                    fragment = new DebugFragment();
+                    break;
                 default:
                     fragment = new PlaceholderFragment();
                     break;
@@ -0,0 +1,62 @@
+package com.extra.invisalign.view;
+
+import gil.extra.invisaligntracker.R;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.extra.invisalign.control.TrackerConnection;
+import com.extra.invisalign.control.TrackerListener;
+import com.extra.invisalign.model.StateSnapshot;
+
+/**
+ * Current session and today's total, state is pushed by tracker while this screen is resumed.
+ */
+public class TrackerFragment extends Fragment implements TrackerListener {
+
+    private LiveTimerView mTimerView;
+    private TrackerConnection mConnection;
+
+    public TrackerFragment() {
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+            Bundle savedInstanceState) {
+        View rootView = inflater.inflate(R.layout.fragment_tracker, container, false);
+        mTimerView = (LiveTimerView) rootView.findViewById(R.id.live_timer);
+        return rootView;
+    }
+
+    @Override
+    public void onViewCreated(View view, Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        // timer view redraws itself on display frames, only state changes are needed
+        mConnection = TrackerConnection.attach(getActivity(), this, false);
+    }
+
+    @Override
+    public void onDestroyView() {
+        mConnection.detach();
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onAttach(Activity activity) {
+        super.onAttach(activity);
+        ((Starter) activity).onSectionAttached(Starter.POSITION_TRACKER_FRAGMENT);
+    }
+
+    @Override
+    public void onStateChanged(StateSnapshot snapshot) {
+        mTimerView.setSnapshot(snapshot);
+    }
+
+    @Override
+    public void onTick(StateSnapshot snapshot, long now) {
+    }
+}
@@ -0,0 +1,57 @@
+package com.extra.invisalign.view;
+
+import gil.extra.invisaligntracker.R;
+
+import android.annotation.TargetApi;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+import android.util.Log;
+
+import com.extra.invisalign.control.TrackerCommand;
+import com.extra.invisalign.model.StateSnapshot;
+
+/**
+ * Quick settings tile toggling tracker, also usable from lock screen.
+ * It reads the published StateSnapshot instead of binding to the service,
+ * and is redrawn only when tracker requests it on a state change.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+public class TrackerTileService extends TileService {
+
+    private static final String TAG = "Invisalign::TrackerTileService";
+
+    @Override
+    public void onStartListening() {
+        super.onStartListening();
+        updateTile(StateSnapshot.read(this));
+    }
+
+    @Override
+    public void onClick() {
+        Log.v(TAG, "onClick");
+        // toggling needs no unlock, nothing private is revealed
+        startService(new TrackerCommand(TrackerCommand.TYPE_TOGGLE, TrackerCommand.SOURCE_TILE).toIntent(this));
+    }
+
+    private void updateTile(StateSnapshot snapshot) {
+        final Tile tile = getQsTile();
+        if (tile == null) {
+            return;
+        }
+        final boolean running = snapshot.isRunning();
+        tile.setState(running ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+        tile.setLabel(getString(running ? R.string.tile_label_running : R.string.tile_label_stopped));
+        tile.updateTile();
+    }
+
+    /**
+     * Ask system to redraw tile from latest snapshot.
+     * Callers check for N first, this class cannot even be loaded before.
+     */
+    public static void requestUpdate(Context ctx) {
+        requestListeningState(ctx, new ComponentName(ctx, TrackerTileService.class));
+    }
+}
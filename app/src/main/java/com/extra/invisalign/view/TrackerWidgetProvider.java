@@ -0,0 +1,58 @@
+package com.extra.invisalign.view;
+
+import gil.extra.invisaligntracker.R;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+import com.extra.invisalign.control.TrackerCommand;
+import com.extra.invisalign.model.StateSnapshot;
+import com.extra.invisalign.model.TimeStatus;
+
+/**
+ * Home screen widget showing today's total and play/stop button.
+ * It never polls : it is redrawn only on state changes, and the running clock
+ * is a Chronometer ticking inside the launcher process.
+ */
+public class TrackerWidgetProvider extends AppWidgetProvider {
+
+    private static final String TAG = "Invisalign::TrackerWidgetProvider";
+
+    @Override
+    public void onUpdate(Context ctx, AppWidgetManager manager, int[] appWidgetIds) {
+        Log.v(TAG, "onUpdate");
+        manager.updateAppWidget(appWidgetIds, buildViews(ctx, StateSnapshot.read(ctx)));
+    }
+
+    /**
+     * Redraw every widget instance with given snapshot.
+     */
+    public static void updateAll(Context ctx, StateSnapshot snapshot) {
+        AppWidgetManager manager = AppWidgetManager.getInstance(ctx);
+        int[] ids = manager.getAppWidgetIds(new ComponentName(ctx, TrackerWidgetProvider.class));
+        if (ids == null || ids.length == 0) {
+            return;
+        }
+        manager.updateAppWidget(ids, buildViews(ctx, snapshot));
+    }
+
+    private static RemoteViews buildViews(Context ctx, StateSnapshot snapshot) {
+        RemoteViews views = new RemoteViews(ctx.getPackageName(), R.layout.widget_tracker);
+
+        // Translate wall clock total into chronometer base on elapsedRealtime timeline
+        final long dayTotal = snapshot.getDayTotal(TimeStatus.getInstance().now());
+        final long base = SystemClock.elapsedRealtime() - dayTotal;
+        views.setChronometer(R.id.chronometer_widget_time, base, null, snapshot.isRunning());
+
+        views.setImageViewResource(R.id.btn_widget_changestate,
+                snapshot.isRunning() ? R.drawable.pause_button_img : R.drawable.play_button_img);
+        views.setOnClickPendingIntent(R.id.btn_widget_changestate,
+                NotificationView.createChangeStatePendingIntent(ctx, TrackerCommand.SOURCE_WIDGET));
+        return views;
+    }
+}
@@ -0,0 +1,113 @@
+package com.extra.invisalign.control;
+
+import android.content.Context;
+
+import com.extra.invisalign.model.TimeStorage;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times editing a past session against histories of growing size, each in its own in-memory DB.
+ * Every edit moves a random session by a few minutes within its day and is undone right after,
+ * so history stays the same size throughout. Similar times across sizes mean rollups are
+ * recomputed from the edit alone and not from the history around it.
+ */
+public class EditBenchmark {
+
+    private static final long MINUTE = 1000 * 60;
+    private static final long HOUR = MINUTE * 60;
+
+    /**
+     * sessions per simulated day, all well within the day so a shifted one stays in it
+     */
+    private static final int SESSIONS_PER_DAY = 4;
+    private static final long[] SESSION_HOURS = { 7 * HOUR, 12 * HOUR, 18 * HOUR, 22 * HOUR };
+    private static final long SESSION_LENGTH = 30 * MINUTE;
+
+    public static class Result {
+
+        public int[] sizes;
+        public long[] medianMicros;
+        public long[] p90Micros;
+        public int edits;
+        public int failures;
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Session edit, " + edits + " per size");
+            for (int i = 0; i < sizes.length; i++) {
+                sb.append("\n  ").append(sizes[i]).append(" sessions : median=").append(medianMicros[i])
+                        .append("us, p90=").append(p90Micros[i]).append("us");
+            }
+            if (failures > 0) {
+                sb.append("\n  failures=").append(failures);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * @param sizes number of stored sessions for each run
+     * @param edits edits timed per run
+     */
+    public static Result run(Context context, long now, int[] sizes, int edits, long seed) {
+        Result result = new Result();
+        result.sizes = sizes;
+        result.medianMicros = new long[sizes.length];
+        result.p90Micros = new long[sizes.length];
+        result.edits = edits;
+        final Random random = new Random(seed);
+        final long[] micros = new long[edits];
+
+        for (int i = 0; i < sizes.length; i++) {
+            TimeStorage storage = TimeStorage.newInMemoryInstance(context);
+            try {
+                final long[] starts = populate(storage, TimeStorage.toEpochDay(now), sizes[i]);
+                for (int e = 0; e < edits; e++) {
+                    final int index = random.nextInt(sizes[i]);
+                    final long shift = (random.nextInt(31) - 15) * MINUTE;
+                    final long begin = System.nanoTime();
+                    // replaceAll gives ids in insertion order from 1
+                    final boolean updated = storage.updateSession(index + 1, starts[index] + shift,
+                            starts[index] + shift + SESSION_LENGTH, TimeStorage.Session.REASON_MEAL);
+                    micros[e] = (System.nanoTime() - begin) / 1000;
+                    if (!updated || storage.undoLastEdit() != TimeStorage.SessionEdit.UNDO_APPLIED) {
+                        result.failures++;
+                    }
+                }
+            } finally {
+                storage.close();
+            }
+            Arrays.sort(micros);
+            result.medianMicros[i] = micros[edits / 2];
+            result.p90Micros[i] = micros[edits * 9 / 10];
+        }
+        return result;
+    }
+
+    /**
+     * Fill storage with given number of sessions on days ending yesterday
+     * @return start of each session, by id - 1
+     */
+    private static long[] populate(TimeStorage storage, long today, int sessions) {
+        final int dayCount = (sessions + SESSIONS_PER_DAY - 1) / SESSIONS_PER_DAY;
+        final long firstDay = today - dayCount;
+        final long[] days = new long[dayCount];
+        final long[] spent = new long[dayCount];
+        final long[] starts = new long[sessions];
+        final long[] ends = new long[sessions];
+        final int[] reasons = new int[sessions];
+        for (int s = 0; s < sessions; s++) {
+            final int day = s / SESSIONS_PER_DAY;
+            starts[s] = TimeStorage.startOfEpochDay(firstDay + day) + SESSION_HOURS[s % SESSIONS_PER_DAY];
+            ends[s] = starts[s] + SESSION_LENGTH;
+            reasons[s] = TimeStorage.Session.REASON_NONE;
+            days[day] = firstDay + day;
+            spent[day] += SESSION_LENGTH;
+        }
+        storage.replaceAll(days, spent, dayCount, starts, ends, reasons, sessions,
+                new long[0], new int[0], new int[0], new long[0], 0);
+        return starts;
+    }
+}
@@ -0,0 +1,48 @@
+package com.extra.invisalign.control;
+
+import com.extra.invisalign.model.TimeStatus;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import gil.extra.invisaligntracker.BuildConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Editing a past session must cost the same whatever the size of history.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EditBenchmarkTest {
+
+    private static final int[] SIZES = { 1000, 10000, 100000 };
+    private static final int EDITS = 200;
+
+    /**
+     * a hundred times the history may not take more than this many times as long to edit,
+     * a rollup recomputed from history would take about a hundred
+     */
+    private static final long MAX_MEDIAN_RATIO = 3;
+
+    @Test
+    public void editCostDoesNotGrowWithHistory() {
+        final long now = TimeStatus.getInstance().now();
+        // first run pays for JIT and SQLite warm up, it would favour the larger sizes
+        EditBenchmark.run(RuntimeEnvironment.application, now, new int[] { SIZES[0] }, EDITS, 0);
+        EditBenchmark.Result result = EditBenchmark.run(RuntimeEnvironment.application, now, SIZES, EDITS, 365);
+        System.out.println(result);
+        assertEquals(result.toString(), 0, result.failures);
+        // fastest of the sizes, not the smallest, as warm up still shows in the first few edits
+        long fastest = Long.MAX_VALUE;
+        for (long median : result.medianMicros) {
+            fastest = Math.min(fastest, Math.max(1, median));
+        }
+        final long largest = result.medianMicros[SIZES.length - 1];
+        assertTrue(result.toString(), largest <= fastest * MAX_MEDIAN_RATIO);
+    }
+}
@@ -0,0 +1,264 @@
+package com.extra.invisalign.control;
+
+import com.extra.invisalign.model.TimeStatus;
+import com.extra.invisalign.model.TimeStorage;
+import com.extra.invisalign.view.SettingFragment;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import gil.extra.invisaligntracker.BuildConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs TimeTrackerService for days of virtual time : thousands of toggles, day resets at midnight,
+ * settings changed through preferences and a process death in the middle of a session.
+ * Stored totals and session counts must match what was toggled, and every TrackerMetrics budget must hold.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class TimeTrackerServiceTest {
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = SECOND * 60;
+    private static final long HOUR = MINUTE * 60;
+
+    private static final int DAYS = 7;
+
+    /**
+     * day the process is killed, at noon
+     */
+    private static final int DEATH_DAY = 4;
+
+    private TimeZone mDefaultZone;
+    private TrackerHarness mHarness;
+
+    private final Map<Long, Long> mExpectedTotals = new HashMap<Long, Long>();
+    private final Map<Long, Integer> mExpectedSessions = new HashMap<Long, Integer>();
+    private int mToggles;
+    private int mTags;
+    private int mTrims;
+
+    @Before
+    public void setUp() {
+        mDefaultZone = TimeZone.getDefault();
+        // spring forward falls in the simulated week
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+        TrackerMetrics.reset();
+        mHarness = new TrackerHarness();
+        mHarness.startProcess(startTime());
+        mHarness.runBackgroundTasks();
+    }
+
+    @After
+    public void tearDown() {
+        mHarness.shutdown();
+        TimeZone.setDefault(mDefaultZone);
+    }
+
+    private static long startTime() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2016, Calendar.MARCH, 23);
+        return calendar.getTimeInMillis();
+    }
+
+    @Test
+    public void simulatedWeekStoresEveryToggleWithinBudgets() {
+        final long firstDay = TimeStorage.toEpochDay(mHarness.now());
+        final Random random = new Random(DAYS);
+        long time = mHarness.now() + 5 * MINUTE;
+        long sessionStart = 0;
+
+        for (int day = 0; day < DAYS; day++) {
+            if (day == 1) {
+                // first day warms up JIT and SQLite and covers ticks with screen on, budgets are for the rest
+                TrackerMetrics.reset();
+                mTags = 0;
+                mTrims = 0;
+                mHarness.setScreenOn(false);
+            }
+            final long dayEnd = TimeStorage.startOfEpochDay(firstDay + day + 1);
+            final long noon = TimeStorage.startOfEpochDay(firstDay + day) + 12 * HOUR;
+            boolean killed = day != DEATH_DAY;
+            boolean capChanged = false;
+            boolean notificationChanged = false;
+
+            while (time < dayEnd) {
+                mHarness.advanceTo(time);
+                mHarness.toggle();
+                mToggles++;
+                if (sessionStart == 0) {
+                    sessionStart = time;
+                } else {
+                    expectSession(sessionStart, time);
+                    sessionStart = 0;
+                }
+                if (random.nextInt(8) == 0) {
+                    // running session, or the one just stored
+                    mHarness.send(new TrackerCommand(TrackerCommand.TYPE_TAG, TrackerCommand.SOURCE_NOTIFICATION,
+                            TimeStorage.Session.REASON_MEAL));
+                    mTags++;
+                } else if (random.nextInt(32) == 0) {
+                    // nothing is flagged as forgotten, so it changes nothing
+                    mHarness.send(new TrackerCommand(TrackerCommand.TYPE_TRIM, TrackerCommand.SOURCE_NOTIFICATION));
+                    mTrims++;
+                }
+
+                if (!killed && sessionStart != 0 && time > noon) {
+                    killed = true;
+                    mHarness.killProcess(time + SECOND);
+                    mHarness.setScreenOn(false);
+                    assertEquals(sessionStart, TimeStatus.getInstance().getSnapshot().startTime);
+                    // the only restart since metrics were reset
+                    assertEquals(1, TrackerMetrics.getCount(TrackerMetrics.OP_RESTORE));
+                    assertTrue(TrackerMetrics.getPercentileMicros(TrackerMetrics.OP_RESTORE, 1)
+                            <= TrackerMetrics.getBudgetMicros(TrackerMetrics.OP_RESTORE));
+                } else if (!capChanged && sessionStart != 0 && time > noon) {
+                    capChanged = true;
+                    final long timeCap = (1 + random.nextInt(4)) * HOUR;
+                    mHarness.settings().edit().putLong(SettingFragment.KEY_TIMECAP, timeCap)
+                            .putBoolean(SettingFragment.KEY_INITIAL_ALARM, random.nextBoolean()).commit();
+                    mHarness.advanceTo(time + SECOND);
+                    assertTrue(mHarness.dump(), mHarness.dump().contains("timeCap=" + timeCap));
+                } else if (!notificationChanged && sessionStart == 0 && time > noon + HOUR) {
+                    // hidden clock does not start or stop anything while nothing runs
+                    notificationChanged = true;
+                    mHarness.settings().edit().putBoolean(SettingFragment.KEY_CLOCK_NOTIFICATION, false).commit();
+                    mHarness.advanceTo(time + SECOND);
+                    mHarness.settings().edit().putBoolean(SettingFragment.KEY_CLOCK_NOTIFICATION, true).commit();
+                    mHarness.advanceTo(time + 2 * SECOND);
+                    assertTrue(!TimeStatus.getInstance().getSnapshot().isRunning());
+                }
+
+                // short sessions with short breaks, some of them across midnight
+                time += (sessionStart != 0 ? 1 + random.nextInt(3) : 1 + random.nextInt(4)) * MINUTE
+                        + random.nextInt(60) * SECOND;
+            }
+        }
+        if (sessionStart != 0) {
+            mHarness.advanceTo(time);
+            mHarness.toggle();
+            mToggles++;
+            expectSession(sessionStart, time);
+        }
+        // last day is closed by its reset
+        mHarness.advanceTo(TimeStorage.startOfEpochDay(firstDay + DAYS) + MINUTE);
+
+        assertTrue(mToggles > 2000);
+        assertEquals(0, TrackerMetrics.get(TrackerMetrics.COUNTER_COMMAND_DROPPED));
+        // every command type is timed
+        assertEquals(mTags, TrackerMetrics.getCount(TrackerMetrics.OP_COMMAND_TAG));
+        assertEquals(mTrims, TrackerMetrics.getCount(TrackerMetrics.OP_COMMAND_TRIM));
+        assertTrue(mTags > 0 && mTrims > 0);
+        final int days = DAYS;
+        final long[] spent = new long[days];
+        final int[] sessions = new int[days];
+        TimeStorage.getInstance(mHarness.getContext()).loadDays(firstDay, spent, sessions);
+        for (int day = 0; day < days; day++) {
+            final long expected = mExpectedTotals.containsKey(firstDay + day) ? mExpectedTotals.get(firstDay + day) : 0;
+            final int expectedSessions = mExpectedSessions.containsKey(firstDay + day)
+                    ? mExpectedSessions.get(firstDay + day) : 0;
+            assertEquals("total of day " + day, expected, spent[day]);
+            assertEquals("sessions of day " + day, expectedSessions, sessions[day]);
+        }
+
+        final StringWriter violations = new StringWriter();
+        final boolean withinBudgets = TrackerMetrics.checkBudgets(new PrintWriter(violations, true));
+        assertTrue(violations.toString(), withinBudgets);
+    }
+
+    @Test
+    public void restartAfterMissedMidnightStoresEachDayOnItsDate() {
+        final long firstDay = TimeStorage.toEpochDay(mHarness.now());
+        final long midnight = TimeStorage.startOfEpochDay(firstDay + 1);
+        mHarness.advanceTo(midnight - HOUR);
+        mHarness.toggle();
+        final TimeStorage storage = TimeStorage.getInstance(mHarness.getContext());
+        final long[] spent = new long[2];
+        final int[] sessions = new int[2];
+
+        // day reset alarm is late, service is destroyed before it comes
+        mHarness.skipTo(midnight + 10 * MINUTE);
+        mHarness.stopService();
+        storage.loadDays(firstDay, spent, sessions);
+        assertEquals(HOUR, spent[0]);
+        assertEquals(0, spent[1]);
+
+        // and the process dies with it, restart must split the session at the midnight it missed
+        TrackerMetrics.reset();
+        mHarness.killProcess(midnight + 20 * MINUTE);
+        assertEquals(firstDay + 1, TimeStatus.getInstance().getSnapshot().day);
+        assertEquals(midnight, TimeStatus.getInstance().getSnapshot().startTime);
+        storage.loadDays(firstDay, spent, sessions);
+        assertEquals(HOUR, spent[0]);
+        assertEquals(1, sessions[0]);
+
+        mHarness.advanceTo(midnight + HOUR);
+        mHarness.toggle();
+        storage.loadDays(firstDay, spent, sessions);
+        assertEquals(HOUR, spent[1]);
+        assertEquals(1, sessions[1]);
+        // a cold process here, its budget is held by the warm restart of the simulated week
+        assertEquals(1, TrackerMetrics.getCount(TrackerMetrics.OP_RESTORE));
+    }
+
+    @Test
+    public void firstRunRebuildsStatisticsOffMainThread() {
+        final long firstDay = TimeStorage.toEpochDay(mHarness.now());
+        for (int day = 0; day < 3; day++) {
+            mHarness.advanceTo(TimeStorage.startOfEpochDay(firstDay + day) + 12 * HOUR);
+            mHarness.toggle();
+            mHarness.advanceTo(TimeStorage.startOfEpochDay(firstDay + day) + 13 * HOUR);
+            mHarness.toggle();
+        }
+
+        // update to a version with forecaster and sketch finds history but nothing rebuilt from it
+        mHarness.getContext().getSharedPreferences("forecast", Context.MODE_PRIVATE).edit().clear().commit();
+        mHarness.getContext().getSharedPreferences("session_sketch", Context.MODE_PRIVATE).edit().clear().commit();
+        mHarness.killProcess(TimeStorage.startOfEpochDay(firstDay + 3) + 9 * HOUR);
+        // tracker is up with neither projection nor forgotten flagging, history is not read yet
+        assertTrue(mHarness.dump(), mHarness.dump().contains("Forecast: rebuilding"));
+        assertTrue(mHarness.dump(), mHarness.dump().contains("Session lengths: rebuilding"));
+
+        // a session stored meanwhile is counted in, the first read may have missed it
+        mHarness.advanceTo(TimeStorage.startOfEpochDay(firstDay + 3) + 10 * HOUR);
+        mHarness.toggle();
+        mHarness.advanceTo(TimeStorage.startOfEpochDay(firstDay + 3) + 11 * HOUR);
+        mHarness.toggle();
+        mHarness.runBackgroundTasks();
+        assertTrue(mHarness.dump(), mHarness.dump().contains("days=3,"));
+        assertTrue(mHarness.dump(), mHarness.dump().contains("SessionLengthSketch{0=4,"));
+    }
+
+    /**
+     * Count session in each day it covers, as split at midnight
+     */
+    private void expectSession(long start, long end) {
+        while (start < end) {
+            final long day = TimeStorage.toEpochDay(start);
+            final long pieceEnd = Math.min(end, TimeStorage.startOfEpochDay(day + 1));
+            final Long total = mExpectedTotals.get(day);
+            mExpectedTotals.put(day, (total != null ? total : 0) + pieceEnd - start);
+            final Integer count = mExpectedSessions.get(day);
+            mExpectedSessions.put(day, (count != null ? count : 0) + 1);
+            start = pieceEnd;
+        }
+    }
+}
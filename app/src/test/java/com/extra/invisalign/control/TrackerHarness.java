@@ -0,0 +1,247 @@
+package com.extra.invisalign.control;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import com.extra.invisalign.model.Clock;
+import com.extra.invisalign.model.StateSnapshot;
+import com.extra.invisalign.model.TimeStatus;
+import com.extra.invisalign.model.TimeStorage;
+import com.extra.invisalign.view.SettingFragment;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * TimeTrackerService under Robolectric on virtual time. Timed messages of the service and its
+ * AlarmManager alarms all run on one VirtualScheduler, and commands go through onStartCommand
+ * as they would from a notification or an alarm, so the whole pipeline down to the DB is exercised.
+ */
+public class TrackerHarness {
+
+    /**
+     * alarms are scheduled on the same virtual time, their codes apart from handler messages
+     */
+    private static final int ALARM_BASE = 32;
+
+    /**
+     * codes from here up to ALARM_BASE are the caller's own events, never delivered to the service
+     */
+    public static final int EVT_BASE = 16;
+
+    public interface Listener {
+
+        /**
+         * Called before a timed message is delivered to the service, and for caller's own events.
+         * Alarms are not, they reach the service as commands.
+         */
+        void onEvent(int what);
+    }
+
+    private static Scheduler sScheduler;
+    private static Scheduler sAlarms;
+    private static Executor sBackground;
+
+    /**
+     * Service running on whatever virtual time the harness set up before Robolectric creates it
+     */
+    public static class VirtualTrackerService extends TimeTrackerService {
+
+        public VirtualTrackerService() {
+            super(sScheduler, sAlarms, sBackground);
+        }
+    }
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private VirtualScheduler mScheduler;
+    private TimeTrackerService mService;
+    private Listener mListener;
+
+    /**
+     * virtual time Robolectric's clock, and so elapsedRealtime, was moved to
+     */
+    private long mSyncedTime;
+    private int mStartId = 0;
+
+    /**
+     * AlarmManager outlives the process, so this one always posts to current virtual time
+     */
+    private final Scheduler mAlarms = new Scheduler() {
+
+        @Override
+        public void schedule(int what, long delay) {
+            mScheduler.schedule(ALARM_BASE + what, delay);
+        }
+
+        @Override
+        public void cancel(int what) {
+            mScheduler.cancel(ALARM_BASE + what);
+        }
+    };
+
+    /**
+     * Work of the service's background thread waits here until the caller runs it, so it lands
+     * at the same point of virtual time every run
+     */
+    private final List<Runnable> mBackgroundTasks = new ArrayList<Runnable>();
+
+    private final Executor mBackground = new Executor() {
+
+        @Override
+        public void execute(Runnable task) {
+            mBackgroundTasks.add(task);
+        }
+    };
+
+    private final VirtualScheduler.Callback mCallback = new VirtualScheduler.Callback() {
+
+        @Override
+        public void onEvent(int what) {
+            syncClock(mScheduler.currentTimeMillis());
+            if (what >= ALARM_BASE) {
+                // AlarmManager starts the service with the command
+                send(new TrackerCommand(what - ALARM_BASE, TrackerCommand.SOURCE_ALARM).pending());
+                return;
+            }
+            if (mListener != null) {
+                mListener.onEvent(what);
+            }
+            if (what < EVT_BASE) {
+                mService.onMessage(what, null);
+            }
+        }
+    };
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public Context getContext() {
+        return mContext;
+    }
+
+    public TimeTrackerService getService() {
+        return mService;
+    }
+
+    public VirtualScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Fresh process at given time : new virtual time base, state rebuilt from persisted snapshot
+     */
+    public void startProcess(long time) {
+        if (mScheduler == null) {
+            mSyncedTime = time;
+        }
+        mScheduler = new VirtualScheduler(time);
+        mScheduler.setCallback(mCallback);
+        syncClock(time);
+        TimeStatus.getInstance().setClock(mScheduler);
+        sScheduler = mScheduler;
+        sAlarms = mAlarms;
+        sBackground = mBackground;
+        mService = Robolectric.buildService(VirtualTrackerService.class).create().get();
+    }
+
+    /**
+     * Service is stopped and destroyed, process and its singletons live on
+     */
+    public void stopService() {
+        mService.onDestroy();
+        ShadowLooper.idleMainLooper();
+    }
+
+    /**
+     * Process dies without onDestroy, only what was persisted survives
+     */
+    public void killProcess(long restartTime) {
+        TimeStatus.getInstance().removeObserver(mService);
+        TimeStatus.getInstance().restore(StateSnapshot.EMPTY);
+        startProcess(restartTime);
+    }
+
+    /**
+     * Leave tracker singletons as a new process would find them, for the next test
+     */
+    public void shutdown() {
+        TimeStatus.getInstance().removeObserver(mService);
+        TimeStatus.getInstance().restore(StateSnapshot.EMPTY);
+        TimeStatus.getInstance().setClock(Clock.SYSTEM);
+        TimeStorage.closeInstance();
+    }
+
+    public long now() {
+        return mScheduler.currentTimeMillis();
+    }
+
+    public void advanceTo(long time) {
+        mScheduler.advanceTo(time);
+        syncClock(time);
+    }
+
+    /**
+     * Move to given time with due timers and alarms left pending, as when the system delays them
+     */
+    public void skipTo(long time) {
+        mScheduler.skipTo(time);
+        syncClock(time);
+    }
+
+    /**
+     * elapsedRealtime stamps commands as received, it moves along with virtual time
+     */
+    private void syncClock(long time) {
+        if (time > mSyncedTime) {
+            Robolectric.getForegroundThreadScheduler().advanceBy(time - mSyncedTime);
+            mSyncedTime = time;
+        }
+    }
+
+    /**
+     * Run what the service handed to its background thread, and deliver what that posts back
+     */
+    public void runBackgroundTasks() {
+        while (!mBackgroundTasks.isEmpty()) {
+            mBackgroundTasks.remove(0).run();
+            ShadowLooper.idleMainLooper();
+        }
+    }
+
+    public void toggle() {
+        send(new TrackerCommand(TrackerCommand.TYPE_TOGGLE, TrackerCommand.SOURCE_NOTIFICATION));
+    }
+
+    public void send(TrackerCommand command) {
+        Intent intent = command.toIntent(mContext);
+        mService.onStartCommand(intent, 0, ++mStartId);
+        ShadowLooper.idleMainLooper();
+    }
+
+    public void setScreenOn(boolean on) {
+        mContext.sendBroadcast(new Intent(on ? Intent.ACTION_SCREEN_ON : Intent.ACTION_SCREEN_OFF));
+        ShadowLooper.idleMainLooper();
+    }
+
+    public SharedPreferences settings() {
+        return mContext.getSharedPreferences(SettingFragment.SETTINGS_SHARED_PREFERENCES_FILE_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    public String dump() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        mService.dump(null, pw, null);
+        pw.flush();
+        return sw.toString();
+    }
+}
@@ -0,0 +1,286 @@
+package com.extra.invisalign.control;
+
+import com.extra.invisalign.model.AlarmTimer;
+import com.extra.invisalign.model.SettingsSnapshot;
+import com.extra.invisalign.model.StateSnapshot;
+import com.extra.invisalign.model.TimeStatus;
+import com.extra.invisalign.model.TimeStorage;
+import com.extra.invisalign.view.SettingFragment;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs TimeTrackerService through TrackerHarness over many days of virtual time,
+ * with meals and cleaning toggled from a seeded random schedule, and now and then a forgotten session.
+ * Days follow default timezone, so daylight saving transitions in the range are covered.
+ * Every toggle, day reset and timer goes through the service as on device, and what ends up in
+ * TimeStorage is checked day by day against the planned schedule. Every timer is checked
+ * against the state it fires in, before the service handles it.
+ */
+public class TrackerSimulator {
+
+    /**
+     * planned toggles, a caller's own event of the harness
+     */
+    private static final int EVT_TOGGLE = TrackerHarness.EVT_BASE;
+
+    private static final long MINUTE = 1000 * 60;
+    private static final long HOUR = MINUTE * 60;
+
+    public static class Result {
+
+        public int days;
+        public long toggles;
+        public long dayResets;
+        public long events;
+        public long plannedTime;
+        public long sessionTime;
+        public long dayTotalTime;
+        public long splitViolations;
+        public long dayMismatches;
+        public long sessionCountMismatches;
+        public long daysOverCap;
+        public long warnAlarms;
+        public long initAlarms;
+        public long expectedInitAlarms;
+        public long finalAlarms;
+        public long forgottenChecks;
+        public long forgottenPlanned;
+        public long thresholdViolations;
+        public long elapsedMs;
+
+        /**
+         * @return true if every planned minute ends up in exactly one stored session and one day total of its day,
+         * and every timer went off when, and only when, its threshold was crossed
+         */
+        public boolean isConsistent() {
+            return plannedTime == sessionTime && sessionTime == dayTotalTime && splitViolations == 0
+                    && dayMismatches == 0 && sessionCountMismatches == 0 && thresholdViolations == 0
+                    && warnAlarms == daysOverCap && initAlarms == expectedInitAlarms;
+        }
+
+        /**
+         * @return simulated events, toggles timers and day resets alike, per second of real time
+         */
+        public long getEventsPerSecond() {
+            return events * 1000 / Math.max(1, elapsedMs);
+        }
+
+        @Override
+        public String toString() {
+            return "Simulated " + days + " days in " + elapsedMs + "ms"
+                    + ", events=" + events
+                    + " (" + getEventsPerSecond() + "/s)"
+                    + ", toggles=" + toggles
+                    + ", dayResets=" + dayResets
+                    + ", planned=" + TimeStatus.msToHourMin(plannedTime)
+                    + ", sessions=" + TimeStatus.msToHourMin(sessionTime)
+                    + ", days=" + TimeStatus.msToHourMin(dayTotalTime)
+                    + ", splitViolations=" + splitViolations
+                    + ", dayMismatches=" + dayMismatches
+                    + ", sessionCountMismatches=" + sessionCountMismatches
+                    + ", warn=" + warnAlarms + "/" + daysOverCap
+                    + ", init=" + initAlarms + "/" + expectedInitAlarms
+                    + ", final=" + finalAlarms
+                    + ", forgotten=" + forgottenChecks + " (" + forgottenPlanned + " planned)"
+                    + ", thresholdViolations=" + thresholdViolations
+                    + (isConsistent() ? ", OK" : ", INCONSISTENT");
+        }
+    }
+
+    private final TrackerHarness mHarness;
+    private final SettingsSnapshot mSettings;
+    private final Result mResult = new Result();
+
+    private final Map<Long, Long> mPlannedByDay = new HashMap<Long, Long>();
+    private final Map<Long, Long> mPiecesByDay = new HashMap<Long, Long>();
+
+    private final TrackerHarness.Listener mListener = new TrackerHarness.Listener() {
+
+        @Override
+        public void onEvent(int what) {
+            handleEvent(what);
+        }
+    };
+
+    private TrackerSimulator(TrackerHarness harness, SettingsSnapshot settings) {
+        mHarness = harness;
+        mSettings = settings;
+    }
+
+    /**
+     * Simulate given number of days starting at local midnight of startTime, on a harness not started yet.
+     * Service is started with given settings and screen off, as it mostly is.
+     */
+    public static Result run(TrackerHarness harness, long startTime, int days, SettingsSnapshot settings,
+                             long seed) {
+        final long firstDay = TimeStorage.toEpochDay(startTime);
+        harness.settings().edit()
+                .putLong(SettingFragment.KEY_TIMECAP, settings.timeCap)
+                .putBoolean(SettingFragment.KEY_INITIAL_ALARM, settings.initialAlarm)
+                .putBoolean(SettingFragment.KEY_FINAL_ALARM, settings.finalAlarm)
+                .putBoolean(SettingFragment.KEY_CLOCK_NOTIFICATION, settings.clockNotification)
+                .putString(SettingFragment.KEY_WEAR_DETECTION, settings.wearDetection)
+                .commit();
+        harness.startProcess(TimeStorage.startOfEpochDay(firstDay));
+        harness.runBackgroundTasks();
+        harness.setScreenOn(false);
+
+        TrackerSimulator simulator = new TrackerSimulator(harness, settings);
+        harness.setListener(simulator.mListener);
+        return simulator.simulate(firstDay, days, new Random(seed));
+    }
+
+    private Result simulate(long firstDay, int days, Random random) {
+        final long begin = System.nanoTime();
+        final long firstEvent = mHarness.getScheduler().getEventCount();
+        final long firstReset = TrackerMetrics.getCount(TrackerMetrics.OP_COMMAND_DAY_RESET);
+        mResult.days = days;
+
+        for (long day = firstDay; day < firstDay + days; day++) {
+            planDay(TimeStorage.startOfEpochDay(day), random);
+        }
+
+        // one more day lets a late snack of the last day finish, and its reset stores the day
+        mHarness.advanceTo(TimeStorage.startOfEpochDay(firstDay + days + 1) + MINUTE);
+
+        mResult.events = mHarness.getScheduler().getEventCount() - firstEvent;
+        mResult.dayResets = TrackerMetrics.getCount(TrackerMetrics.OP_COMMAND_DAY_RESET) - firstReset;
+        mResult.elapsedMs = (System.nanoTime() - begin) / 1000000;
+        checkStorage(firstDay, days + 1);
+        return mResult;
+    }
+
+    /**
+     * Breakfast, lunch, dinner and cleaning, sometimes a late snack across midnight
+     * or a lunch left running all afternoon
+     */
+    private void planDay(long dayStart, Random random) {
+        plan(dayStart + 7 * HOUR + random.nextInt(60) * MINUTE, 20 + random.nextInt(20));
+        if (random.nextInt(40) == 0) {
+            mResult.forgottenPlanned++;
+            plan(dayStart + 12 * HOUR + random.nextInt(60) * MINUTE, 240 + random.nextInt(60));
+        } else {
+            plan(dayStart + 12 * HOUR + random.nextInt(60) * MINUTE, 30 + random.nextInt(30));
+        }
+        plan(dayStart + 18 * HOUR + random.nextInt(90) * MINUTE, 30 + random.nextInt(40));
+        if (random.nextInt(10) == 0) {
+            plan(dayStart + 23 * HOUR + (30 + random.nextInt(25)) * MINUTE, 20 + random.nextInt(40));
+        } else {
+            plan(dayStart + 22 * HOUR + random.nextInt(60) * MINUTE, 5 + random.nextInt(10));
+        }
+    }
+
+    private void plan(long start, int minutes) {
+        final long now = mHarness.now();
+        final long end = start + minutes * MINUTE;
+        mHarness.getScheduler().schedule(EVT_TOGGLE, start - now);
+        mHarness.getScheduler().schedule(EVT_TOGGLE, end - now);
+        mResult.plannedTime += end - start;
+
+        final long boundary = AlarmTimer.nextDayResetTime(start);
+        planPiece(start, Math.min(end, boundary));
+        if (end > boundary) {
+            planPiece(boundary, end);
+        }
+    }
+
+    /**
+     * Part of a planned session within one day, stored as a session of its own
+     */
+    private void planPiece(long start, long end) {
+        final long day = TimeStorage.toEpochDay(start);
+        add(mPlannedByDay, day, end - start);
+        add(mPiecesByDay, day, 1);
+        if (mSettings.initialAlarm) {
+            // every period of the piece, except one ending right as it stops
+            mResult.expectedInitAlarms += (end - start - 1) / CapPredictor.INITIAL_ALARM_PERIOD;
+        }
+    }
+
+    private void handleEvent(int what) {
+        final StateSnapshot snapshot = TimeStatus.getInstance().getSnapshot();
+        final long now = mHarness.now();
+        switch (what) {
+            case EVT_TOGGLE:
+                mResult.toggles++;
+                mHarness.toggle();
+                break;
+            case ThresholdTimers.MSG_WARN_ALARM:
+                mResult.warnAlarms++;
+                check(snapshot.isRunning() && snapshot.getDayTotal(now) == mSettings.timeCap + 1);
+                break;
+            case ThresholdTimers.MSG_INIT_ALARM:
+                mResult.initAlarms++;
+                check(mSettings.initialAlarm && snapshot.isRunning()
+                        && snapshot.getSessionTime(now) % CapPredictor.INITIAL_ALARM_PERIOD == 0);
+                break;
+            case ThresholdTimers.MSG_FINAL_ALARM:
+                mResult.finalAlarms++;
+                check(mSettings.finalAlarm && snapshot.isRunning() && snapshot.getDayTotal(now) > mSettings.timeCap);
+                break;
+            case ThresholdTimers.MSG_FORGOTTEN_CHECK:
+                mResult.forgottenChecks++;
+                check(snapshot.isRunning() && snapshot.getWholeSessionTime(now) >= ThresholdTimers.MIN_FORGOTTEN);
+                break;
+            default:
+                // ticks, backups and settings of the service itself
+                break;
+        }
+    }
+
+    private void check(boolean valid) {
+        if (!valid) {
+            mResult.thresholdViolations++;
+        }
+    }
+
+    /**
+     * Each day's planned time and pieces must agree with its stored sessions and final total
+     */
+    private void checkStorage(final long firstDay, int days) {
+        final TimeStorage storage = TimeStorage.getInstance(mHarness.getContext());
+        final long[] spent = new long[days];
+        final int[] sessions = new int[days];
+        storage.loadDays(firstDay, spent, sessions);
+
+        final long[] sessionTime = new long[days];
+        storage.forEachSession(firstDay, firstDay + days - 1, new TimeStorage.SessionVisitor() {
+
+            @Override
+            public void onSession(long start, long end, int reason) {
+                mResult.sessionTime += end - start;
+                final long day = TimeStorage.toEpochDay(start);
+                if (day != TimeStorage.toEpochDay(end - 1)) {
+                    mResult.splitViolations++;
+                }
+                sessionTime[(int) (day - firstDay)] += end - start;
+            }
+        });
+
+        for (int i = 0; i < days; i++) {
+            mResult.dayTotalTime += spent[i];
+            if (spent[i] > mSettings.timeCap) {
+                mResult.daysOverCap++;
+            }
+            final long planned = get(mPlannedByDay, firstDay + i);
+            if (planned != spent[i] || planned != sessionTime[i]) {
+                mResult.dayMismatches++;
+            }
+            if (get(mPiecesByDay, firstDay + i) != sessions[i]) {
+                mResult.sessionCountMismatches++;
+            }
+        }
+    }
+
+    private static void add(Map<Long, Long> byDay, long day, long value) {
+        byDay.put(day, get(byDay, day) + value);
+    }
+
+    private static long get(Map<Long, Long> byDay, long day) {
+        final Long value = byDay.get(day);
+        return value == null ? 0 : value;
+    }
+}
@@ -0,0 +1,100 @@
+package com.extra.invisalign.control;
+
+import com.extra.invisalign.model.SettingsSnapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import gil.extra.invisaligntracker.BuildConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A year of the whole tracker pipeline on virtual time, for each kind of settings.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class TrackerSimulatorTest {
+
+    /**
+     * a year covers both daylight saving transitions
+     */
+    private static final int DAYS = 365;
+    private static final long HOUR = 1000 * 60 * 60;
+
+    /**
+     * a simulated year must run in seconds, whatever the machine
+     */
+    private static final long MAX_ELAPSED_MS = 60 * 1000;
+
+    private TimeZone mDefaultZone;
+    private TrackerHarness mHarness;
+
+    @Before
+    public void setUp() {
+        mDefaultZone = TimeZone.getDefault();
+        // daylight saving moves twice a year
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+        mHarness = new TrackerHarness();
+    }
+
+    @After
+    public void tearDown() {
+        mHarness.shutdown();
+        TimeZone.setDefault(mDefaultZone);
+    }
+
+    private static long startTime() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2015, Calendar.JANUARY, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void assertRanInTime(TrackerSimulator.Result result) {
+        System.out.println(result);
+        assertTrue(result.toString(), result.elapsedMs < MAX_ELAPSED_MS);
+        assertTrue(result.toString(), result.events > result.toggles);
+    }
+
+    @Test
+    public void defaultSettingsStayConsistent() {
+        TrackerSimulator.Result result = TrackerSimulator.run(mHarness, startTime(), DAYS,
+                SettingsSnapshot.DEFAULT, 1);
+        assertTrue(result.toString(), result.isConsistent());
+        assertEquals(DAYS + 1, result.dayResets);
+        assertTrue(result.toString(), result.initAlarms > 0);
+        assertTrue(result.toString(), result.forgottenChecks > 0);
+        assertRanInTime(result);
+    }
+
+    @Test
+    public void disabledAlarmsNeverGoOff() {
+        SettingsSnapshot settings = new SettingsSnapshot(SettingsSnapshot.DEFAULT.timeCap, false, false, true,
+                SettingsSnapshot.DEFAULT.wearDetection);
+        TrackerSimulator.Result result = TrackerSimulator.run(mHarness, startTime(), DAYS, settings, 2);
+        assertTrue(result.toString(), result.isConsistent());
+        assertEquals(0, result.initAlarms);
+        assertEquals(0, result.finalAlarms);
+        assertRanInTime(result);
+    }
+
+    @Test
+    public void lowCapWarnsOncePerDayOverIt() {
+        SettingsSnapshot settings = new SettingsSnapshot(HOUR, true, true, true,
+                SettingsSnapshot.DEFAULT.wearDetection);
+        TrackerSimulator.Result result = TrackerSimulator.run(mHarness, startTime(), DAYS, settings, 3);
+        assertTrue(result.toString(), result.isConsistent());
+        assertTrue(result.toString(), result.daysOverCap >= DAYS);
+        assertTrue(result.toString(), result.finalAlarms > 0);
+        assertRanInTime(result);
+    }
+}
@@ -0,0 +1,109 @@
+package com.extra.invisalign.control;
+
+import com.extra.invisalign.model.Clock;
+
+import java.util.PriorityQueue;
+
+/**
+ * Scheduler and clock on virtual time. Time only moves in {@link #advanceTo(long)},
+ * which runs due events in time order, so months of timers run in milliseconds.
+ */
+public class VirtualScheduler implements Scheduler, Clock {
+
+    public interface Callback {
+
+        void onEvent(int what);
+    }
+
+    /**
+     * message codes must be below this
+     */
+    private static final int MAX_WHAT = 64;
+
+    private static class Event implements Comparable<Event> {
+
+        final long time;
+        final long seq;
+        final int what;
+        final int generation;
+
+        Event(long time, long seq, int what, int generation) {
+            this.time = time;
+            this.seq = seq;
+            this.what = what;
+            this.generation = generation;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Event> mQueue = new PriorityQueue<Event>();
+
+    /**
+     * cancel bumps generation of a code instead of searching the queue
+     */
+    private final int[] mGenerations = new int[MAX_WHAT];
+
+    private Callback mCallback;
+    private long mNow;
+    private long mSeq = 0;
+    private long mEventCount = 0;
+
+    public VirtualScheduler(long startTime) {
+        mNow = startTime;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return mNow;
+    }
+
+    @Override
+    public void schedule(int what, long delay) {
+        mQueue.add(new Event(mNow + Math.max(0, delay), mSeq++, what, mGenerations[what]));
+    }
+
+    @Override
+    public void cancel(int what) {
+        mGenerations[what]++;
+    }
+
+    /**
+     * Run every event due until given time in order, then move clock to it.
+     */
+    public void advanceTo(long time) {
+        Event event;
+        while ((event = mQueue.peek()) != null && event.time <= time) {
+            mQueue.poll();
+            if (event.generation != mGenerations[event.what]) {
+                continue;
+            }
+            mNow = event.time;
+            mEventCount++;
+            mCallback.onEvent(event.what);
+        }
+        mNow = Math.max(mNow, time);
+    }
+
+    /**
+     * Move clock to given time leaving due events pending, as an alarm delayed by the system would be.
+     * They run in the next {@link #advanceTo(long)}.
+     */
+    public void skipTo(long time) {
+        mNow = Math.max(mNow, time);
+    }
+
+    public long getEventCount() {
+        return mEventCount;
+    }
+}
@@ -0,0 +1,155 @@
+package com.extra.invisalign.model;
+
+import com.extra.invisalign.control.SignalStream;
+import com.extra.invisalign.control.VirtualScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays traces recorded on device, as SignalStream.dumpTrace writes them, through SignalStream
+ * on virtual time and into WearDetector, so rate limits and batching are those of the device.
+ */
+public class WearDetectorTest {
+
+    private static final int EVT_BATCH = 0;
+
+    private static final class Transition {
+
+        final boolean start;
+        final long time;
+
+        Transition(boolean start, long time) {
+            this.start = start;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return time + (start ? " START" : " STOP");
+        }
+    }
+
+    private TimeZone mDefaultZone;
+
+    @Before
+    public void setUp() {
+        mDefaultZone = TimeZone.getDefault();
+        // meal hours are local, traces were recorded in UTC
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultZone);
+    }
+
+    private static List<WearSignal> loadTrace(String name) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                WearDetectorTest.class.getResourceAsStream("/wear/" + name), "UTF-8"));
+        try {
+            return WearSignal.parseTrace(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static long time(int hour, int minute, int second) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2016, Calendar.MARCH, 23, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Offer each signal at its time as a source would, starting stopped,
+     * and apply every suggestion as if the user accepted it when its batch arrived.
+     * @return transitions the detector would have made
+     */
+    private static List<Transition> replay(List<WearSignal> trace) {
+        final VirtualScheduler scheduler = new VirtualScheduler(trace.get(0).time);
+        final SignalStream stream = new SignalStream(scheduler, EVT_BATCH, scheduler);
+        final WearDetector detector = new WearDetector();
+        final List<Transition> transitions = new ArrayList<Transition>();
+        scheduler.setCallback(new VirtualScheduler.Callback() {
+
+            private boolean mRunning = false;
+            private long mSessionStart = 0;
+
+            @Override
+            public void onEvent(int what) {
+                final int suggestion = detector.onBatch(stream.drain(), mRunning, mSessionStart);
+                if (suggestion != WearDetector.SUGGEST_NONE) {
+                    mRunning = suggestion == WearDetector.SUGGEST_START;
+                    mSessionStart = scheduler.currentTimeMillis();
+                    transitions.add(new Transition(mRunning, mSessionStart));
+                }
+            }
+        });
+        for (WearSignal signal : trace) {
+            scheduler.advanceTo(signal.time);
+            stream.offer(signal.type);
+        }
+        scheduler.advanceTo(trace.get(trace.size() - 1).time + SignalStream.BATCH_DELAY);
+        return transitions;
+    }
+
+    private static void assertTransition(Transition transition, boolean start, long time) {
+        assertEquals(transition.toString(), start, transition.start);
+        assertEquals(transition.toString(), time, transition.time);
+    }
+
+    @Test
+    public void traceSkipsCommentsAndUnknownSignals() throws IOException {
+        final List<WearSignal> trace = loadTrace("meal_day.trace");
+        assertEquals(13, trace.size());
+        assertEquals(WearSignal.TYPE_MOTION, trace.get(0).type);
+        assertEquals(time(7, 58, 0), trace.get(0).time);
+        for (int i = 1; i < trace.size(); i++) {
+            assertTrue(trace.get(i - 1).time <= trace.get(i).time);
+        }
+    }
+
+    @Test
+    public void mealDaySuggestsStartAtMealsAndStopLongAfter() throws IOException {
+        final List<Transition> transitions = replay(loadTrace("meal_day.trace"));
+        assertEquals(transitions.toString(), 4, transitions.size());
+        // picked up at breakfast, its batch flushes after the unlock
+        assertTransition(transitions.get(0), true, time(7, 59, 40));
+        // unlocks within the cooldown and during breakfast hours leave it running
+        assertTransition(transitions.get(1), false, time(10, 30, 10));
+        // motion and unlock in one batch
+        assertTransition(transitions.get(2), true, time(12, 30, 10));
+        // tile tap quiets the unlock right after it
+        assertTransition(transitions.get(3), false, time(15, 0, 10));
+    }
+
+    @Test
+    public void tileTapsSuppressEverySuggestion() throws IOException {
+        final List<Transition> transitions = replay(loadTrace("tile_taps.trace"));
+        assertTrue(transitions.toString(), transitions.isEmpty());
+    }
+
+    @Test
+    public void motionRepeatedWithinItsIntervalIsDropped() {
+        // raw sensor would say picked up a minute before unlock, stream keeps only the first motion
+        final List<Transition> transitions = replay(Arrays.asList(
+                new WearSignal(WearSignal.TYPE_MOTION, time(11, 55, 0)),
+                new WearSignal(WearSignal.TYPE_MOTION, time(11, 58, 30)),
+                new WearSignal(WearSignal.TYPE_UNLOCK, time(11, 59, 30))));
+        assertTrue(transitions.toString(), transitions.isEmpty());
+    }
+}